@@ -42,6 +42,17 @@ public abstract class AFlatClassifier implements IReasoningModel, Serializable {
    */
   @Override
   public void train(IEntry entry) {
+    this.checkEntry(entry);
+    this.examples.add(entry);
+  }
+
+  /**
+   * Checks that the given entry is non-null and has exactly the features of the classifier. Will
+   * throw an error otherwise.
+   *
+   * @param entry the entry to check
+   */
+  protected void checkEntry(IEntry entry) {
     if (entry == null) {
       throw new IllegalArgumentException("Training example cannot be null.");
     }
@@ -55,8 +66,6 @@ public abstract class AFlatClassifier implements IReasoningModel, Serializable {
       throw new IllegalArgumentException("Given entry does not have the same features as the " +
               "specified features");
     }
-
-    this.examples.add(entry);
   }
 
   /**
@@ -66,10 +75,11 @@ public abstract class AFlatClassifier implements IReasoningModel, Serializable {
   public String toString() {
     StringBuilder stringBuilder = new StringBuilder();
     List<String> header = new ArrayList<>();
-    if (this.examples.size() == 0) {
+    List<IEntry> examples = this.getExamples();
+    if (examples.size() == 0) {
       header = new ArrayList<>(this.features.keySet());
     } else {
-      List<IFeature> firstEntry = this.examples.get(0).getFeatures();
+      List<IFeature> firstEntry = examples.get(0).getFeatures();
       for (IFeature feature : firstEntry) {
         header.add(feature.getFeatureName());
       }
@@ -77,7 +87,7 @@ public abstract class AFlatClassifier implements IReasoningModel, Serializable {
     stringBuilder.append(header.toString());
     stringBuilder.append("\n");
 
-    for (IEntry entry : this.examples) {
+    for (IEntry entry : examples) {
       stringBuilder.append(entry.toString());
       stringBuilder.append("\n");
     }
@@ -85,6 +95,16 @@ public abstract class AFlatClassifier implements IReasoningModel, Serializable {
     return stringBuilder.toString();
   }
 
+  /**
+   * Gets the examples the classifier has been trained with, in the order they were trained.
+   * Classifiers that do not keep their examples in the examples list should override this.
+   *
+   * @return the trained examples
+   */
+  protected List<IEntry> getExamples() {
+    return this.examples;
+  }
+
   @Override
   public boolean hasFlatFeatures() {
     return true;
@@ -0,0 +1,37 @@
+package reasoningmodels.knn;
+
+import org.apache.commons.math3.exception.DimensionMismatchException;
+
+import java.io.Serializable;
+
+/**
+ * This abstract class represents a distance function that keeps no state, so a single instance
+ * can be shared by every model and thread (see DistanceRegistry). Since any two instances of the
+ * same class compute the same distances, they are equal; a vp-tree built with one instance can
+ * then answer queries that use another. Distance functions are serializable, so a model can be
+ * saved with the one it was configured with.
+ */
+public abstract class ADistanceFunction implements IDistanceFunction, Serializable {
+
+  /**
+   * Throws a DimensionMismatchException if the given vectors have differing sizes.
+   *
+   * @param a one vector of values
+   * @param b other vector of values
+   */
+  protected static void checkDimensions(double[] a, double[] b) {
+    if (a.length != b.length) {
+      throw new DimensionMismatchException(b.length, a.length);
+    }
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    return other != null && other.getClass() == this.getClass();
+  }
+
+  @Override
+  public int hashCode() {
+    return this.getClass().hashCode();
+  }
+}
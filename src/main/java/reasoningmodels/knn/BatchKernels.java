@@ -0,0 +1,44 @@
+package reasoningmodels.knn;
+
+/**
+ * Batch kernels that score one query against a block of consecutive rows of a row-major block,
+ * where each row has as many values as the query. This class scores each row with the unrolled
+ * single-pair kernels of DistanceKernels, and is the fallback on JVMs without the Vector API.
+ * The vector kernels subclass it and score several rows at once, one row per vector lane, while
+ * adding up each row in the same order as the single-pair kernels, so every implementation gives
+ * exactly the same distances (see DistanceKernels.getBatchKernels).
+ */
+public class BatchKernels {
+
+  /**
+   * Gets the squared euclidean distance from the query to each of a block of consecutive rows.
+   *
+   * @param query the query values
+   * @param block the row-major block of rows
+   * @param offset index of the first value of the first row
+   * @param count number of rows to score
+   * @param out array to write the distance of each row into, starting at index 0
+   */
+  public void squaredL2(double[] query, double[] block, int offset, int count, double[] out) {
+    int width = query.length;
+    for (int row = 0; row < count; row++) {
+      out[row] = DistanceKernels.squaredL2(query, 0, block, offset + row * width, width);
+    }
+  }
+
+  /**
+   * Gets the manhattan distance from the query to each of a block of consecutive rows.
+   *
+   * @param query the query values
+   * @param block the row-major block of rows
+   * @param offset index of the first value of the first row
+   * @param count number of rows to score
+   * @param out array to write the distance of each row into, starting at index 0
+   */
+  public void l1(double[] query, double[] block, int offset, int count, double[] out) {
+    int width = query.length;
+    for (int row = 0; row < count; row++) {
+      out[row] = DistanceKernels.l1(query, 0, block, offset + row * width, width);
+    }
+  }
+}
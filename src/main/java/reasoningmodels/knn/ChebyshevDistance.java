@@ -0,0 +1,39 @@
+package reasoningmodels.knn;
+
+/**
+ * Represents the Chebyshev distance, the largest absolute difference.
+ */
+public class ChebyshevDistance extends ADistanceFunction {
+
+  /**
+   * Throws a DimensionMismatchException if the inputs have differing sizes.
+   */
+  @Override
+  public double evaluate(double[] a, double[] b) {
+    return this.evaluateWithCutoff(a, b, Double.POSITIVE_INFINITY);
+  }
+
+  @Override
+  public double evaluateWithCutoff(double[] a, double[] b, double cutoff) {
+    ADistanceFunction.checkDimensions(a, b);
+    return DistanceKernels.chebyshev(a, 0, b, 0, a.length, cutoff);
+  }
+
+  /**
+   * Two one-hot vectors are 1 apart unless their values are the same.
+   */
+  @Override
+  public double evaluateCategorical(int dimensions, int a, int b) {
+    return a == b ? 0.0 : 1.0;
+  }
+
+  @Override
+  public boolean isMetric() {
+    return true;
+  }
+
+  @Override
+  public boolean supportsCutoff() {
+    return true;
+  }
+}
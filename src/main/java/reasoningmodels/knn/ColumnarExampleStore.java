@@ -0,0 +1,141 @@
+package reasoningmodels.knn;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * An implementation of IExampleStore that keeps the examples on the heap in flat primitive
+ * arrays: one double matrix for raw numerical/boolean values and one int matrix for categorical
+ * codes. Each matrix is laid out row by row, so the values of one example are contiguous.
+ * Arrays grow by doubling as rows are added.
+ */
+public class ColumnarExampleStore implements IExampleStore, Serializable {
+  private static final int INITIAL_CAPACITY = 16;
+
+  private final int numericalWidth;
+  private final int categoricalWidth;
+  private double[] values;
+  private int[] codes;
+  private int size;
+
+  /**
+   * Constructs an empty ColumnarExampleStore with the given number of columns per row.
+   *
+   * @param numericalWidth number of numerical/boolean columns
+   * @param categoricalWidth number of categorical columns
+   */
+  public ColumnarExampleStore(int numericalWidth, int categoricalWidth) {
+    if (numericalWidth < 0 || categoricalWidth < 0) {
+      throw new IllegalArgumentException("Column counts cannot be negative.");
+    }
+
+    this.numericalWidth = numericalWidth;
+    this.categoricalWidth = categoricalWidth;
+    this.values = new double[INITIAL_CAPACITY * numericalWidth];
+    this.codes = new int[INITIAL_CAPACITY * categoricalWidth];
+    this.size = 0;
+  }
+
+  @Override
+  public int size() {
+    return this.size;
+  }
+
+  @Override
+  public int getNumericalWidth() {
+    return this.numericalWidth;
+  }
+
+  @Override
+  public int getCategoricalWidth() {
+    return this.categoricalWidth;
+  }
+
+  @Override
+  public int add(double[] numerical, int[] categorical) {
+    this.checkRow(numerical, categorical);
+
+    if ((this.size + 1) * this.numericalWidth > this.values.length
+            || (this.size + 1) * this.categoricalWidth > this.codes.length) {
+      int capacity = Math.max(INITIAL_CAPACITY, this.size * 2);
+      this.values = Arrays.copyOf(this.values, capacity * this.numericalWidth);
+      this.codes = Arrays.copyOf(this.codes, capacity * this.categoricalWidth);
+    }
+
+    System.arraycopy(numerical, 0, this.values, this.size * this.numericalWidth,
+            this.numericalWidth);
+    System.arraycopy(categorical, 0, this.codes, this.size * this.categoricalWidth,
+            this.categoricalWidth);
+    return this.size++;
+  }
+
+  @Override
+  public void set(int row, double[] numerical, int[] categorical) {
+    this.checkRow(numerical, categorical);
+    if (row < 0 || row >= this.size) {
+      throw new IndexOutOfBoundsException("No row " + row + " to replace.");
+    }
+
+    System.arraycopy(numerical, 0, this.values, row * this.numericalWidth, this.numericalWidth);
+    System.arraycopy(categorical, 0, this.codes, row * this.categoricalWidth,
+            this.categoricalWidth);
+  }
+
+  @Override
+  public void truncate(int size) {
+    if (size < 0 || size > this.size) {
+      throw new IndexOutOfBoundsException("Cannot truncate " + this.size + " rows to " + size
+              + ".");
+    }
+
+    this.size = size;
+  }
+
+  /**
+   * Checks that the given row values are not null and have as many columns as the store.
+   *
+   * @param numerical the numerical values of the row
+   * @param categorical the categorical codes of the row
+   */
+  private void checkRow(double[] numerical, int[] categorical) {
+    if (numerical == null || categorical == null) {
+      throw new IllegalArgumentException("Row values cannot be null.");
+    }
+
+    if (numerical.length != this.numericalWidth || categorical.length != this.categoricalWidth) {
+      throw new IllegalArgumentException("Row does not have the same number of columns as the " +
+              "store.");
+    }
+  }
+
+  @Override
+  public double getValue(int row, int column) {
+    return this.values[this.numericalIndex(row, column)];
+  }
+
+  @Override
+  public int getCode(int row, int column) {
+    if (row < 0 || row >= this.size || column < 0 || column >= this.categoricalWidth) {
+      throw new IndexOutOfBoundsException("No categorical value at row " + row + ", column "
+              + column + ".");
+    }
+
+    return this.codes[row * this.categoricalWidth + column];
+  }
+
+  /**
+   * Gets the index into the numerical array of the given row and column, checking bounds.
+   *
+   * @param row the row
+   * @param column the numerical column
+   * @return the index into the numerical array
+   */
+  private int numericalIndex(int row, int column) {
+    if (row < 0 || row >= this.size || column < 0 || column >= this.numericalWidth) {
+      throw new IndexOutOfBoundsException("No numerical value at row " + row + ", column "
+              + column + ".");
+    }
+
+    return row * this.numericalWidth + column;
+  }
+}
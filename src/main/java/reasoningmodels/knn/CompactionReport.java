@@ -0,0 +1,70 @@
+package reasoningmodels.knn;
+
+/**
+ * The outcome of a compaction of a KNN model's examples (see KNN.compact): how many examples
+ * there were, how many survived Wilson editing, how many prototypes condensing kept, and whether
+ * the prototypes passed the consistency check, without which they are not swapped in.
+ */
+public class CompactionReport {
+  private final int before;
+  private final int edited;
+  private final int after;
+  private final boolean consistent;
+
+  /**
+   * Constructs a CompactionReport.
+   *
+   * @param before number of examples that were compacted
+   * @param edited number of examples kept by editing
+   * @param after number of prototypes kept by condensing
+   * @param consistent whether 1-NN over the prototypes labels every edited example correctly
+   */
+  public CompactionReport(int before, int edited, int after, boolean consistent) {
+    this.before = before;
+    this.edited = edited;
+    this.after = after;
+    this.consistent = consistent;
+  }
+
+  /**
+   * Gets the number of examples that were compacted.
+   *
+   * @return the number of examples before compaction
+   */
+  public int getBefore() {
+    return this.before;
+  }
+
+  /**
+   * Gets the number of examples kept by Wilson editing.
+   *
+   * @return the number of examples after editing
+   */
+  public int getEdited() {
+    return this.edited;
+  }
+
+  /**
+   * Gets the number of prototypes kept by condensing.
+   *
+   * @return the number of examples after compaction
+   */
+  public int getAfter() {
+    return this.after;
+  }
+
+  /**
+   * Did the prototypes pass the consistency check?
+   *
+   * @return true if they did, false otherwise
+   */
+  public boolean isConsistent() {
+    return this.consistent;
+  }
+
+  @Override
+  public String toString() {
+    return "Compacted " + this.before + " examples to " + this.after + " prototypes ("
+            + this.edited + " after editing)" + (this.consistent ? "" : ", not consistent");
+  }
+}
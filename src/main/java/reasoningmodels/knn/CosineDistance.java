@@ -0,0 +1,38 @@
+package reasoningmodels.knn;
+
+/**
+ * Represents the cosine distance, 1 minus the cosine of the angle between two vectors. It only
+ * compares directions, does not obey the triangle inequality, and cannot be bounded before every
+ * value has been read, since it divides by the norms of the whole vectors.
+ */
+public class CosineDistance extends ADistanceFunction {
+
+  /**
+   * Throws a DimensionMismatchException if the inputs have differing sizes.
+   */
+  @Override
+  public double evaluate(double[] a, double[] b) {
+    ADistanceFunction.checkDimensions(a, b);
+    return DistanceKernels.cosine(a, 0, b, 0, a.length);
+  }
+
+  /**
+   * Two one-hot vectors are orthogonal if their values differ, and 1 apart if only one of them
+   * has a value.
+   */
+  @Override
+  public double evaluateCategorical(int dimensions, int a, int b) {
+    return a == b ? 0.0 : 1.0;
+  }
+
+  @Override
+  public void evaluateBatch(double[] query, double[] block, int offset, int count,
+                            double[] out) {
+    DistanceKernels.cosineBatch(query, block, offset, count, out);
+  }
+
+  @Override
+  public boolean supportsBatch() {
+    return true;
+  }
+}
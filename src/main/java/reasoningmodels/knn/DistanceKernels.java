@@ -0,0 +1,415 @@
+package reasoningmodels.knn;
+
+/**
+ * Static distance kernels over slices of double arrays, used by the distance functions and by
+ * scans over the example store. Each kernel works on a slice given by an array, an offset and a
+ * length, so it can read straight out of a larger row-major block (such as the values of a
+ * columnar example store) without copying. The loops are unrolled into four independent
+ * accumulators, which lets the processor overlap the additions instead of waiting on one running
+ * sum. The batch kernels score one query against a block of consecutive rows, which is the
+ * innermost loop of a KNN scan. The euclidean and manhattan batch kernels run on the vector
+ * implementation of BatchKernels when the running JVM has one (see getBatchKernels).
+ */
+public final class DistanceKernels {
+  // number of values summed between checks against the cutoff, a multiple of the unrolling
+  private static final int CUTOFF_STRIDE = 16;
+  // the Vector API implementation, which is only compiled into the Java 17 part of the jar
+  private static final String VECTOR_KERNELS = "reasoningmodels.knn.VectorBatchKernels";
+  private static final BatchKernels BATCH_KERNELS = DistanceKernels.loadBatchKernels();
+
+  private DistanceKernels() {
+  }
+
+  /**
+   * Gets the batch kernels the squaredL2Batch, l2Batch and l1Batch kernels run on. These are the
+   * vector kernels if they could be loaded, which takes a Java 17 or later JVM running the
+   * multi-release jar with the jdk.incubator.vector module added, and the scalar kernels
+   * otherwise. Both give exactly the same distances.
+   *
+   * @return the batch kernels in use
+   */
+  public static BatchKernels getBatchKernels() {
+    return BATCH_KERNELS;
+  }
+
+  /**
+   * Loads the vector batch kernels, falling back to the scalar ones if the class is missing or
+   * cannot be linked against the Vector API.
+   *
+   * @return the batch kernels to use
+   */
+  private static BatchKernels loadBatchKernels() {
+    try {
+      return (BatchKernels) Class.forName(VECTOR_KERNELS).getDeclaredConstructor().newInstance();
+    } catch (ReflectiveOperationException | LinkageError e) {
+      return new BatchKernels();
+    }
+  }
+
+  /**
+   * Gets the squared euclidean distance between two slices.
+   *
+   * @param a one array
+   * @param aOffset index of the first value of the slice of a
+   * @param b other array
+   * @param bOffset index of the first value of the slice of b
+   * @param length number of values in each slice
+   * @return the sum of the squared differences
+   */
+  public static double squaredL2(double[] a, int aOffset, double[] b, int bOffset, int length) {
+    double sum0 = 0.0;
+    double sum1 = 0.0;
+    double sum2 = 0.0;
+    double sum3 = 0.0;
+    int i = 0;
+    for (; i + 3 < length; i += 4) {
+      double d0 = a[aOffset + i] - b[bOffset + i];
+      double d1 = a[aOffset + i + 1] - b[bOffset + i + 1];
+      double d2 = a[aOffset + i + 2] - b[bOffset + i + 2];
+      double d3 = a[aOffset + i + 3] - b[bOffset + i + 3];
+      sum0 += d0 * d0;
+      sum1 += d1 * d1;
+      sum2 += d2 * d2;
+      sum3 += d3 * d3;
+    }
+    for (; i < length; i++) {
+      double d = a[aOffset + i] - b[bOffset + i];
+      sum0 += d * d;
+    }
+    return (sum0 + sum1) + (sum2 + sum3);
+  }
+
+  /**
+   * Gets the squared euclidean distance between two slices, abandoning the sum once it is
+   * greater than the cutoff. The sum is checked every CUTOFF_STRIDE values, and is accumulated
+   * exactly as squaredL2 accumulates it, so a sum that is not abandoned is the same value
+   * squaredL2 returns. Since the squares are not negative, an abandoned partial sum is a lower
+   * bound of the full sum.
+   *
+   * @param a one array
+   * @param aOffset index of the first value of the slice of a
+   * @param b other array
+   * @param bOffset index of the first value of the slice of b
+   * @param length number of values in each slice
+   * @param cutoff the largest sum of interest
+   * @return the sum of the squared differences if it is at most the cutoff, and a partial sum
+   *         greater than the cutoff otherwise
+   */
+  public static double squaredL2WithCutoff(double[] a, int aOffset, double[] b, int bOffset,
+                                           int length, double cutoff) {
+    double sum0 = 0.0;
+    double sum1 = 0.0;
+    double sum2 = 0.0;
+    double sum3 = 0.0;
+    int i = 0;
+    while (i + 3 < length) {
+      int end = Math.min(length - 3, i + CUTOFF_STRIDE);
+      for (; i < end; i += 4) {
+        double d0 = a[aOffset + i] - b[bOffset + i];
+        double d1 = a[aOffset + i + 1] - b[bOffset + i + 1];
+        double d2 = a[aOffset + i + 2] - b[bOffset + i + 2];
+        double d3 = a[aOffset + i + 3] - b[bOffset + i + 3];
+        sum0 += d0 * d0;
+        sum1 += d1 * d1;
+        sum2 += d2 * d2;
+        sum3 += d3 * d3;
+      }
+
+      double partial = (sum0 + sum1) + (sum2 + sum3);
+      if (partial > cutoff) {
+        return partial;
+      }
+    }
+    for (; i < length; i++) {
+      double d = a[aOffset + i] - b[bOffset + i];
+      sum0 += d * d;
+    }
+    return (sum0 + sum1) + (sum2 + sum3);
+  }
+
+  /**
+   * Gets the euclidean distance between two slices.
+   *
+   * @param a one array
+   * @param aOffset index of the first value of the slice of a
+   * @param b other array
+   * @param bOffset index of the first value of the slice of b
+   * @param length number of values in each slice
+   * @return the euclidean distance
+   */
+  public static double l2(double[] a, int aOffset, double[] b, int bOffset, int length) {
+    return Math.sqrt(DistanceKernels.squaredL2(a, aOffset, b, bOffset, length));
+  }
+
+  /**
+   * Gets the manhattan distance between two slices.
+   *
+   * @param a one array
+   * @param aOffset index of the first value of the slice of a
+   * @param b other array
+   * @param bOffset index of the first value of the slice of b
+   * @param length number of values in each slice
+   * @return the sum of the absolute differences
+   */
+  public static double l1(double[] a, int aOffset, double[] b, int bOffset, int length) {
+    double sum0 = 0.0;
+    double sum1 = 0.0;
+    double sum2 = 0.0;
+    double sum3 = 0.0;
+    int i = 0;
+    for (; i + 3 < length; i += 4) {
+      sum0 += Math.abs(a[aOffset + i] - b[bOffset + i]);
+      sum1 += Math.abs(a[aOffset + i + 1] - b[bOffset + i + 1]);
+      sum2 += Math.abs(a[aOffset + i + 2] - b[bOffset + i + 2]);
+      sum3 += Math.abs(a[aOffset + i + 3] - b[bOffset + i + 3]);
+    }
+    for (; i < length; i++) {
+      sum0 += Math.abs(a[aOffset + i] - b[bOffset + i]);
+    }
+    return (sum0 + sum1) + (sum2 + sum3);
+  }
+
+  /**
+   * Gets the manhattan distance between two slices, abandoning the sum once it is greater than
+   * the cutoff. The sum is accumulated exactly as l1 accumulates it and checked every
+   * CUTOFF_STRIDE values, so a sum that is not abandoned is the same value l1 returns.
+   *
+   * @param a one array
+   * @param aOffset index of the first value of the slice of a
+   * @param b other array
+   * @param bOffset index of the first value of the slice of b
+   * @param length number of values in each slice
+   * @param cutoff the largest sum of interest
+   * @return the sum of the absolute differences if it is at most the cutoff, and a partial sum
+   *         greater than the cutoff otherwise
+   */
+  public static double l1WithCutoff(double[] a, int aOffset, double[] b, int bOffset,
+                                    int length, double cutoff) {
+    double sum0 = 0.0;
+    double sum1 = 0.0;
+    double sum2 = 0.0;
+    double sum3 = 0.0;
+    int i = 0;
+    while (i + 3 < length) {
+      int end = Math.min(length - 3, i + CUTOFF_STRIDE);
+      for (; i < end; i += 4) {
+        sum0 += Math.abs(a[aOffset + i] - b[bOffset + i]);
+        sum1 += Math.abs(a[aOffset + i + 1] - b[bOffset + i + 1]);
+        sum2 += Math.abs(a[aOffset + i + 2] - b[bOffset + i + 2]);
+        sum3 += Math.abs(a[aOffset + i + 3] - b[bOffset + i + 3]);
+      }
+
+      double partial = (sum0 + sum1) + (sum2 + sum3);
+      if (partial > cutoff) {
+        return partial;
+      }
+    }
+    for (; i < length; i++) {
+      sum0 += Math.abs(a[aOffset + i] - b[bOffset + i]);
+    }
+    return (sum0 + sum1) + (sum2 + sum3);
+  }
+
+  /**
+   * Gets the chebyshev distance (the largest absolute difference) between two slices, stopping
+   * at the first difference greater than the cutoff. Pass positive infinity to never stop.
+   *
+   * @param a one array
+   * @param aOffset index of the first value of the slice of a
+   * @param b other array
+   * @param bOffset index of the first value of the slice of b
+   * @param length number of values in each slice
+   * @param cutoff the largest distance of interest
+   * @return the largest absolute difference if it is at most the cutoff, and a difference
+   *         greater than the cutoff otherwise
+   */
+  public static double chebyshev(double[] a, int aOffset, double[] b, int bOffset, int length,
+                                 double cutoff) {
+    double max = 0.0;
+    for (int i = 0; i < length; i++) {
+      double d = Math.abs(a[aOffset + i] - b[bOffset + i]);
+      if (d > max) {
+        if (d > cutoff) {
+          return d;
+        }
+        max = d;
+      }
+    }
+    return max;
+  }
+
+  /**
+   * Gets the sum of the absolute differences between two slices raised to the given power, which
+   * is the minkowski distance raised to that power, abandoning the sum once it is greater than
+   * the cutoff. The sum is checked every CUTOFF_STRIDE values; pass positive infinity to never
+   * abandon it.
+   *
+   * @param a one array
+   * @param aOffset index of the first value of the slice of a
+   * @param b other array
+   * @param bOffset index of the first value of the slice of b
+   * @param length number of values in each slice
+   * @param p the power
+   * @param cutoff the largest sum of interest
+   * @return the sum of the powers if it is at most the cutoff, and a partial sum greater than the
+   *         cutoff otherwise
+   */
+  public static double minkowskiSum(double[] a, int aOffset, double[] b, int bOffset, int length,
+                                    double p, double cutoff) {
+    double sum = 0.0;
+    for (int i = 0; i < length; i++) {
+      sum += Math.pow(Math.abs(a[aOffset + i] - b[bOffset + i]), p);
+      if ((i + 1) % CUTOFF_STRIDE == 0 && sum > cutoff) {
+        return sum;
+      }
+    }
+    return sum;
+  }
+
+  /**
+   * Gets the hamming distance (the number of differing values) between two slices, stopping once
+   * it is greater than the cutoff. Pass positive infinity to never stop.
+   *
+   * @param a one array
+   * @param aOffset index of the first value of the slice of a
+   * @param b other array
+   * @param bOffset index of the first value of the slice of b
+   * @param length number of values in each slice
+   * @param cutoff the largest distance of interest
+   * @return the number of differing values if it is at most the cutoff, and a partial count
+   *         greater than the cutoff otherwise
+   */
+  public static double hamming(double[] a, int aOffset, double[] b, int bOffset, int length,
+                               double cutoff) {
+    int count = 0;
+    for (int i = 0; i < length; i++) {
+      if (a[aOffset + i] != b[bOffset + i] && ++count > cutoff) {
+        return count;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Gets the dot product of two slices.
+   *
+   * @param a one array
+   * @param aOffset index of the first value of the slice of a
+   * @param b other array
+   * @param bOffset index of the first value of the slice of b
+   * @param length number of values in each slice
+   * @return the sum of the products
+   */
+  public static double dot(double[] a, int aOffset, double[] b, int bOffset, int length) {
+    double sum0 = 0.0;
+    double sum1 = 0.0;
+    double sum2 = 0.0;
+    double sum3 = 0.0;
+    int i = 0;
+    for (; i + 3 < length; i += 4) {
+      sum0 += a[aOffset + i] * b[bOffset + i];
+      sum1 += a[aOffset + i + 1] * b[bOffset + i + 1];
+      sum2 += a[aOffset + i + 2] * b[bOffset + i + 2];
+      sum3 += a[aOffset + i + 3] * b[bOffset + i + 3];
+    }
+    for (; i < length; i++) {
+      sum0 += a[aOffset + i] * b[bOffset + i];
+    }
+    return (sum0 + sum1) + (sum2 + sum3);
+  }
+
+  /**
+   * Gets the cosine distance (1 minus the cosine similarity) between two slices. If either slice
+   * is all zeros, the distance is 1 unless both are, in which case it is 0.
+   *
+   * @param a one array
+   * @param aOffset index of the first value of the slice of a
+   * @param b other array
+   * @param bOffset index of the first value of the slice of b
+   * @param length number of values in each slice
+   * @return the cosine distance, from 0 to 2
+   */
+  public static double cosine(double[] a, int aOffset, double[] b, int bOffset, int length) {
+    double normA = DistanceKernels.dot(a, aOffset, a, aOffset, length);
+    double normB = DistanceKernels.dot(b, bOffset, b, bOffset, length);
+    if (normA == 0.0 || normB == 0.0) {
+      return normA == normB ? 0.0 : 1.0;
+    }
+    return 1.0 - DistanceKernels.dot(a, aOffset, b, bOffset, length) / Math.sqrt(normA * normB);
+  }
+
+  /**
+   * Gets the squared euclidean distance from the query to each of a block of consecutive rows.
+   * Each row has as many values as the query.
+   *
+   * @param query the query values
+   * @param block the row-major block of rows
+   * @param offset index of the first value of the first row
+   * @param count number of rows to score
+   * @param out array to write the distance of each row into, starting at index 0
+   */
+  public static void squaredL2Batch(double[] query, double[] block, int offset, int count,
+                                    double[] out) {
+    BATCH_KERNELS.squaredL2(query, block, offset, count, out);
+  }
+
+  /**
+   * Gets the euclidean distance from the query to each of a block of consecutive rows. Each row
+   * has as many values as the query.
+   *
+   * @param query the query values
+   * @param block the row-major block of rows
+   * @param offset index of the first value of the first row
+   * @param count number of rows to score
+   * @param out array to write the distance of each row into, starting at index 0
+   */
+  public static void l2Batch(double[] query, double[] block, int offset, int count,
+                             double[] out) {
+    DistanceKernels.squaredL2Batch(query, block, offset, count, out);
+    for (int row = 0; row < count; row++) {
+      out[row] = Math.sqrt(out[row]);
+    }
+  }
+
+  /**
+   * Gets the manhattan distance from the query to each of a block of consecutive rows. Each row
+   * has as many values as the query.
+   *
+   * @param query the query values
+   * @param block the row-major block of rows
+   * @param offset index of the first value of the first row
+   * @param count number of rows to score
+   * @param out array to write the distance of each row into, starting at index 0
+   */
+  public static void l1Batch(double[] query, double[] block, int offset, int count,
+                             double[] out) {
+    BATCH_KERNELS.l1(query, block, offset, count, out);
+  }
+
+  /**
+   * Gets the cosine distance from the query to each of a block of consecutive rows. Each row has
+   * as many values as the query. The query's norm is only computed once.
+   *
+   * @param query the query values
+   * @param block the row-major block of rows
+   * @param offset index of the first value of the first row
+   * @param count number of rows to score
+   * @param out array to write the distance of each row into, starting at index 0
+   */
+  public static void cosineBatch(double[] query, double[] block, int offset, int count,
+                                 double[] out) {
+    int width = query.length;
+    double normQuery = DistanceKernels.dot(query, 0, query, 0, width);
+    for (int row = 0; row < count; row++) {
+      int rowOffset = offset + row * width;
+      double normRow = DistanceKernels.dot(block, rowOffset, block, rowOffset, width);
+      if (normQuery == 0.0 || normRow == 0.0) {
+        out[row] = normQuery == normRow ? 0.0 : 1.0;
+      }
+      else {
+        out[row] = 1.0 - DistanceKernels.dot(query, 0, block, rowOffset, width)
+                / Math.sqrt(normQuery * normRow);
+      }
+    }
+  }
+}
@@ -0,0 +1,60 @@
+package reasoningmodels.knn;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The distance functions KNN can be queried with, by name. Distance functions keep no state, so
+ * each named distance function is constructed once and the same instance is handed out to every
+ * caller and thread. The supported names are "euclidean," "squared-euclidean," "manhattan,"
+ * "chebyshev," "cosine," "hamming," and "minkowski-p" for any positive order p (such as
+ * "minkowski-3"). Since there is no end to the orders a query can name, Minkowski distances are
+ * not kept, and a new one is constructed on every call.
+ */
+public final class DistanceRegistry {
+  private static final String MINKOWSKI_PREFIX = "minkowski-";
+  private static final Map<String, IDistanceFunction> INSTANCES;
+
+  static {
+    Map<String, IDistanceFunction> instances = new HashMap<>();
+    instances.put("euclidean", new L2Distance());
+    instances.put("squared-euclidean", new SquaredL2Distance());
+    instances.put("manhattan", new L1Distance());
+    instances.put("chebyshev", new ChebyshevDistance());
+    instances.put("cosine", new CosineDistance());
+    instances.put("hamming", new HammingDistance());
+    INSTANCES = Collections.unmodifiableMap(instances);
+  }
+
+  private DistanceRegistry() {
+  }
+
+  /**
+   * Gets the shared instance of the distance function with the given name, or a new Minkowski
+   * distance for a "minkowski-p" name.
+   *
+   * @param name name of the distance function
+   * @return the distance function
+   */
+  public static IDistanceFunction get(String name) {
+    if (name == null) {
+      throw new IllegalArgumentException("Name of a distance function cannot be null.");
+    }
+
+    IDistanceFunction res = INSTANCES.get(name);
+    if (res != null) {
+      return res;
+    }
+
+    if (name.startsWith(MINKOWSKI_PREFIX)) {
+      try {
+        return new MinkowskiDistance(Double.parseDouble(
+                name.substring(MINKOWSKI_PREFIX.length())));
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("Supplied order of " + name + " is not a number");
+      }
+    }
+    throw new IllegalArgumentException("Supplied name is not a supported distance function");
+  }
+}
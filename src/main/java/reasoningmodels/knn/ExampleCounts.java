@@ -0,0 +1,209 @@
+package reasoningmodels.knn;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Hash-conses the rows of an example store, so an example that repeats a stored one is counted
+ * against that row instead of being stored again. Two examples are duplicates if they have the
+ * same values for every feature but the target class, and each row counts how many times it was
+ * observed with each value (code) of the target class. The rows are found through an
+ * open-addressing hash table of row numbers, which compares candidates against the values in the
+ * store, so no copy of the rows is kept.
+ */
+public class ExampleCounts implements Serializable {
+  private final IExampleStore store;
+  private final int targetColumn;
+  // row number + 1 in each slot, 0 for an empty slot
+  private int[] slots;
+  private int[] hashes;
+  // counts[row][code] is the number of observations of the row with that target code
+  private int[][] counts;
+  private int[] totals;
+  private int size;
+  private int observations;
+
+  /**
+   * Constructs an empty ExampleCounts for the rows of the given store.
+   *
+   * @param store the example store
+   * @param targetColumn the categorical column of the target class, which is left out when
+   *                     comparing rows
+   */
+  public ExampleCounts(IExampleStore store, int targetColumn) {
+    if (store == null) {
+      throw new IllegalArgumentException("Store cannot be null.");
+    }
+
+    if (targetColumn < 0 || targetColumn >= store.getCategoricalWidth()) {
+      throw new IllegalArgumentException("Target column must be a categorical column.");
+    }
+
+    this.store = store;
+    this.targetColumn = targetColumn;
+    this.slots = new int[16];
+    this.hashes = new int[0];
+    this.counts = new int[0][];
+    this.totals = new int[0];
+    this.size = 0;
+    this.observations = 0;
+  }
+
+  /**
+   * Finds the stored row with the given values for every feature but the target class.
+   *
+   * @param numerical the numerical values of the example
+   * @param categorical the categorical codes of the example
+   * @return the row, or -1 if no row has those values
+   */
+  public int find(double[] numerical, int[] categorical) {
+    int hash = this.hash(numerical, categorical);
+    for (int slot = hash & (this.slots.length - 1); this.slots[slot] != 0;
+         slot = (slot + 1) & (this.slots.length - 1)) {
+      int row = this.slots[slot] - 1;
+      if (this.hashes[row] == hash && this.matches(row, numerical, categorical)) {
+        return row;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Counts an observation of the given row with the given target code. New rows must be added in
+   * order, after they are added to the store.
+   *
+   * @param row the row observed
+   * @param targetCode the code of the observation's target value
+   */
+  public void add(int row, int targetCode) {
+    if (row < 0 || row > this.size) {
+      throw new IllegalArgumentException("Rows must be added in order.");
+    }
+
+    if (row == this.size) {
+      this.insert(row);
+    }
+
+    if (targetCode >= this.counts[row].length) {
+      this.counts[row] = Arrays.copyOf(this.counts[row], targetCode + 1);
+    }
+    this.counts[row][targetCode]++;
+    this.totals[row]++;
+    this.observations++;
+  }
+
+  /**
+   * Adds the given new row of the store to the hash table.
+   */
+  private void insert(int row) {
+    if (row == this.hashes.length) {
+      int capacity = Math.max(16, row * 2);
+      this.hashes = Arrays.copyOf(this.hashes, capacity);
+      this.counts = Arrays.copyOf(this.counts, capacity);
+      this.totals = Arrays.copyOf(this.totals, capacity);
+    }
+
+    double[] numerical = new double[this.store.getNumericalWidth()];
+    int[] categorical = new int[this.store.getCategoricalWidth()];
+    for (int column = 0; column < numerical.length; column++) {
+      numerical[column] = this.store.getValue(row, column);
+    }
+    for (int column = 0; column < categorical.length; column++) {
+      categorical[column] = this.store.getCode(row, column);
+    }
+    this.hashes[row] = this.hash(numerical, categorical);
+    this.counts[row] = new int[0];
+    this.size++;
+
+    // keep the table at most half full
+    if (this.size * 2 > this.slots.length) {
+      this.slots = new int[this.slots.length * 2];
+      for (int other = 0; other < this.size; other++) {
+        this.place(other);
+      }
+    }
+    else {
+      this.place(row);
+    }
+  }
+
+  private void place(int row) {
+    int slot = this.hashes[row] & (this.slots.length - 1);
+    while (this.slots[slot] != 0) {
+      slot = (slot + 1) & (this.slots.length - 1);
+    }
+    this.slots[slot] = row + 1;
+  }
+
+  /**
+   * Hashes the given values of every feature but the target class. Zeros of either sign hash
+   * alike, since they compare equal.
+   */
+  private int hash(double[] numerical, int[] categorical) {
+    int res = 1;
+    for (double value : numerical) {
+      long bits = value == 0.0 ? 0L : Double.doubleToLongBits(value);
+      res = 31 * res + (int) (bits ^ (bits >>> 32));
+    }
+    for (int column = 0; column < categorical.length; column++) {
+      if (column != this.targetColumn) {
+        res = 31 * res + categorical[column];
+      }
+    }
+    // spread the high bits into the low bits the table is indexed by
+    return res ^ (res >>> 16);
+  }
+
+  private boolean matches(int row, double[] numerical, int[] categorical) {
+    for (int column = 0; column < numerical.length; column++) {
+      if (this.store.getValue(row, column) != numerical[column]) {
+        return false;
+      }
+    }
+    for (int column = 0; column < categorical.length; column++) {
+      if (column != this.targetColumn && this.store.getCode(row, column) != categorical[column]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Gets the number of distinct rows counted.
+   *
+   * @return the number of rows
+   */
+  public int size() {
+    return this.size;
+  }
+
+  /**
+   * Gets the number of observations counted over every row.
+   *
+   * @return the number of observations
+   */
+  public int getObservations() {
+    return this.observations;
+  }
+
+  /**
+   * Gets the number of times the given row was observed.
+   *
+   * @param row the row
+   * @return the number of observations of the row
+   */
+  public int getTotal(int row) {
+    return this.totals[row];
+  }
+
+  /**
+   * Gets the number of times the given row was observed with the given target code.
+   *
+   * @param row the row
+   * @param targetCode the code of the target value
+   * @return the number of observations of the row with that target value
+   */
+  public int getCount(int row, int targetCode) {
+    return targetCode < this.counts[row].length ? this.counts[row][targetCode] : 0;
+  }
+}
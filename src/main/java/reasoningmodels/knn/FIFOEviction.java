@@ -0,0 +1,39 @@
+package reasoningmodels.knn;
+
+import java.io.Serializable;
+
+/**
+ * Evicts examples in the order they were stored, so the store holds a sliding window of the most
+ * recent examples. Rows are replaced in turn, which takes constant time.
+ */
+public class FIFOEviction implements IEvictionPolicy, Serializable {
+  private final int capacity;
+  // the row holding the oldest example once the store is full
+  private int oldest;
+
+  /**
+   * Constructs a FIFOEviction for a store of the given capacity.
+   *
+   * @param capacity the number of rows the store holds once it is full
+   */
+  public FIFOEviction(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Capacity must be positive.");
+    }
+
+    this.capacity = capacity;
+    this.oldest = 0;
+  }
+
+  @Override
+  public int chooseVictim() {
+    int res = this.oldest;
+    this.oldest = (this.oldest + 1) % this.capacity;
+    return res;
+  }
+
+  @Override
+  public void added(int row) {
+    // rows are appended, and then replaced, in order
+  }
+}
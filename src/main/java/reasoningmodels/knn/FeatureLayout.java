@@ -0,0 +1,334 @@
+package reasoningmodels.knn;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import reasoningmodels.classifiers.BooleanFeature;
+import reasoningmodels.classifiers.CategoricalFeature;
+import reasoningmodels.classifiers.EntryImpl;
+import reasoningmodels.classifiers.IEntry;
+import reasoningmodels.classifiers.IFeature;
+import reasoningmodels.classifiers.NumericalFeature;
+
+/**
+ * Describes how the features of a KNN model's examples map onto the columns of an
+ * IExampleStore. Numerical and boolean features each get a numerical column, and categorical
+ * features each get a categorical column whose values are encoded as integer codes. Codes are
+ * handed out per column in the order values are first seen, and each code is also mapped to the
+ * index of its value among the feature's enumerations (ignoring case, as the one-hot vectors of
+ * CategoricalFeature do), so categorical values can be compared by index without building
+ * vectors. The layout keeps the feature order of the entry it was created from, so examples can
+ * be decoded back into equivalent entries.
+ */
+public class FeatureLayout implements Serializable {
+  private final List<String> names;
+  private final Map<String, Integer> numericalColumns;
+  private final Map<String, Integer> categoricalColumns;
+  private final List<String> numericalNames;
+  private final List<String> categoricalNames;
+  private final List<Boolean> booleanColumns;
+  private final List<List<String>> dictionaries;
+  private final List<Map<String, Integer>> codes;
+  private final List<String[]> enumerations;
+  private final List<List<Integer>> enumerationIndices;
+
+  /**
+   * Constructs a FeatureLayout based on the features of the given entry.
+   *
+   * @param entry entry whose features (and feature order) define the layout
+   * @param features enumerations of each categorical feature
+   */
+  public FeatureLayout(IEntry entry, Map<String, String[]> features) {
+    if (entry == null || features == null) {
+      throw new IllegalArgumentException("Entry and features cannot be null.");
+    }
+
+    this.names = new ArrayList<>();
+    this.numericalColumns = new HashMap<>();
+    this.categoricalColumns = new HashMap<>();
+    this.numericalNames = new ArrayList<>();
+    this.categoricalNames = new ArrayList<>();
+    this.booleanColumns = new ArrayList<>();
+    this.dictionaries = new ArrayList<>();
+    this.codes = new ArrayList<>();
+    this.enumerations = new ArrayList<>();
+    this.enumerationIndices = new ArrayList<>();
+
+    for (IFeature feature : entry.getFeatures()) {
+      String name = feature.getFeatureName();
+      this.names.add(name);
+      if (feature.isCategorical()) {
+        this.categoricalColumns.put(name, this.categoricalNames.size());
+        this.categoricalNames.add(name);
+        this.dictionaries.add(new ArrayList<>());
+        this.codes.add(new HashMap<>());
+        String[] featureEnumerations = features.get(name);
+        this.enumerations.add(featureEnumerations == null ? new String[0]
+                : Arrays.copyOf(featureEnumerations, featureEnumerations.length));
+        this.enumerationIndices.add(new ArrayList<>());
+      } else {
+        this.numericalColumns.put(name, this.numericalNames.size());
+        this.numericalNames.add(name);
+        this.booleanColumns.add(feature instanceof BooleanFeature);
+      }
+    }
+  }
+
+  /**
+   * Constructs a copy of the given layout, which hands out codes to new values independently of
+   * it.
+   *
+   * @param other the layout to copy
+   */
+  public FeatureLayout(FeatureLayout other) {
+    if (other == null) {
+      throw new IllegalArgumentException("Layout cannot be null.");
+    }
+
+    this.names = new ArrayList<>(other.names);
+    this.numericalColumns = new HashMap<>(other.numericalColumns);
+    this.categoricalColumns = new HashMap<>(other.categoricalColumns);
+    this.numericalNames = new ArrayList<>(other.numericalNames);
+    this.categoricalNames = new ArrayList<>(other.categoricalNames);
+    this.booleanColumns = new ArrayList<>(other.booleanColumns);
+    this.dictionaries = new ArrayList<>();
+    this.codes = new ArrayList<>();
+    this.enumerations = new ArrayList<>(other.enumerations);
+    this.enumerationIndices = new ArrayList<>();
+    for (int column = 0; column < other.categoricalNames.size(); column++) {
+      this.dictionaries.add(new ArrayList<>(other.dictionaries.get(column)));
+      this.codes.add(new HashMap<>(other.codes.get(column)));
+      this.enumerationIndices.add(new ArrayList<>(other.enumerationIndices.get(column)));
+    }
+  }
+
+  /**
+   * Gets the names of the features in the layout, in the order of the entry it was created from.
+   *
+   * @return the feature names
+   */
+  public List<String> getFeatureNames() {
+    return new ArrayList<>(this.names);
+  }
+
+  /**
+   * Gets the number of numerical/boolean columns.
+   *
+   * @return the number of numerical columns
+   */
+  public int getNumericalWidth() {
+    return this.numericalNames.size();
+  }
+
+  /**
+   * Gets the number of categorical columns.
+   *
+   * @return the number of categorical columns
+   */
+  public int getCategoricalWidth() {
+    return this.categoricalNames.size();
+  }
+
+  /**
+   * Is the given feature categorical in this layout?
+   *
+   * @param featureName name of the feature
+   * @return true if it is a categorical column, false otherwise
+   */
+  public boolean isCategorical(String featureName) {
+    return this.categoricalColumns.containsKey(featureName);
+  }
+
+  /**
+   * Gets the column of the given feature within its (numerical or categorical) block.
+   *
+   * @param featureName name of the feature
+   * @return the column, or -1 if the feature is not in the layout
+   */
+  public int getColumn(String featureName) {
+    Integer column = this.categoricalColumns.get(featureName);
+    if (column == null) {
+      column = this.numericalColumns.get(featureName);
+    }
+    return column == null ? -1 : column;
+  }
+
+  /**
+   * Gets the feature name of the given numerical column.
+   *
+   * @param column the numerical column
+   * @return the name of the feature
+   */
+  public String getNumericalName(int column) {
+    return this.numericalNames.get(column);
+  }
+
+  /**
+   * Does the given numerical column hold a boolean feature?
+   *
+   * @param column the numerical column
+   * @return true if the column's values are all 0 or 1, false otherwise
+   */
+  public boolean isBoolean(int column) {
+    return this.booleanColumns.get(column);
+  }
+
+  /**
+   * Gets the feature name of the given categorical column.
+   *
+   * @param column the categorical column
+   * @return the name of the feature
+   */
+  public String getCategoricalName(int column) {
+    return this.categoricalNames.get(column);
+  }
+
+  /**
+   * Gets the categorical value that the given code stands for in the given column.
+   *
+   * @param column the categorical column
+   * @param code the code
+   * @return the categorical value
+   */
+  public String getCategoricalValue(int column, int code) {
+    return this.dictionaries.get(column).get(code);
+  }
+
+  /**
+   * Gets the number of codes handed out in the given categorical column. Codes run from 0 to one
+   * less than this number.
+   *
+   * @param column the categorical column
+   * @return the number of codes
+   */
+  public int getCodeCount(int column) {
+    return this.dictionaries.get(column).size();
+  }
+
+  /**
+   * Gets the number of enumerations of the feature in the given categorical column.
+   *
+   * @param column the categorical column
+   * @return the number of enumerations
+   */
+  public int getEnumerationCount(int column) {
+    return this.enumerations.get(column).length;
+  }
+
+  /**
+   * Gets the index among its feature's enumerations of the value the given code stands for.
+   *
+   * @param column the categorical column
+   * @param code the code
+   * @return the index, or -1 if the value is not one of the enumerations
+   */
+  public int getEnumerationIndex(int column, int code) {
+    return this.enumerationIndices.get(column).get(code);
+  }
+
+  /**
+   * Gets the index of the given value among the enumerations of the feature in the given
+   * categorical column, ignoring case.
+   *
+   * @param column the categorical column
+   * @param value the categorical value
+   * @return the index, or -1 if the value is not one of the enumerations
+   */
+  public int getEnumerationIndex(int column, String value) {
+    String[] columnEnumerations = this.enumerations.get(column);
+    for (int i = 0; i < columnEnumerations.length; i++) {
+      if (columnEnumerations[i].equalsIgnoreCase(value)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Gets the code of the given categorical value in the given column.
+   *
+   * @param column the categorical column
+   * @param value the categorical value
+   * @return the code, or -1 if the value has never been encoded
+   */
+  public int getCode(int column, String value) {
+    Integer code = this.codes.get(column).get(value);
+    return code == null ? -1 : code;
+  }
+
+  /**
+   * Encodes the given entry's features into the given arrays. Categorical values that have not
+   * been seen yet are given a new code. The entry must have the same features as the layout.
+   *
+   * @param entry the entry to encode
+   * @param numerical array to write numerical values into
+   * @param categorical array to write categorical codes into
+   */
+  public void encode(IEntry entry, double[] numerical, int[] categorical) {
+    for (IFeature feature : entry.getFeatures()) {
+      String name = feature.getFeatureName();
+      if (feature.isCategorical()) {
+        Integer column = this.categoricalColumns.get(name);
+        if (column == null) {
+          throw new IllegalArgumentException("Feature " + name + " is not a categorical feature "
+                  + "of the layout.");
+        }
+        categorical[column] = this.codeFor(column, feature.getCategoricalValue());
+      } else {
+        Integer column = this.numericalColumns.get(name);
+        if (column == null) {
+          throw new IllegalArgumentException("Feature " + name + " is not a numerical feature "
+                  + "of the layout.");
+        }
+        numerical[column] = feature.getValue();
+      }
+    }
+  }
+
+  /**
+   * Decodes the given row of the store back into an entry, with features in layout order.
+   *
+   * @param store store that holds the row
+   * @param row the row to decode
+   * @return an entry equivalent to the one the row was encoded from
+   */
+  public IEntry decode(IExampleStore store, int row) {
+    List<IFeature> features = new ArrayList<>();
+    for (String name : this.names) {
+      int column = this.getColumn(name);
+      if (this.isCategorical(name)) {
+        features.add(new CategoricalFeature(name,
+                this.getCategoricalValue(column, store.getCode(row, column))));
+      } else if (this.booleanColumns.get(column)) {
+        features.add(new BooleanFeature(name, store.getValue(row, column)));
+      } else {
+        features.add(new NumericalFeature(name, store.getValue(row, column)));
+      }
+    }
+    return new EntryImpl(features);
+  }
+
+  /**
+   * Gets the code for the given value in the given column, adding it to the column's
+   * dictionary if it is new.
+   *
+   * @param column the categorical column
+   * @param value the categorical value
+   * @return the code of the value
+   */
+  private int codeFor(int column, String value) {
+    Map<String, Integer> columnCodes = this.codes.get(column);
+    Integer code = columnCodes.get(value);
+    if (code == null) {
+      code = columnCodes.size();
+      columnCodes.put(value, code);
+      this.dictionaries.get(column).add(value);
+      this.enumerationIndices.get(column).add(this.getEnumerationIndex(column, value));
+    }
+    return code;
+  }
+}
@@ -0,0 +1,43 @@
+package reasoningmodels.knn;
+
+/**
+ * Represents the Hamming distance, the number of values that differ.
+ */
+public class HammingDistance extends ADistanceFunction {
+
+  /**
+   * Throws a DimensionMismatchException if the inputs have differing sizes.
+   */
+  @Override
+  public double evaluate(double[] a, double[] b) {
+    return this.evaluateWithCutoff(a, b, Double.POSITIVE_INFINITY);
+  }
+
+  @Override
+  public double evaluateWithCutoff(double[] a, double[] b, double cutoff) {
+    ADistanceFunction.checkDimensions(a, b);
+    return DistanceKernels.hamming(a, 0, b, 0, a.length, cutoff);
+  }
+
+  /**
+   * Two one-hot vectors differ in two places if their values differ, and in one if only one of
+   * them has a value.
+   */
+  @Override
+  public double evaluateCategorical(int dimensions, int a, int b) {
+    if (a == b) {
+      return 0.0;
+    }
+    return a < 0 || b < 0 ? 1.0 : 2.0;
+  }
+
+  @Override
+  public boolean isMetric() {
+    return true;
+  }
+
+  @Override
+  public boolean supportsCutoff() {
+    return true;
+  }
+}
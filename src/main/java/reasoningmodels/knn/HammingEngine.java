@@ -0,0 +1,228 @@
+package reasoningmodels.knn;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import reasoningmodels.classifiers.IEntry;
+import reasoningmodels.classifiers.IFeature;
+
+/**
+ * A bit-packed copy of the rows of an example store whose features are all categorical or
+ * boolean. Each row is packed into a few longs: a categorical value sets the bit of its index
+ * among its feature's enumerations (its one-hot vector), and a boolean value sets one bit if it
+ * is true. XOR-ing a row with a query then leaves two set bits for every categorical feature the
+ * two disagree on and one for every boolean feature they disagree on, so the distance from a
+ * query to a row comes from two Long.bitCount calls per long instead of a loop over the features.
+ * Only distance functions for which that count determines the distance are supported (see
+ * supports), and the distances are exactly those a QueryPlan computes.
+ */
+public class HammingEngine {
+  private final FeatureLayout layout;
+  private final IExampleStore store;
+  // first bit of each categorical column, and the bit of each boolean column
+  private final int[] categoricalOffsets;
+  private final int[] booleanBits;
+  // whether a row has a categorical value that is not one of the feature's enumerations
+  private final boolean[] unknownSeen;
+  private final int wordsPerRow;
+  private long[] words;
+  private int size;
+
+  /**
+   * Constructs an empty HammingEngine for the rows of the given store.
+   *
+   * @param layout the layout of the store's rows, which must have no non-boolean numerical
+   *               columns
+   * @param store the example store
+   */
+  public HammingEngine(FeatureLayout layout, IExampleStore store) {
+    if (layout == null || store == null) {
+      throw new IllegalArgumentException("Layout and store cannot be null.");
+    }
+
+    if (!HammingEngine.canPack(layout)) {
+      throw new IllegalArgumentException("Only categorical and boolean features can be packed.");
+    }
+
+    this.layout = layout;
+    this.store = store;
+    int bits = 0;
+    this.categoricalOffsets = new int[layout.getCategoricalWidth()];
+    for (int column = 0; column < this.categoricalOffsets.length; column++) {
+      this.categoricalOffsets[column] = bits;
+      bits += layout.getEnumerationCount(column);
+    }
+    this.booleanBits = new int[layout.getNumericalWidth()];
+    for (int column = 0; column < this.booleanBits.length; column++) {
+      this.booleanBits[column] = bits++;
+    }
+
+    this.unknownSeen = new boolean[layout.getCategoricalWidth()];
+    this.wordsPerRow = Math.max(1, (bits + 63) / 64);
+    this.words = new long[0];
+    this.size = 0;
+  }
+
+  /**
+   * Can the rows of the given layout be packed, i.e. are all of its features categorical or
+   * boolean?
+   *
+   * @param layout the layout
+   * @return true if the rows can be packed, false otherwise
+   */
+  public static boolean canPack(FeatureLayout layout) {
+    for (int column = 0; column < layout.getNumericalWidth(); column++) {
+      if (!layout.isBoolean(column)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Packs the given row of the store. New rows must be added in order; adding a row that was
+   * already packed packs it again, for when the store's row was replaced.
+   *
+   * @param row the row to add
+   */
+  public void add(int row) {
+    if (row < 0 || row > this.size) {
+      throw new IllegalArgumentException("Rows must be added in order.");
+    }
+
+    if (row == this.size && (this.size + 1) * this.wordsPerRow > this.words.length) {
+      this.words = Arrays.copyOf(this.words, Math.max(16, this.size * 2) * this.wordsPerRow);
+    }
+
+    int offset = row * this.wordsPerRow;
+    Arrays.fill(this.words, offset, offset + this.wordsPerRow, 0L);
+    for (int column = 0; column < this.categoricalOffsets.length; column++) {
+      int index = this.layout.getEnumerationIndex(column, this.store.getCode(row, column));
+      if (index < 0) {
+        this.unknownSeen[column] = true;
+      }
+      else {
+        HammingEngine.setBit(this.words, offset, this.categoricalOffsets[column] + index);
+      }
+    }
+    for (int column = 0; column < this.booleanBits.length; column++) {
+      if (this.store.getValue(row, column) != 0.0) {
+        HammingEngine.setBit(this.words, offset, this.booleanBits[column]);
+      }
+    }
+    if (row == this.size) {
+      this.size++;
+    }
+  }
+
+  /**
+   * Can the distance function be computed from the number of categorical and boolean features
+   * two rows disagree on? That is the case for the distances that only depend on how much each
+   * value differs, and not on the values themselves: every distance of the registry but cosine.
+   *
+   * @param distanceFunction the distance function
+   * @return true if it is supported, false otherwise
+   */
+  public static boolean supports(IDistanceFunction distanceFunction) {
+    return distanceFunction instanceof L2Distance || distanceFunction instanceof SquaredL2Distance
+            || distanceFunction instanceof L1Distance
+            || distanceFunction instanceof ChebyshevDistance
+            || distanceFunction instanceof MinkowskiDistance
+            || distanceFunction instanceof HammingDistance;
+  }
+
+  /**
+   * Compiles the distance from the given query entry to the packed rows, if possible. The query
+   * cannot be compiled if the distance function is not supported, or if the query or a row has a
+   * categorical value (for a feature in the query) that is not one of its enumerations.
+   *
+   * @param queryEntry the query entry
+   * @param distanceFunction the distance function to use
+   * @param minimums current minimum of each numerical column
+   * @param maximums current maximum of each numerical column
+   * @return the distance from the query to a row, or null if the query cannot be compiled
+   */
+  public IRowDistance compile(IEntry queryEntry, IDistanceFunction distanceFunction,
+                              double[] minimums, double[] maximums) {
+    if (!HammingEngine.supports(distanceFunction)) {
+      return null;
+    }
+
+    long[] query = new long[this.wordsPerRow];
+    long[] categoricalMask = new long[this.wordsPerRow];
+    long[] booleanMask = new long[this.wordsPerRow];
+    List<Double> mismatchDistances = new ArrayList<>();
+    int booleanCount = 0;
+    for (IFeature feature : queryEntry.getFeatures()) {
+      String featureName = feature.getFeatureName();
+      int column = this.layout.getColumn(featureName);
+      if (column < 0) {
+        continue;
+      }
+
+      if (feature.isCategorical() != this.layout.isCategorical(featureName)) {
+        throw new IllegalArgumentException("Feature " + featureName + " of the query does not "
+                + "have the same type as in the training examples.");
+      }
+
+      if (feature.isCategorical()) {
+        int dimensions = this.layout.getEnumerationCount(column);
+        int index = this.layout.getEnumerationIndex(column, feature.getCategoricalValue());
+        if (dimensions < 2 || index < 0 || this.unknownSeen[column]) {
+          return null;
+        }
+        HammingEngine.setBit(query, 0, this.categoricalOffsets[column] + index);
+        for (int i = 0; i < dimensions; i++) {
+          HammingEngine.setBit(categoricalMask, 0, this.categoricalOffsets[column] + i);
+        }
+        mismatchDistances.add(distanceFunction.evaluateCategorical(dimensions, 0, 1));
+      }
+      else if (feature.getValue() != 0.0 && feature.getValue() != 1.0) {
+        return null;
+      }
+      else {
+        booleanCount++;
+        // a column whose bounds are equal scales every value to 0, so it never disagrees
+        if (minimums[column] != maximums[column]) {
+          if (feature.getValue() != 0.0) {
+            HammingEngine.setBit(query, 0, this.booleanBits[column]);
+          }
+          HammingEngine.setBit(booleanMask, 0, this.booleanBits[column]);
+        }
+      }
+    }
+
+    // the categorical distances are summed one feature at a time, as in a QueryPlan
+    double[] categoricalDistances = new double[mismatchDistances.size() + 1];
+    for (int i = 0; i < mismatchDistances.size(); i++) {
+      if (!mismatchDistances.get(i).equals(mismatchDistances.get(0))) {
+        return null;
+      }
+      categoricalDistances[i + 1] = categoricalDistances[i] + mismatchDistances.get(i);
+    }
+    double[] booleanDistances = new double[booleanCount + 1];
+    for (int i = 0; i <= booleanCount; i++) {
+      double[] ones = new double[booleanCount];
+      Arrays.fill(ones, 0, i, 1.0);
+      booleanDistances[i] = distanceFunction.evaluate(new double[booleanCount], ones);
+    }
+
+    long[] rows = this.words;
+    int width = this.wordsPerRow;
+    return row -> {
+      int categorical = 0;
+      int booleans = 0;
+      for (int word = 0, offset = row * width; word < width; word++, offset++) {
+        long difference = rows[offset] ^ query[word];
+        categorical += Long.bitCount(difference & categoricalMask[word]);
+        booleans += Long.bitCount(difference & booleanMask[word]);
+      }
+      return categoricalDistances[categorical >>> 1] + booleanDistances[booleans];
+    };
+  }
+
+  private static void setBit(long[] words, int offset, int bit) {
+    words[offset + (bit >>> 6)] |= 1L << bit;
+  }
+}
@@ -16,17 +16,104 @@ public interface IDistanceFunction {
   double evaluate(double[] a, double[] b);
 
   /**
-   * Constructs an instance of an IDistanceFunction based on the supplied name.
+   * Evaluates the distance between the two vectors, but may stop as soon as it is known to be
+   * greater than the cutoff, so callers that only keep distances up to the cutoff skip the
+   * remaining dimensions. By default, the full distance is evaluated; implementing classes that
+   * accumulate the distance one dimension at a time should override this.
+   *
+   * @param a one vector of values
+   * @param b other vector of values
+   * @param cutoff the largest distance of interest
+   * @return the distance between the two if it is at most the cutoff, and some value greater
+   *         than the cutoff otherwise
+   */
+  default double evaluateWithCutoff(double[] a, double[] b, double cutoff) {
+    return this.evaluate(a, b);
+  }
+
+  /**
+   * Is this distance a metric, i.e. does it obey the triangle inequality, so that a vp-tree can
+   * prune with it? By default, it is not.
+   *
+   * @return true if the distance is a metric, false otherwise
+   */
+  default boolean isMetric() {
+    return false;
+  }
+
+  /**
+   * Does this distance function override evaluateWithCutoff to stop early? Row distances only
+   * pass cutoffs on to distance functions that do. By default, it does not.
+   *
+   * @return true if evaluations can be abandoned early, false otherwise
+   */
+  default boolean supportsCutoff() {
+    return false;
+  }
+
+  /**
+   * Does this distance function override evaluateBatch with a batch kernel? Row distances only
+   * score blocks of rows with evaluateBatch for distance functions that do, and otherwise score
+   * each row with its cutoff. By default, it does not.
+   *
+   * @return true if blocks of rows are evaluated at once, false otherwise
+   */
+  default boolean supportsBatch() {
+    return false;
+  }
+
+  /**
+   * Evaluates the distance between the one-hot vectors of two categorical values, given the
+   * index of each value among the feature's enumerations (or -1 for a value that is not one of
+   * them, whose vector is all zeros). By default, the vectors are built and evaluated;
+   * implementing classes should override this with a closed form, since it only depends on
+   * whether each value is known and whether they are equal.
+   *
+   * @param dimensions number of enumerations of the feature
+   * @param a index of one value, or -1
+   * @param b index of the other value, or -1
+   * @return the distance between the two values' vectors
+   */
+  default double evaluateCategorical(int dimensions, int a, int b) {
+    double[] aVector = new double[dimensions];
+    double[] bVector = new double[dimensions];
+    if (a >= 0) {
+      aVector[a] = 1.0;
+    }
+    if (b >= 0) {
+      bVector[b] = 1.0;
+    }
+    return this.evaluate(aVector, bVector);
+  }
+
+  /**
+   * Evaluates the distance from the query to each of a block of consecutive rows, where each row
+   * has as many values as the query. By default, each row is copied out and evaluated on its
+   * own; implementing classes with a batch kernel (see DistanceKernels) should override this.
+   *
+   * @param query the query values
+   * @param block the row-major block of rows
+   * @param offset index of the first value of the first row
+   * @param count number of rows to evaluate
+   * @param out array to write the distance of each row into, starting at index 0
+   */
+  default void evaluateBatch(double[] query, double[] block, int offset, int count,
+                             double[] out) {
+    double[] row = new double[query.length];
+    for (int i = 0; i < count; i++) {
+      System.arraycopy(block, offset + i * query.length, row, 0, query.length);
+      out[i] = this.evaluate(query, row);
+    }
+  }
+
+  /**
+   * Gets the IDistanceFunction with the supplied name. Named distance functions are shared, so
+   * this only constructs a new instance for a Minkowski distance (see DistanceRegistry).
    *
    * @param name of the distance function
    * @return the corresponding distance function
    */
   static IDistanceFunction createDistanceFunction(String name) {
-    switch (name) {
-      case "euclidean":
-        return new L2Distance();
-      default:
-        throw new IllegalArgumentException("Supplied name is not a supported distance function");
-    }
+    return DistanceRegistry.get(name);
   }
 }
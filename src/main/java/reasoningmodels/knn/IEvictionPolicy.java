@@ -0,0 +1,57 @@
+package reasoningmodels.knn;
+
+/**
+ * This interface represents how a KNN model with a capacity chooses which example to give up
+ * once it is full. When a full model is trained, the policy either picks the row the new example
+ * replaces or discards the new example, so the number of stored examples never exceeds the
+ * capacity. Policies are told about every row that is stored and every row that is among the
+ * nearest neighbors of a query.
+ */
+public interface IEvictionPolicy {
+
+  /**
+   * Chooses the row a new example replaces, once every row of the store is in use.
+   *
+   * @return the row to replace, or -1 to discard the new example instead
+   */
+  int chooseVictim();
+
+  /**
+   * Notes that a new example was stored in the given row, either appended or replacing the
+   * row's previous example.
+   *
+   * @param row the row
+   */
+  void added(int row);
+
+  /**
+   * Notes that the example in the given row was among the nearest neighbors of a query. By
+   * default, matches are ignored.
+   *
+   * @param row the row
+   */
+  default void matched(int row) {
+  }
+
+  /**
+   * Constructs an instance of an IEvictionPolicy based on the supplied name: "fifo,"
+   * "reservoir," or "least-recently-matched."
+   *
+   * @param name of the eviction policy
+   * @param capacity the number of rows the store holds once it is full
+   * @param seed seed of the random choices of the policies that make any
+   * @return the corresponding eviction policy
+   */
+  static IEvictionPolicy createEvictionPolicy(String name, int capacity, long seed) {
+    switch (name) {
+      case "fifo":
+        return new FIFOEviction(capacity);
+      case "reservoir":
+        return new ReservoirEviction(capacity, seed);
+      case "least-recently-matched":
+        return new LeastRecentlyMatchedEviction(capacity);
+      default:
+        throw new IllegalArgumentException("Supplied name is not a supported eviction policy");
+    }
+  }
+}
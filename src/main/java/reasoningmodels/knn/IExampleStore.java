@@ -0,0 +1,76 @@
+package reasoningmodels.knn;
+
+/**
+ * This interface represents the storage for the training examples of a KNN model. Rather than
+ * holding on to entries and their feature objects, implementing classes hold each example as a
+ * row of primitive values: numerical/boolean features as doubles, and categorical features as
+ * integer codes (see FeatureLayout for how features map to columns and codes). Rows are
+ * numbered in the order they were added, starting at 0.
+ */
+public interface IExampleStore {
+
+  /**
+   * Gets the number of examples (rows) in the store.
+   *
+   * @return the number of rows
+   */
+  int size();
+
+  /**
+   * Gets the number of numerical/boolean columns in each row.
+   *
+   * @return the number of numerical columns
+   */
+  int getNumericalWidth();
+
+  /**
+   * Gets the number of categorical columns in each row.
+   *
+   * @return the number of categorical columns
+   */
+  int getCategoricalWidth();
+
+  /**
+   * Appends a row to the store. The given arrays are copied, so callers may reuse them.
+   *
+   * @param numerical the numerical values of the row, of length getNumericalWidth()
+   * @param categorical the categorical codes of the row, of length getCategoricalWidth()
+   * @return the index of the new row
+   */
+  int add(double[] numerical, int[] categorical);
+
+  /**
+   * Replaces the values of an existing row. The given arrays are copied, so callers may reuse
+   * them.
+   *
+   * @param row the row to replace
+   * @param numerical the new numerical values of the row, of length getNumericalWidth()
+   * @param categorical the new categorical codes of the row, of length getCategoricalWidth()
+   */
+  void set(int row, double[] numerical, int[] categorical);
+
+  /**
+   * Drops every row from the given one on, keeping the rows before it.
+   *
+   * @param size the number of rows to keep
+   */
+  void truncate(int size);
+
+  /**
+   * Gets the raw (unscaled) value of a numerical column in the given row.
+   *
+   * @param row the row
+   * @param column the numerical column
+   * @return the raw value
+   */
+  double getValue(int row, int column);
+
+  /**
+   * Gets the code of a categorical column in the given row.
+   *
+   * @param row the row
+   * @param column the categorical column
+   * @return the categorical code
+   */
+  int getCode(int row, int column);
+}
@@ -0,0 +1,62 @@
+package reasoningmodels.knn;
+
+import java.util.List;
+
+/**
+ * This interface represents an index over the rows of a KNN model's example store that finds
+ * the nearest rows to a query without scoring every row. Implementing classes must find exactly
+ * the rows a full scan with the same distance would find. Rows are added to the index as the
+ * model is trained, and some indexes can also remove the rows a bounded model replaces.
+ */
+public interface INeighborIndex {
+
+  /**
+   * Adds the given row of the example store to the index.
+   *
+   * @param row the row to add
+   */
+  void add(int row);
+
+  /**
+   * Removes the given row from the index, before its example is replaced in the store, so the
+   * row can be added again with its new example. By default, rows cannot be removed, and the
+   * index must be rebuilt instead.
+   *
+   * @param row the row to remove
+   * @return true if the row was removed, false if this index cannot remove rows
+   */
+  default boolean remove(int row) {
+    return false;
+  }
+
+  /**
+   * Can this index answer queries that use the given distance function and features?
+   *
+   * @param distanceFunction the distance function of the query
+   * @param queryFeatures names of the features in the query
+   * @return true if it can, false otherwise
+   */
+  boolean supports(IDistanceFunction distanceFunction, List<String> queryFeatures);
+
+  /**
+   * Is this index tied to the min-max bounds of the model when it was built? If so, it must be
+   * replaced when the bounds change; if not, it applies the bounds given to each search.
+   *
+   * @return true if the index must be rebuilt when the bounds change, false otherwise
+   */
+  boolean isTiedToBounds();
+
+  /**
+   * Offers the rows nearest to the query to the given heap. Rows that cannot be nearer than the
+   * heap's worst neighbor may be skipped.
+   *
+   * @param point the scaled value of each numerical column in the query, or NaN for columns
+   *              that are not in the query
+   * @param minimums current minimum of each numerical column
+   * @param maximums current maximum of each numerical column
+   * @param distance the distance from the query to a row
+   * @param nearest heap to offer the nearest rows to
+   */
+  void search(double[] point, double[] minimums, double[] maximums, IRowDistance distance,
+              NeighborHeap nearest);
+}
@@ -0,0 +1,56 @@
+package reasoningmodels.knn;
+
+/**
+ * This interface represents the distance from a fixed query to the rows of an example store.
+ * Neighbor indexes use it to score the candidate rows they do not prune.
+ */
+public interface IRowDistance {
+
+  /**
+   * Calculates the distance between the query and the given row.
+   *
+   * @param row the row of the example store
+   * @return the distance between the query and the row
+   */
+  double distanceTo(int row);
+
+  /**
+   * Calculates the distance between the query and the given row, but may stop as soon as it is
+   * known to be greater than the cutoff. Scans pass the distance of the worst neighbor they keep,
+   * so a row that cannot be kept is abandoned early. By default, the full distance is calculated.
+   *
+   * @param row the row of the example store
+   * @param cutoff the largest distance of interest
+   * @return the distance between the query and the row if it is at most the cutoff, and some
+   *         value greater than the cutoff otherwise
+   */
+  default double distanceTo(int row, double cutoff) {
+    return this.distanceTo(row);
+  }
+
+  /**
+   * Calculates the distance between the query and each of a block of consecutive rows at once,
+   * which scans try before scoring the rows one at a time. Since the distances are calculated in
+   * full, implementing classes should only do this when scoring the block at once is faster than
+   * abandoning rows early. By default, blocks are not scored and false is returned.
+   *
+   * @param from first row of the block
+   * @param to row after the last row of the block
+   * @param out array to write the distance of each row into, starting at index 0
+   * @return true if the distances were written, false if each row must be scored on its own
+   */
+  default boolean distancesTo(int from, int to, double[] out) {
+    return false;
+  }
+
+  /**
+   * Gets a row distance for the same query that can be used on another thread alongside this
+   * one. By default, this row distance is returned, which is only correct if it keeps no
+   * scratch state; implementing classes that do must override this.
+   *
+   * @return the copy
+   */
+  default IRowDistance copy() {
+    return this;
+  }
+}
@@ -0,0 +1,257 @@
+package reasoningmodels.knn;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An inverted index from each categorical value of an example store to the rows that have it.
+ * To search it, the rows are counted by how many of the query's categorical values they share
+ * and are scored in order of that count, most shared first. A row that shares s of the query's
+ * m categorical values disagrees with it on the other m - s, so its distance is at least the sum
+ * of the m - s smallest mismatch distances of the query (see QueryPlan.getMismatchDistance).
+ * Once that bound exceeds the distance of the k-th nearest row found so far, no row sharing s
+ * values or fewer can be nearer, and the search stops. Since NeighborHeap breaks ties by row and
+ * rows are only skipped when their bound is strictly greater, the search keeps exactly the rows
+ * a scan would.
+ */
+public class InvertedIndex {
+  // slack for the rounding of the bound, which sums the mismatch distances in another order
+  private static final double TOLERANCE = 1e-9;
+  // a search is worth it when the rows hold at least this many times the query's postings
+  private static final int SELECTIVITY = 4;
+
+  private final IExampleStore store;
+  // postings.get(column).get(code) holds the rows with the given code
+  private final List<List<Postings>> postings;
+  // positions[column][row] is where the row is in the postings of its code in that column
+  private int[][] positions;
+  private int size;
+
+  /**
+   * Constructs an empty InvertedIndex for the rows of the given store.
+   *
+   * @param layout the layout of the store's rows
+   * @param store the example store
+   */
+  public InvertedIndex(FeatureLayout layout, IExampleStore store) {
+    if (layout == null || store == null) {
+      throw new IllegalArgumentException("Layout and store cannot be null.");
+    }
+
+    this.store = store;
+    this.postings = new ArrayList<>();
+    for (int column = 0; column < layout.getCategoricalWidth(); column++) {
+      this.postings.add(new ArrayList<>());
+    }
+    this.positions = new int[layout.getCategoricalWidth()][0];
+    this.size = 0;
+  }
+
+  /**
+   * Adds the given row of the store to the postings of its categorical values. New rows must be
+   * added in order; a row that was removed (see remove) can be added again.
+   *
+   * @param row the row to add
+   */
+  public void add(int row) {
+    if (row < 0 || row > this.size) {
+      throw new IllegalArgumentException("Rows must be added in order.");
+    }
+
+    for (int column = 0; column < this.postings.size(); column++) {
+      if (row == this.positions[column].length) {
+        this.positions[column] = Arrays.copyOf(this.positions[column], Math.max(16, row * 2));
+      }
+      List<Postings> columnPostings = this.postings.get(column);
+      int code = this.store.getCode(row, column);
+      while (columnPostings.size() <= code) {
+        columnPostings.add(new Postings());
+      }
+      Postings rows = columnPostings.get(code);
+      this.positions[column][row] = rows.size;
+      rows.add(row);
+    }
+    if (row == this.size) {
+      this.size++;
+    }
+  }
+
+  /**
+   * Removes the given row from the postings of its current categorical values, before the row
+   * is replaced in the store, in constant time per column. Until it is added again, searches
+   * will not offer it.
+   *
+   * @param row the row to remove
+   */
+  public void remove(int row) {
+    for (int column = 0; column < this.postings.size(); column++) {
+      Postings rows = this.postings.get(column).get(this.store.getCode(row, column));
+      int moved = rows.remove(this.positions[column][row]);
+      this.positions[column][moved] = this.positions[column][row];
+    }
+  }
+
+  /**
+   * Are the postings of the query's categorical values few enough, next to the number of rows,
+   * for a search to be cheaper than a scan? A search reads every posting of the query's values,
+   * so it only pays off when most rows share none of them.
+   *
+   * @param plan the compiled query
+   * @return true if the postings of the query's values are at most a quarter of the rows
+   */
+  public boolean isSelective(QueryPlan plan) {
+    if (plan == null) {
+      throw new IllegalArgumentException("Plan cannot be null.");
+    }
+
+    long total = 0;
+    for (int i = 0; i < plan.getCategoricalCount(); i++) {
+      Postings rows = this.postingsOf(plan, i);
+      total += rows == null ? 0 : rows.size;
+    }
+    return total * SELECTIVITY <= this.size;
+  }
+
+  /**
+   * Gets the postings of the query's value of the given categorical feature.
+   *
+   * @return the postings, or null if no row has that value
+   */
+  private Postings postingsOf(QueryPlan plan, int feature) {
+    List<Postings> columnPostings = this.postings.get(plan.getCategoricalColumn(feature));
+    int code = plan.getQueryCode(feature);
+    return code >= 0 && code < columnPostings.size() ? columnPostings.get(code) : null;
+  }
+
+  /**
+   * Offers the rows that may be among the k nearest to the query of the given plan to the heap,
+   * in order of how many categorical values they share with the query. Only the postings of the
+   * query's values are sorted; the rows that share none of them are visited last, in order, and
+   * only if their bound does not end the search first.
+   *
+   * @param plan the compiled query, which gives its categorical values and mismatch distances
+   * @param distance the distance from the query to a row
+   * @param nearest heap to offer rows to
+   * @return the number of rows that were scored
+   */
+  public int search(QueryPlan plan, IRowDistance distance, NeighborHeap nearest) {
+    if (plan == null || distance == null || nearest == null) {
+      throw new IllegalArgumentException("Cannot search with null arguments.");
+    }
+
+    int features = plan.getCategoricalCount();
+    double[] mismatchDistances = new double[features];
+    int total = 0;
+    for (int i = 0; i < features; i++) {
+      mismatchDistances[i] = plan.getMismatchDistance(i);
+      Postings rows = this.postingsOf(plan, i);
+      total += rows == null ? 0 : rows.size;
+    }
+    // every posting of the query's values, so a row is listed once per value it shares
+    int[] touched = new int[total];
+    for (int i = 0, offset = 0; i < features; i++) {
+      Postings rows = this.postingsOf(plan, i);
+      if (rows != null) {
+        System.arraycopy(rows.rows, 0, touched, offset, rows.size);
+        offset += rows.size;
+      }
+    }
+    Arrays.sort(touched);
+
+    // bounds[j] is the least distance of a row that disagrees with the query on j features
+    Arrays.sort(mismatchDistances);
+    double[] bounds = new double[features + 1];
+    for (int j = 0; j < features; j++) {
+      bounds[j + 1] = bounds[j] + mismatchDistances[j];
+    }
+
+    // group the touched rows by the number of values they share, keeping rows in order within a
+    // group; a row that shares s values is a run of s equal rows in touched
+    int[] groupStarts = new int[features + 1];
+    int distinct = 0;
+    for (int i = 0, run; i < total; i += run) {
+      run = InvertedIndex.runLength(touched, i);
+      groupStarts[features - run + 1]++;
+      distinct++;
+    }
+    for (int group = 0; group < features; group++) {
+      groupStarts[group + 1] += groupStarts[group];
+    }
+    int[] order = new int[distinct];
+    int[] next = Arrays.copyOf(groupStarts, features);
+    for (int i = 0, run; i < total; i += run) {
+      run = InvertedIndex.runLength(touched, i);
+      order[next[features - run]++] = touched[i];
+    }
+
+    int scored = 0;
+    for (int mismatches = 0; mismatches <= features; mismatches++) {
+      // the worst distance is infinite until the heap is full, unless it keeps a radius
+      if (InvertedIndex.exceeds(bounds[mismatches], nearest.worstDistance())) {
+        break;
+      }
+
+      if (mismatches < features) {
+        for (int i = groupStarts[mismatches]; i < groupStarts[mismatches + 1]; i++) {
+          nearest.offer(order[i], distance.distanceTo(order[i], nearest.worstDistance()));
+          scored++;
+        }
+        continue;
+      }
+
+      // the rows that share no value, skipping the touched rows as they come up in order
+      for (int row = 0, i = 0; row < this.size; row++) {
+        if (i < total && touched[i] == row) {
+          i += InvertedIndex.runLength(touched, i);
+          continue;
+        }
+        nearest.offer(row, distance.distanceTo(row, nearest.worstDistance()));
+        scored++;
+      }
+    }
+    return scored;
+  }
+
+  /**
+   * Gets the number of times the row at the given position of the sorted rows repeats.
+   */
+  private static int runLength(int[] rows, int start) {
+    int end = start + 1;
+    while (end < rows.length && rows[end] == rows[start]) {
+      end++;
+    }
+    return end - start;
+  }
+
+  private static boolean exceeds(double bound, double worst) {
+    return bound > worst + TOLERANCE * Math.max(1.0, worst);
+  }
+
+  /**
+   * A growable list of rows.
+   */
+  private static class Postings {
+    private int[] rows = new int[4];
+    private int size = 0;
+
+    private void add(int row) {
+      if (this.size == this.rows.length) {
+        this.rows = Arrays.copyOf(this.rows, this.size * 2);
+      }
+      this.rows[this.size++] = row;
+    }
+
+    /**
+     * Removes the row at the given position by moving the last row into its place, so the rows
+     * are no longer in order.
+     *
+     * @return the row now at the position, which is the removed row if it was the last
+     */
+    private int remove(int position) {
+      int removed = this.rows[position];
+      this.rows[position] = this.rows[--this.size];
+      return position == this.size ? removed : this.rows[position];
+    }
+  }
+}
@@ -0,0 +1,378 @@
+package reasoningmodels.knn;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An implementation of INeighborIndex as a bucketed KD-tree over the raw numerical columns of
+ * the example store. Rows are inserted into leaf buckets as they are added, and a bucket that
+ * overflows is split at the median of its widest column. If an insert leaves the tree much
+ * deeper than a balanced tree would be (e.g. when rows arrive sorted), the subtree that is most
+ * out of balance is rebuilt with median splits, as in a scapegoat tree, so inserts stay amortized
+ * logarithmic. The tree only supports euclidean distance. A search prunes a subtree once the
+ * distance from the query to the subtree's cell, over the numerical columns in the query, is
+ * greater than the heap's worst neighbor. Categorical features only add to the distance, so
+ * pruning never drops a row that a full scan would keep. Min-max scaling keeps the order of the
+ * values in each column, so the splits stay valid whatever the bounds are: a search scales the
+ * query's offset from each split with the bounds it is given, which applies them as a diagonal
+ * metric. The tree therefore never has to be rebuilt when the bounds of the model change.
+ */
+public class KDTreeIndex implements INeighborIndex {
+  private static final int BUCKET_SIZE = 16;
+  // a subtree is out of balance if one child holds more than this fraction of its rows
+  private static final double BALANCE = 0.7;
+
+  private final IExampleStore store;
+  // least and greatest value of each column among the added rows, to compare spreads with
+  private final double[] lows;
+  private final double[] highs;
+  private Node root;
+
+  /**
+   * Constructs an empty KDTreeIndex over the given store.
+   *
+   * @param store the example store whose rows are indexed
+   */
+  public KDTreeIndex(IExampleStore store) {
+    if (store == null) {
+      throw new IllegalArgumentException("Store cannot be null.");
+    }
+
+    this.store = store;
+    this.lows = new double[store.getNumericalWidth()];
+    this.highs = new double[store.getNumericalWidth()];
+    Arrays.fill(this.lows, Double.POSITIVE_INFINITY);
+    Arrays.fill(this.highs, Double.NEGATIVE_INFINITY);
+    this.root = new Node();
+  }
+
+  @Override
+  public void add(int row) {
+    for (int dimension = 0; dimension < this.lows.length; dimension++) {
+      this.lows[dimension] = Math.min(this.lows[dimension], this.coordinate(row, dimension));
+      this.highs[dimension] = Math.max(this.highs[dimension], this.coordinate(row, dimension));
+    }
+
+    Node[] path = new Node[8];
+    int depth = 0;
+    Node node = this.root;
+    while (!node.isLeaf()) {
+      if (depth == path.length) {
+        path = Arrays.copyOf(path, depth * 2);
+      }
+      path[depth++] = node;
+      node.size++;
+      node = this.coordinate(row, node.dimension) < node.split ? node.left : node.right;
+    }
+
+    node.add(row);
+    if (node.size >= node.splitAt && !this.split(node, node.rows, 0, node.size)) {
+      // every row in the bucket has the same coordinates, so wait for it to double
+      node.splitAt = node.size * 2;
+    }
+
+    if (depth > this.maxBalancedDepth()) {
+      for (int i = depth - 1; i >= 0; i--) {
+        Node scapegoat = path[i];
+        if (Math.max(scapegoat.left.size, scapegoat.right.size) > BALANCE * scapegoat.size) {
+          this.rebuild(scapegoat);
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Removes the given row from the bucket its coordinates lead to. The splits and the spread of
+   * each column are kept, so the tree may be less balanced until a later insert rebuilds the
+   * subtree that is most out of balance.
+   *
+   * @param row the row to remove
+   * @return true, since a KD-tree can always remove rows
+   */
+  @Override
+  public boolean remove(int row) {
+    Node node = this.root;
+    while (!node.isLeaf()) {
+      node.size--;
+      node = this.coordinate(row, node.dimension) < node.split ? node.left : node.right;
+    }
+    node.remove(row);
+    return true;
+  }
+
+  @Override
+  public boolean supports(IDistanceFunction distanceFunction, List<String> queryFeatures) {
+    return distanceFunction instanceof L2Distance;
+  }
+
+  @Override
+  public boolean isTiedToBounds() {
+    return false;
+  }
+
+  @Override
+  public void search(double[] point, double[] minimums, double[] maximums, IRowDistance distance,
+                     NeighborHeap nearest) {
+    this.search(this.root, point, minimums, maximums, new double[point.length], 0.0, distance,
+            nearest);
+  }
+
+  /**
+   * Searches the subtree at the given node. The offsets hold, for each column, how far the
+   * scaled query is from the node's cell along that column, and boundSquared is the sum of their
+   * squares. A split is scaled the same way as a row's value, and scaling never reverses the order
+   * of two values, so no row across a split is nearer along its column than the scaled split.
+   */
+  private void search(Node node, double[] point, double[] minimums, double[] maximums,
+                      double[] offsets, double boundSquared, IRowDistance distance,
+                      NeighborHeap nearest) {
+    if (node.isLeaf()) {
+      for (int i = 0; i < node.size; i++) {
+        nearest.offer(node.rows[i],
+                distance.distanceTo(node.rows[i], nearest.worstDistance()));
+      }
+      return;
+    }
+
+    double queryValue = point[node.dimension];
+    // columns that are not in the query do not add to the distance, so neither side can be pruned
+    if (Double.isNaN(queryValue)) {
+      this.search(node.left, point, minimums, maximums, offsets, boundSquared, distance, nearest);
+      this.search(node.right, point, minimums, maximums, offsets, boundSquared, distance,
+              nearest);
+      return;
+    }
+
+    double difference = queryValue - KNN.scale(node.split, minimums[node.dimension],
+            maximums[node.dimension]);
+    Node near = difference < 0 ? node.left : node.right;
+    Node far = difference < 0 ? node.right : node.left;
+    this.search(near, point, minimums, maximums, offsets, boundSquared, distance, nearest);
+
+    double oldOffset = offsets[node.dimension];
+    double farBoundSquared = boundSquared - oldOffset * oldOffset + difference * difference;
+    double worst = nearest.worstDistance();
+    if (farBoundSquared <= worst * worst) {
+      offsets[node.dimension] = Math.abs(difference);
+      this.search(far, point, minimums, maximums, offsets, farBoundSquared, distance, nearest);
+      offsets[node.dimension] = oldOffset;
+    }
+  }
+
+  /**
+   * Turns the given leaf into an inner node whose children hold the given rows, split at the
+   * median of the rows' widest column. Does nothing if every row has the same coordinates.
+   *
+   * @return true if the leaf was split, false otherwise
+   */
+  private boolean split(Node leaf, int[] rows, int from, int to) {
+    int dimension = this.widestDimension(rows, from, to);
+    if (dimension < 0) {
+      return false;
+    }
+
+    int middle = (from + to) >>> 1;
+    this.select(rows, from, to, middle, dimension);
+    double median = this.coordinate(rows[middle], dimension);
+    double split = median;
+    int boundary = this.partition(rows, from, to, dimension, split);
+    // the median is the smallest value, so split above it instead so both sides are non-empty
+    if (boundary == from) {
+      split = Double.POSITIVE_INFINITY;
+      for (int i = from; i < to; i++) {
+        double value = this.coordinate(rows[i], dimension);
+        if (value > median && value < split) {
+          split = value;
+        }
+      }
+      boundary = this.partition(rows, from, to, dimension, split);
+    }
+
+    Node left = this.build(rows, from, boundary);
+    Node right = this.build(rows, boundary, to);
+    leaf.dimension = dimension;
+    leaf.split = split;
+    leaf.left = left;
+    leaf.right = right;
+    leaf.rows = null;
+    leaf.size = to - from;
+    return true;
+  }
+
+  /**
+   * Builds a balanced subtree holding the given rows.
+   */
+  private Node build(int[] rows, int from, int to) {
+    Node node = new Node();
+    if (to - from < node.splitAt) {
+      System.arraycopy(rows, from, node.rows, 0, to - from);
+      node.size = to - from;
+    } else if (!this.split(node, rows, from, to)) {
+      node.rows = Arrays.copyOfRange(rows, from, to);
+      node.size = to - from;
+      node.splitAt = node.size * 2;
+    }
+    return node;
+  }
+
+  /**
+   * Rebuilds the subtree at the given node with median splits, in place.
+   */
+  private void rebuild(Node node) {
+    int[] rows = new int[node.size];
+    this.collect(node, rows, 0);
+    Node rebuilt = this.build(rows, 0, rows.length);
+    node.dimension = rebuilt.dimension;
+    node.split = rebuilt.split;
+    node.left = rebuilt.left;
+    node.right = rebuilt.right;
+    node.rows = rebuilt.rows;
+    node.size = rebuilt.size;
+    node.splitAt = rebuilt.splitAt;
+  }
+
+  /**
+   * Copies the rows of the subtree at the given node into the given array.
+   *
+   * @return the index after the last copied row
+   */
+  private int collect(Node node, int[] rows, int index) {
+    if (node.isLeaf()) {
+      System.arraycopy(node.rows, 0, rows, index, node.size);
+      return index + node.size;
+    }
+    return this.collect(node.right, rows, this.collect(node.left, rows, index));
+  }
+
+  /**
+   * Gets the deepest the tree may get before its most unbalanced subtree is rebuilt: the depth
+   * of a tree with full buckets whose children each hold at most BALANCE of their parent's rows.
+   */
+  private int maxBalancedDepth() {
+    double leaves = (double) this.root.size / BUCKET_SIZE + 1;
+    return (int) Math.ceil(Math.log(leaves) / Math.log(1 / BALANCE)) + 1;
+  }
+
+  /**
+   * Gets the column whose values are most spread out among the given rows, relative to the
+   * spread of the column among every added row, so columns in large units do not always win.
+   *
+   * @return the column, or -1 if all rows have the same coordinates
+   */
+  private int widestDimension(int[] rows, int from, int to) {
+    int widest = -1;
+    double widestSpread = 0.0;
+    for (int dimension = 0; dimension < this.lows.length; dimension++) {
+      double min = Double.POSITIVE_INFINITY;
+      double max = Double.NEGATIVE_INFINITY;
+      for (int i = from; i < to; i++) {
+        double value = this.coordinate(rows[i], dimension);
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+      }
+      double spread = (max - min) / (this.highs[dimension] - this.lows[dimension]);
+      if (max > min && spread > widestSpread) {
+        widest = dimension;
+        widestSpread = spread;
+      }
+    }
+    return widest;
+  }
+
+  /**
+   * Reorders the given rows so rows whose coordinate is less than the split come first.
+   *
+   * @return the index of the first row that is not less than the split
+   */
+  private int partition(int[] rows, int from, int to, int dimension, double split) {
+    int boundary = from;
+    for (int i = from; i < to; i++) {
+      if (this.coordinate(rows[i], dimension) < split) {
+        KDTreeIndex.swap(rows, i, boundary++);
+      }
+    }
+    return boundary;
+  }
+
+  /**
+   * Reorders the given rows so the row at the given index is the one that would be there if the
+   * rows were sorted by the given column (quickselect).
+   */
+  private void select(int[] rows, int from, int to, int index, int dimension) {
+    int low = from;
+    int high = to - 1;
+    while (low < high) {
+      double pivot = this.coordinate(rows[(low + high) >>> 1], dimension);
+      int i = low;
+      int j = high;
+      while (i <= j) {
+        while (this.coordinate(rows[i], dimension) < pivot) {
+          i++;
+        }
+        while (this.coordinate(rows[j], dimension) > pivot) {
+          j--;
+        }
+        if (i <= j) {
+          KDTreeIndex.swap(rows, i++, j--);
+        }
+      }
+      if (index <= j) {
+        high = j;
+      } else if (index >= i) {
+        low = i;
+      } else {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Gets the raw value of the given row in the given column.
+   */
+  private double coordinate(int row, int dimension) {
+    return this.store.getValue(row, dimension);
+  }
+
+  private static void swap(int[] rows, int i, int j) {
+    int row = rows[i];
+    rows[i] = rows[j];
+    rows[j] = row;
+  }
+
+  /**
+   * A node of the tree. Leaves hold a bucket of rows; inner nodes send rows whose coordinate in
+   * the node's dimension is less than the split to the left, and the rest to the right. Every
+   * node knows how many rows are in its subtree.
+   */
+  private static class Node {
+    private int dimension = -1;
+    private double split;
+    private Node left;
+    private Node right;
+    private int[] rows = new int[BUCKET_SIZE + 1];
+    private int size = 0;
+    // number of rows at which a leaf tries to split
+    private int splitAt = BUCKET_SIZE + 1;
+
+    private boolean isLeaf() {
+      return this.rows != null;
+    }
+
+    private void add(int row) {
+      if (this.size == this.rows.length) {
+        this.rows = Arrays.copyOf(this.rows, this.rows.length * 2);
+      }
+      this.rows[this.size++] = row;
+    }
+
+    private void remove(int row) {
+      for (int i = 0; i < this.size; i++) {
+        if (this.rows[i] == row) {
+          this.rows[i] = this.rows[--this.size];
+          return;
+        }
+      }
+    }
+  }
+}
@@ -4,26 +4,92 @@ import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.apache.commons.lang3.tuple.Pair;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
 
 import reasoningmodels.classifiers.AFlatClassifier;
+import reasoningmodels.classifiers.EntryImpl;
 import reasoningmodels.classifiers.IEntry;
 import reasoningmodels.classifiers.IFeature;
 
-import static java.util.stream.Collectors.toMap;
-
 /**
  * This class extends from AFlatClassifier and represents a K-nearest neighbor reasoning model.
  * Aside from details mentioned in AFlatClassifier, this class also contains a min-max table for
- * each numerical feature to allow for easy scaling when calculating distance. It requires a
- * distance function when querying.
+ * each numerical feature, which is used to scale raw numerical values (of both the query and the
+ * examples) when calculating distance. It requires a distance function when querying. Training
+ * examples are not kept as entries; they are encoded into a columnar example store of primitive
+ * values, laid out by a FeatureLayout created from the first training example. A neighbor index
+ * (a KD-tree or a vantage-point tree) can optionally be chosen with the "index" model parameter,
+ * in which case queries it supports use the index instead of scanning every example. Queries
+ * can also ask for an approximate search, which only scores the examples that share a bucket with
+ * the query in a set of locality-sensitive hash tables (see LSHIndex). If every feature is
+ * categorical or boolean, scans score examples from a bit-packed copy of the store (see
+ * HammingEngine) whenever the distance function allows it. Queries with categorical features
+ * that are not answered by an index search an inverted index of the categorical values
+ * (see InvertedIndex), which scores examples in order of how many values they share with the
+ * query and stops once the rest cannot be among the k nearest. The examples can be compacted
+ * into a much smaller set of prototypes for the target class, on demand or in the background
+ * (see compact), or duplicates can be collapsed into one row as they are trained, which counts
+ * its observations of each target value (see ExampleCounts).
  */
 public class KNN extends AFlatClassifier {
+  // number of rows a batch of queries is scored against at a time
+  private static final int SCAN_BLOCK_SIZE = 256;
+
   private final Map<String, Pair<Double, Double>> minMaxLookup;
+  // both are created from the first training example
+  private FeatureLayout layout;
+  private IExampleStore store;
+  private final String indexType;
+  private final IDistanceFunction indexDistance;
+  // built lazily, and dropped whenever a row is replaced, or the min-max bounds change if it is
+  // tied to them
+  private transient INeighborIndex index;
+  private final int lshTables;
+  private final int lshHashes;
+  private final double lshWidth;
+  private final int pqSubspaces;
+  private final int pqCentroids;
+  private final int parallelThreshold;
+  // 0 if the number of examples is unbounded
+  private final int capacity;
+  private final String evictionName;
+  // seeds each eviction policy the model creates, so a replaced policy makes other choices
+  private final Random evictionSeeds;
+  private IEvictionPolicy eviction;
+  // number of times a row was replaced or the rows were renumbered by a compaction, which makes
+  // background compactions started before it stale
+  private int generation;
+  // 0 if the model is only compacted on demand
+  private final int compactEvery;
+  private final String storageFile;
+  private final String quantization;
+  private final boolean collapse;
+  // observations of each distinct row if duplicates are collapsed, created with the store
+  private ExampleCounts counts;
+  private int trainedSinceCompaction;
+  // swapped in by the next train or query once it is done
+  private transient CompletableFuture<Compaction> pendingCompaction;
+  // built at the first approximate query, and dropped like the index
+  private transient LSHIndex lsh;
+  // built at the first query if every feature is categorical or boolean
+  private transient HammingEngine hamming;
+  // built at the first query with categorical features, and kept up to date by train
+  private transient InvertedIndex postings;
+  // quantized copy of the numerical columns, built at the first query that scans
+  private transient QuantizedEngine quantized;
+  // product-quantization index, built at the first query that scans
+  private transient ProductQuantizationIndex pq;
 
   /**
    * Constructs an instance of KNN with the given target class.
@@ -31,68 +97,662 @@ public class KNN extends AFlatClassifier {
    * @param targetClass class to classify for
    */
   public KNN(String targetClass) {
+    this(targetClass, new HashMap<>());
+  }
+
+  /**
+   * Constructs an instance of KNN with the given target class and model parameters. The supported
+   * parameters are "index," which names the neighbor index to use ("kd-tree," "vp-tree," or "pq"),
+   * and "index-distance," which names the distance function a vp-tree is built with (euclidean by
+   * default), which must be a metric. Without an index, every query scans all examples. A "pq"
+   * index (see ProductQuantizationIndex) is approximate: it splits the numerical features into
+   * "pq-subspaces" subspaces (half as many as the features by default) with "pq-centroids"
+   * centroids each (256 by default), and its candidates are re-ranked as those of a quantized scan
+   * are (see queryWithParams); its codebooks are trained again each time the number of examples
+   * doubles. The hash tables of approximate queries are configured with "lsh-tables," the number of
+   * tables (8 by default), "lsh-hashes," the number of projections hashed per table (4 by default),
+   * and "lsh-width," the width of a bucket in scaled units (0.5 by default). More tables find more
+   * of the true neighbors; more hashes and narrower buckets make smaller buckets. Scans over at
+   * least "parallel-threshold" examples (65536 by default) are split across the common fork-join
+   * pool; smaller scans stay on the querying thread. Setting "capacity" bounds the number of stored
+   * examples; once it is reached, the "eviction" policy ("fifo" by default, "reservoir," or
+   * "least-recently-matched," see IEvictionPolicy) decides which example each new one replaces, or
+   * whether it is discarded; "eviction-seed" seeds its random choices (a random seed by default).
+   * Examples are kept on the heap unless "storage" is "mapped," which keeps them in the
+   * memory-mapped "storage-file" (see MappedExampleStore); the file is created at the first
+   * training example. Setting "quantize" to "float32" or "int8" makes scans read a quantized copy
+   * of the numerical values (see QuantizedEngine) and re-rank the nearest of them with full
+   * precision. Setting "collapse" to "true" stores an example that has the same values as a stored
+   * one, but for the target class, as another observation of that row instead of a new row (see
+   * ExampleCounts), and votes with the k nearest observations. The target class must then be
+   * categorical, and such a model cannot have a capacity or be compacted.
+   *
+   * @param targetClass class to classify for
+   * @param modelParams parameters for the model
+   */
+  public KNN(String targetClass, Map<String, Object> modelParams) {
     super(targetClass);
+    if (modelParams == null) {
+      throw new IllegalArgumentException("Model parameters cannot be null.");
+    }
+
+    this.indexType = (String) modelParams.get("index");
+    if (this.indexType != null && !this.indexType.equals("kd-tree")
+            && !this.indexType.equals("vp-tree") && !this.indexType.equals("pq")) {
+      throw new IllegalArgumentException("Supplied index: " + this.indexType + " is not a "
+              + "supported index.");
+    }
+
+    Object paramIndexDistance = modelParams.get("index-distance");
+    this.indexDistance = IDistanceFunction.createDistanceFunction(paramIndexDistance == null
+            ? "euclidean" : (String) paramIndexDistance);
+    if (!this.indexDistance.isMetric()) {
+      throw new IllegalArgumentException("Supplied index distance: " + paramIndexDistance
+              + " is not a metric.");
+    }
+
+    Object paramTables = modelParams.get("lsh-tables");
+    Object paramHashes = modelParams.get("lsh-hashes");
+    Object paramWidth = modelParams.get("lsh-width");
+    this.lshTables = paramTables == null ? 8 : Integer.parseInt((String) paramTables);
+    this.lshHashes = paramHashes == null ? 4 : Integer.parseInt((String) paramHashes);
+    this.lshWidth = paramWidth == null ? 0.5 : Double.parseDouble((String) paramWidth);
+    if (this.lshTables <= 0 || this.lshHashes <= 0 || this.lshWidth <= 0) {
+      throw new IllegalArgumentException("LSH tables, hashes and width must be positive.");
+    }
+
+    Object paramSubspaces = modelParams.get("pq-subspaces");
+    Object paramCentroids = modelParams.get("pq-centroids");
+    // 0 splits the numerical features in pairs
+    this.pqSubspaces = paramSubspaces == null ? 0 : Integer.parseInt((String) paramSubspaces);
+    this.pqCentroids = paramCentroids == null ? 256 : Integer.parseInt((String) paramCentroids);
+    if ((paramSubspaces != null && this.pqSubspaces <= 0) || this.pqCentroids <= 0
+            || this.pqCentroids > 256) {
+      throw new IllegalArgumentException("PQ subspaces must be positive, and PQ centroids from 1 "
+              + "to 256.");
+    }
+
+    Object paramThreshold = modelParams.get("parallel-threshold");
+    this.parallelThreshold = paramThreshold == null ? 65536
+            : Integer.parseInt((String) paramThreshold);
+    if (this.parallelThreshold <= 0) {
+      throw new IllegalArgumentException("Parallel threshold must be positive.");
+    }
+
+    Object paramCapacity = modelParams.get("capacity");
+    Object paramEviction = modelParams.get("eviction");
+    this.capacity = paramCapacity == null ? 0 : Integer.parseInt((String) paramCapacity);
+    if (paramCapacity != null && this.capacity <= 0) {
+      throw new IllegalArgumentException("Capacity must be positive.");
+    }
+    if (paramCapacity == null && paramEviction != null) {
+      throw new IllegalArgumentException("An eviction policy requires a capacity.");
+    }
+    this.evictionName = paramEviction == null ? "fifo" : (String) paramEviction;
+    Object paramEvictionSeed = modelParams.get("eviction-seed");
+    this.evictionSeeds = paramEvictionSeed == null ? new Random()
+            : new Random(Long.parseLong((String) paramEvictionSeed));
+    this.eviction = paramCapacity == null ? null
+            : IEvictionPolicy.createEvictionPolicy(this.evictionName, this.capacity,
+            this.evictionSeeds.nextLong());
+
+    Object paramCompactEvery = modelParams.get("compact-every");
+    this.compactEvery = paramCompactEvery == null ? 0
+            : Integer.parseInt((String) paramCompactEvery);
+    if (this.compactEvery < 0) {
+      throw new IllegalArgumentException("Compaction interval cannot be negative.");
+    }
+
+    this.collapse = Boolean.parseBoolean((String) modelParams.get("collapse"));
+    if (this.collapse && (paramCapacity != null || this.compactEvery > 0)) {
+      throw new IllegalArgumentException("A model that collapses duplicates cannot have a "
+              + "capacity or be compacted.");
+    }
+
+    Object paramStorage = modelParams.get("storage");
+    if (paramStorage != null && !paramStorage.equals("heap") && !paramStorage.equals("mapped")) {
+      throw new IllegalArgumentException("Supplied storage: " + paramStorage + " is not a "
+              + "supported storage.");
+    }
+    this.storageFile = (String) modelParams.get("storage-file");
+    if ("mapped".equals(paramStorage) != (this.storageFile != null)) {
+      throw new IllegalArgumentException("Mapped storage requires a storage file, and only "
+              + "mapped storage takes one.");
+    }
+
+    this.quantization = (String) modelParams.get("quantize");
+    if (this.quantization != null && !this.quantization.equals("float32")
+            && !this.quantization.equals("int8")) {
+      throw new IllegalArgumentException("Supplied quantization: " + this.quantization
+              + " is not a supported quantization.");
+    }
+
     minMaxLookup = new HashMap<>();
   }
 
   /**
-   * On top of doing what is specified in AFlatClassifier, this train method also
-   * initializes/updates the min-max lookup for numerical features as new entries come in.
+   * Instead of adding the entry to the examples list, this train method encodes the entry as a row
+   * of primitive values in the example store (see FeatureLayout). It also initializes/updates the
+   * min-max lookup for numerical features as new entries come in. Stored values are never rescaled
+   * here; they are scaled with the current bounds at query time, so training does not depend on the
+   * number of stored examples. The row is also added to the neighbor index and the hash tables,
+   * unless the bounds changed, in which case they are rebuilt at the next query that uses them. A
+   * kd-tree is built over the raw values and scales them at query time (see KDTreeIndex), so it is
+   * kept up to date even when the bounds change. A model with a capacity that is full stores the
+   * entry in the row its eviction policy chooses instead: the row is removed from the index and
+   * the hash tables and added again with the entry, except for a vp-tree, which cannot remove rows
+   * and is rebuilt instead. The bounds are never narrowed when examples are evicted.
    *
    * @param entry to train the model with
    */
   @Override
   public void train(IEntry entry) {
-    super.train(entry);
+    this.checkEntry(entry);
+    this.swapInFinishedCompaction();
 
-    if (this.examples.size() == 1) {
-      for (IFeature feature : entry.getFeatures()) {
-        if (!feature.isCategorical()) {
-          this.minMaxLookup.put(feature.getFeatureName(), new ImmutablePair<>(feature.getValue(),
-                  feature.getValue()));
-        }
+    if (this.store == null) {
+      FeatureLayout layout = new FeatureLayout(entry, this.features);
+      if (this.collapse && !layout.isCategorical(this.targetClass)) {
+        throw new IllegalArgumentException("Only examples of a categorical target class can be "
+                + "collapsed.");
+      }
+
+      this.layout = layout;
+      this.store = this.storageFile == null
+              ? new ColumnarExampleStore(this.layout.getNumericalWidth(),
+              this.layout.getCategoricalWidth())
+              : new MappedExampleStore(this.storageFile, this.layout.getNumericalWidth(),
+              this.layout.getCategoricalWidth());
+      if (this.collapse) {
+        this.counts = new ExampleCounts(this.store, this.layout.getColumn(this.targetClass));
+      }
+    }
+
+    double[] numerical = new double[this.layout.getNumericalWidth()];
+    int[] categorical = new int[this.layout.getCategoricalWidth()];
+    this.layout.encode(entry, numerical, categorical);
+    if (this.counts != null) {
+      int duplicate = this.counts.find(numerical, categorical);
+      if (duplicate >= 0) {
+        this.counts.add(duplicate, categorical[this.layout.getColumn(this.targetClass)]);
+        return;
+      }
+    }
+
+    int row;
+    boolean replaced = this.capacity > 0 && this.store.size() == this.capacity;
+    if (replaced) {
+      row = this.eviction.chooseVictim();
+      if (row < 0) {
+        return;
+      }
+
+      if (this.postings != null) {
+        this.postings.remove(row);
+      }
+      if (this.index != null && !this.index.remove(row)) {
+        this.index = null;
+      }
+      if (this.lsh != null) {
+        this.lsh.remove(row);
       }
+      this.store.set(row, numerical, categorical);
+      this.generation++;
     }
     else {
-      for (IFeature feature : entry.getFeatures()) {
-        if (!feature.isCategorical()) {
-          Pair<Double, Double> featureMinMax = this.minMaxLookup.get(feature.getFeatureName());
-          if (feature.getValue() < featureMinMax.getKey()) {
-            this.minMaxLookup.replace(feature.getFeatureName(),
-                    new ImmutablePair<>(feature.getValue(), featureMinMax.getValue()));
-            this.rescaleFeature(feature.getFeatureName());
-          }
-          else if (feature.getValue() > featureMinMax.getValue()) {
-            this.minMaxLookup.replace(feature.getFeatureName(),
-                    new ImmutablePair<>(featureMinMax.getKey(), feature.getValue()));
-            this.rescaleFeature(feature.getFeatureName());
-          }
+      row = this.store.add(numerical, categorical);
+    }
+    if (this.eviction != null) {
+      this.eviction.added(row);
+    }
+
+    boolean boundsChanged = false;
+    for (int column = 0; column < numerical.length; column++) {
+      String featureName = this.layout.getNumericalName(column);
+      Pair<Double, Double> featureMinMax = this.minMaxLookup.get(featureName);
+      if (featureMinMax == null) {
+        this.minMaxLookup.put(featureName, new ImmutablePair<>(numerical[column],
+                numerical[column]));
+      }
+      else if (numerical[column] < featureMinMax.getKey()) {
+        this.minMaxLookup.replace(featureName,
+                new ImmutablePair<>(numerical[column], featureMinMax.getValue()));
+        boundsChanged = true;
+      }
+      else if (numerical[column] > featureMinMax.getValue()) {
+        this.minMaxLookup.replace(featureName,
+                new ImmutablePair<>(featureMinMax.getKey(), numerical[column]));
+        boundsChanged = true;
+      }
+    }
+
+    if (this.counts != null) {
+      this.counts.add(row, categorical[this.layout.getColumn(this.targetClass)]);
+    }
+    if (this.hamming != null) {
+      this.hamming.add(row);
+    }
+    if (this.postings != null) {
+      this.postings.add(row);
+    }
+    if (this.quantized != null) {
+      this.quantized.add(row);
+    }
+
+    if (this.pq != null) {
+      this.pq.add(row);
+    }
+    if (boundsChanged && this.index != null && this.index.isTiedToBounds()) {
+      this.index = null;
+    }
+    else if (this.index != null) {
+      this.index.add(row);
+    }
+    if (boundsChanged) {
+      this.lsh = null;
+    }
+    else if (this.lsh != null) {
+      this.lsh.add(row);
+    }
+
+    if (this.compactEvery > 0 && ++this.trainedSinceCompaction >= this.compactEvery
+            && this.pendingCompaction == null) {
+      this.trainedSinceCompaction = 0;
+      this.compactInBackground(new HashMap<>());
+    }
+  }
+
+  /**
+   * Compacts this KNN's examples into a much smaller set of prototypes that classifies the target
+   * class almost the same way, so queries score fewer examples. Wilson editing first drops the
+   * examples whose target value disagrees with the majority of their "k" nearest neighbors (3
+   * by default), and Hart's condensed nearest neighbor then keeps only the examples 1-NN needs
+   * to label every remaining example correctly (see PrototypeReduction). Examples are compared
+   * with the "distance" function (euclidean by default) over every feature but the target class.
+   * The prototypes replace the examples only if 1-NN over them labels every edited example
+   * correctly; the neighbor index, hash tables and other derived structures are rebuilt at the
+   * next query that uses them. The min-max bounds are kept as they are. A background compaction
+   * that is still running is cancelled, since it read the rows before they were renumbered.
+   *
+   * @param compactionParams parameters for the compaction
+   * @return the sizes before and after compaction
+   */
+  public CompactionReport compact(Map<String, Object> compactionParams) {
+    CompactionSettings settings = this.compactionSettings(compactionParams);
+    this.swapInFinishedCompaction();
+    // a background compaction still running read rows that this one renumbers
+    if (this.pendingCompaction != null) {
+      this.pendingCompaction.cancel(false);
+      this.pendingCompaction = null;
+    }
+    Compaction compaction = KNN.reduce(this.layout, this.store, this.targetClass, settings,
+            this.minMaxLookup, this.store.size(), this.generation);
+    this.swapIn(compaction);
+    return compaction.report;
+  }
+
+  /**
+   * Compacts this KNN's examples as compact does, but on the common fork-join pool, so training and
+   * querying can go on in the meantime. The rows of the store and the feature layout are copied
+   * when this is called, without decoding the rows into entries; once the compaction is done, the
+   * next call to train or query swaps the prototypes in, along with every example trained since the
+   * copy. The compaction is dropped if an example was replaced by the eviction policy, or the
+   * examples were compacted, since the copy. Only one background compaction runs at a time: while
+   * one is running, this returns its report, and the given parameters are checked but not used. A
+   * model with the "compact-every" parameter starts a background compaction, with the default
+   * parameters, every that many training examples.
+   *
+   * @param compactionParams parameters for the compaction
+   * @return the sizes before and after compaction, once it is done, or a cancelled future if
+   *         compact is called before then
+   */
+  public CompletableFuture<CompactionReport> compactInBackground(
+          Map<String, Object> compactionParams) {
+    CompactionSettings settings = this.compactionSettings(compactionParams);
+    this.swapInFinishedCompaction();
+    if (this.pendingCompaction == null) {
+      FeatureLayout copyLayout = new FeatureLayout(this.layout);
+      IExampleStore copyStore = new ColumnarExampleStore(this.store.getNumericalWidth(),
+              this.store.getCategoricalWidth());
+      double[] numerical = new double[this.store.getNumericalWidth()];
+      int[] categorical = new int[this.store.getCategoricalWidth()];
+      for (int row = 0; row < this.store.size(); row++) {
+        for (int column = 0; column < numerical.length; column++) {
+          numerical[column] = this.store.getValue(row, column);
+        }
+        for (int column = 0; column < categorical.length; column++) {
+          categorical[column] = this.store.getCode(row, column);
         }
+        copyStore.add(numerical, categorical);
       }
+      Map<String, Pair<Double, Double>> bounds = new HashMap<>(this.minMaxLookup);
+      String targetClass = this.targetClass;
+      int generation = this.generation;
+      this.pendingCompaction = CompletableFuture.supplyAsync(() -> KNN.reduce(copyLayout,
+              copyStore, targetClass, settings, bounds, copyStore.size(), generation),
+              ForkJoinPool.commonPool());
     }
+    return this.pendingCompaction.thenApply(compaction -> compaction.report);
   }
 
   /**
-   * Rescales the given feature with its newly assigned min-max values from the min-max lookup
-   * table.
+   * Parses the parameters of a compaction, and checks that this KNN can be compacted.
+   */
+  private CompactionSettings compactionSettings(Map<String, Object> compactionParams) {
+    if (compactionParams == null) {
+      throw new IllegalArgumentException("Compaction parameters cannot be null.");
+    }
+
+    if (this.store == null || this.store.size() == 0) {
+      throw new IllegalArgumentException("Cannot compact when there are no examples.");
+    }
+
+    if (!this.layout.isCategorical(this.targetClass)) {
+      throw new IllegalArgumentException("Only a categorical target class can be compacted.");
+    }
+
+    if (this.counts != null) {
+      throw new IllegalArgumentException("Cannot compact a model that collapses duplicates.");
+    }
+
+    Object paramDistance = compactionParams.get("distance");
+    Object paramK = compactionParams.get("k");
+    CompactionSettings res = new CompactionSettings(IDistanceFunction.createDistanceFunction(
+            paramDistance == null ? "euclidean" : (String) paramDistance),
+            paramK == null ? 3 : Integer.parseInt((String) paramK));
+    if (res.k <= 0) {
+      throw new IllegalArgumentException("K must be positive.");
+    }
+    return res;
+  }
+
+  /**
+   * Edits and condenses the first rows of the given store.
    *
-   * @param featureName feature to rescale
+   * @param layout the layout of the store's rows
+   * @param store the example store
+   * @param targetClass the feature whose values label the rows
+   * @param settings the distance function and k to use
+   * @param bounds min-max bounds of each numerical feature
+   * @param size number of rows to compact
+   * @param generation generation of the model's rows when they were read
+   * @return the compaction
    */
-  private void rescaleFeature(String featureName) {
-    for (IEntry entry : this.examples) {
-      for (IFeature feature : entry.getFeatures()) {
-        if (feature.getFeatureName().equalsIgnoreCase(featureName)) {
-          Pair<Double, Double> featureMinMax = this.minMaxLookup.get(featureName);
-          feature.scaleFeature(featureMinMax.getKey(), featureMinMax.getValue());
+  private static Compaction reduce(FeatureLayout layout, IExampleStore store,
+                                   String targetClass, CompactionSettings settings,
+                                   Map<String, Pair<Double, Double>> bounds, int size,
+                                   int generation) {
+    double[] minimums = new double[layout.getNumericalWidth()];
+    double[] maximums = new double[layout.getNumericalWidth()];
+    for (int column = 0; column < minimums.length; column++) {
+      Pair<Double, Double> featureMinMax = bounds.get(layout.getNumericalName(column));
+      minimums[column] = featureMinMax.getKey();
+      maximums[column] = featureMinMax.getValue();
+    }
+
+    PrototypeReduction reduction = new PrototypeReduction(layout, store,
+            layout.getColumn(targetClass), settings.distanceFunction, minimums, maximums);
+    int[] rows = new int[size];
+    for (int row = 0; row < size; row++) {
+      rows[row] = row;
+    }
+    int[] edited = reduction.edit(rows, settings.k);
+    int[] prototypes = reduction.condense(edited);
+    boolean consistent = prototypes.length > 0 && reduction.isConsistent(prototypes, edited);
+    return new Compaction(prototypes, size, generation,
+            new CompactionReport(size, edited.length, prototypes.length, consistent));
+  }
+
+  /**
+   * Swaps in the prototypes of the background compaction if it is done.
+   */
+  private void swapInFinishedCompaction() {
+    if (this.pendingCompaction != null && this.pendingCompaction.isDone()) {
+      Compaction compaction = this.pendingCompaction.join();
+      this.pendingCompaction = null;
+      this.swapIn(compaction);
+    }
+  }
+
+  /**
+   * Replaces the compacted rows of the store with the prototypes, keeping the rows added since
+   * the compaction read the store, unless the prototypes are not consistent or the rows were
+   * replaced or renumbered since then (the compaction is of an older generation).
+   */
+  private void swapIn(Compaction compaction) {
+    if (!compaction.report.isConsistent() || compaction.generation != this.generation) {
+      return;
+    }
+    this.generation++;
+
+    // the kept rows are in order, so each moves to a row at or before its own, and no row is
+    // overwritten before it is moved
+    double[] numerical = new double[this.layout.getNumericalWidth()];
+    int[] categorical = new int[this.layout.getCategoricalWidth()];
+    int size = 0;
+    for (int row : compaction.prototypes) {
+      this.moveRow(row, size++, numerical, categorical);
+    }
+    for (int row = compaction.size; row < this.store.size(); row++) {
+      this.moveRow(row, size++, numerical, categorical);
+    }
+    this.store.truncate(size);
+
+    this.index = null;
+    this.lsh = null;
+    this.hamming = null;
+    this.postings = null;
+    this.quantized = null;
+    this.pq = null;
+    if (this.eviction != null) {
+      this.eviction = IEvictionPolicy.createEvictionPolicy(this.evictionName, this.capacity,
+              this.evictionSeeds.nextLong());
+      for (int row = 0; row < size; row++) {
+        this.eviction.added(row);
+      }
+    }
+  }
+
+  /**
+   * Copies the given row of the store to the given row, through the given scratch arrays.
+   */
+  private void moveRow(int from, int to, double[] numerical, int[] categorical) {
+    for (int column = 0; column < numerical.length; column++) {
+      numerical[column] = this.store.getValue(from, column);
+    }
+    for (int column = 0; column < categorical.length; column++) {
+      categorical[column] = this.store.getCode(from, column);
+    }
+    this.store.set(to, numerical, categorical);
+  }
+
+  /**
+   * The distance function and number of voting neighbors of a compaction.
+   */
+  private static class CompactionSettings {
+    private final IDistanceFunction distanceFunction;
+    private final int k;
+
+    private CompactionSettings(IDistanceFunction distanceFunction, int k) {
+      this.distanceFunction = distanceFunction;
+      this.k = k;
+    }
+  }
+
+  /**
+   * The prototypes a compaction kept among the first rows of the store.
+   */
+  private static class Compaction {
+    private final int[] prototypes;
+    private final int size;
+    private final int generation;
+    private final CompactionReport report;
+
+    private Compaction(int[] prototypes, int size, int generation, CompactionReport report) {
+      this.prototypes = prototypes;
+      this.size = size;
+      this.generation = generation;
+      this.report = report;
+    }
+  }
+
+  /**
+   * Picks k by leave-one-out evaluation: each stored example is classified by the other examples,
+   * and the accuracy is reported for every k that a query for the target class could use, up to
+   * "k-max" (25 by default). That is, every odd k that is not a multiple of the target class's
+   * number of values, and is at most the number of other examples. Each example's "k-max"
+   * nearest other examples are found once, with the "distance" function (euclidean by default)
+   * over every feature but the target class, and the votes for every k are counted along that
+   * list, so the sweep costs one search per example instead of one per example and k. The
+   * searches use the neighbor index if it supports the distance function, and run in parallel on
+   * the common fork-join pool. Votes are counted and ties broken as in a query.
+   *
+   * @param sweepParams parameters for the sweep
+   * @return the fraction of examples classified correctly for each k, in order of k
+   */
+  public SortedMap<Integer, Double> sweepK(Map<String, Object> sweepParams) {
+    if (sweepParams == null) {
+      throw new IllegalArgumentException("Sweep parameters cannot be null.");
+    }
+
+    if (this.store == null || this.store.size() == 0) {
+      throw new IllegalArgumentException("Cannot sweep k when there are no examples.");
+    }
+
+    if (!this.layout.isCategorical(this.targetClass)) {
+      throw new IllegalArgumentException("Only a categorical target class can be classified.");
+    }
+
+    if (this.counts != null) {
+      throw new IllegalArgumentException("Cannot sweep k for a model that collapses duplicates.");
+    }
+    this.swapInFinishedCompaction();
+
+    Object paramDistance = sweepParams.get("distance");
+    Object paramKMax = sweepParams.get("k-max");
+    IDistanceFunction distanceFunction = IDistanceFunction.createDistanceFunction(
+            paramDistance == null ? "euclidean" : (String) paramDistance);
+    int options = this.features.get(this.targetClass).length;
+    int kMax = Math.min(paramKMax == null ? 25 : Integer.parseInt((String) paramKMax),
+            this.store.size() - 1);
+    List<Integer> ks = new ArrayList<>();
+    for (int k = 1; k <= kMax; k += 2) {
+      if (k % options != 0) {
+        ks.add(k);
+      }
+    }
+    if (ks.isEmpty()) {
+      throw new IllegalArgumentException("No k up to k-max can classify the target class.");
+    }
+
+    double[] minimums = new double[this.layout.getNumericalWidth()];
+    double[] maximums = new double[this.layout.getNumericalWidth()];
+    for (int column = 0; column < minimums.length; column++) {
+      Pair<Double, Double> featureMinMax =
+              this.minMaxLookup.get(this.layout.getNumericalName(column));
+      minimums[column] = featureMinMax.getKey();
+      maximums[column] = featureMinMax.getValue();
+    }
+    List<String> queryFeatures = this.layout.getFeatureNames();
+    queryFeatures.remove(this.targetClass);
+    INeighborIndex index = this.getIndex(minimums, maximums);
+    INeighborIndex searchIndex = index != null && index.supports(distanceFunction, queryFeatures)
+            ? index : null;
+
+    int[] correct = IntStream.range(0, this.store.size()).parallel()
+            .mapToObj(row -> this.leaveOneOut(row, ks, distanceFunction, searchIndex, minimums,
+                    maximums))
+            .reduce(new int[ks.size()], (a, b) -> {
+              int[] sum = new int[a.length];
+              for (int i = 0; i < sum.length; i++) {
+                sum[i] = a[i] + b[i];
+              }
+              return sum;
+            });
+
+    SortedMap<Integer, Double> res = new TreeMap<>();
+    for (int i = 0; i < ks.size(); i++) {
+      res.put(ks.get(i), correct[i] / (double) this.store.size());
+    }
+    return res;
+  }
+
+  /**
+   * Classifies the given row by its nearest other rows, for each of the given values of k.
+   *
+   * @param row the row to leave out
+   * @param ks the values of k, in increasing order
+   * @param distanceFunction the distance function to use
+   * @param index the neighbor index to search, or null to scan
+   * @param minimums current minimum of each numerical column
+   * @param maximums current maximum of each numerical column
+   * @return 1 for each k that classifies the row correctly, 0 for the others
+   */
+  private int[] leaveOneOut(int row, List<Integer> ks, IDistanceFunction distanceFunction,
+                            INeighborIndex index, double[] minimums, double[] maximums) {
+    IEntry queryEntry = this.decodeWithout(row, this.targetClass);
+    QueryPlan plan = new QueryPlan(queryEntry, this.layout, this.store, distanceFunction,
+            minimums, maximums);
+    // one more neighbor than needed, in case the row itself is among them
+    NeighborHeap nearest = new NeighborHeap(ks.get(ks.size() - 1) + 1);
+    if (index != null) {
+      index.search(this.getQueryPoint(queryEntry, minimums, maximums), minimums, maximums, plan,
+              nearest);
+    }
+    else {
+      for (int other = 0; other < this.store.size(); other++) {
+        nearest.offer(other, plan.distanceTo(other, nearest.worstDistance()));
+      }
+    }
+
+    int targetColumn = this.layout.getColumn(this.targetClass);
+    String label = this.layout.getCategoricalValue(targetColumn,
+            this.store.getCode(row, targetColumn));
+    Map<String, Integer> voteCounts = this.emptyVoteCounts(this.targetClass);
+    int[] res = new int[ks.size()];
+    int voted = 0;
+    int next = 0;
+    for (int neighbor : nearest.getSortedRows()) {
+      if (next == ks.size()) {
+        break;
+      }
+
+      if (neighbor != row) {
+        voteCounts.merge(this.layout.getCategoricalValue(targetColumn,
+                this.store.getCode(neighbor, targetColumn)), 1, Integer::sum);
+        if (++voted == ks.get(next)) {
+          res[next++] = label.equals(KNN.majority(voteCounts)) ? 1 : 0;
         }
       }
     }
+    return res;
+  }
+
+  @Override
+  protected List<IEntry> getExamples() {
+    List<IEntry> res = new ArrayList<>();
+    for (int row = 0; this.store != null && row < this.store.size(); row++) {
+      res.add(this.layout.decode(this.store, row));
+    }
+    return res;
   }
 
   /**
    * KNN requires a distance function, labeled "distance," and a k value as a String, labeled "k,"
    * from the
-   * query parameters.
+   * query parameters. Setting "approximate" to "true" searches the hash tables instead (see
+   * LSHIndex), looking in "probes" buckets per table (1 by default). More probes find more of the
+   * true neighbors. Approximate queries must contain every feature but the target class; other
+   * queries, and queries whose buckets hold fewer than k examples, search exactly. Scans of a
+   * quantized model, or of a model with a "pq" index, keep the "rerank" times k (4 times by
+   * default) nearest examples by their quantized or encoded values, and vote with the k nearest
+   * of those by their full-precision values; a "rerank" of 1 votes with the encoded nearest.
+   * Supplying a "radius" instead of k makes the query a range query (see queryRadius), which
+   * results in a histogram of the target values of the examples within the radius, such as
+   * "{a=3, b=0}," or with "range-result" set to "examples," in the list of those examples,
+   * nearest first. Setting "targets" to "all" infers every categorical feature the query does
+   * not have from one search (see queryTargets), which results in each feature's value, such as
+   * "{a=x, b=y}."
    */
   @Override
   public String queryWithParams(IEntry queryEntry, Map<String, Object> queryParams) {
@@ -100,71 +760,499 @@ public class KNN extends AFlatClassifier {
       throw new IllegalArgumentException("Cannot query with null arguments.");
     }
 
+    if ("all".equals(queryParams.get("targets"))) {
+      return this.queryTargets(Collections.singletonList(queryEntry), queryParams).get(0)
+              .toString();
+    }
+
+    if (queryParams.get("radius") != null) {
+      Object paramResult = queryParams.get("range-result");
+      if (paramResult != null && !paramResult.equals("histogram")
+              && !paramResult.equals("examples")) {
+        throw new IllegalArgumentException("Supplied range result: " + paramResult + " is not "
+                + "a supported range result.");
+      }
+
+      return "examples".equals(paramResult) ? this.queryRadius(queryEntry, queryParams).toString()
+              : this.histogramWithin(queryEntry, queryParams).toString();
+    }
+
+    return this.queryBatch(Collections.singletonList(queryEntry), queryParams).get(0);
+  }
+
+  /**
+   * Queries this KNN with every given entry, using the same query parameters as queryWithParams.
+   * The parameters are parsed and the min-max bounds are read once for the whole batch. Queries
+   * that are not answered by the hash tables or the neighbor index share a single pass over the
+   * example store, which scores every such query against one block of examples before moving on
+   * to the next block, instead of scanning every example once per query.
+   *
+   * @param queryEntries the entries to query with
+   * @param queryParams parameters for the queries
+   * @return the result of each query, in the same order as the entries
+   */
+  public List<String> queryBatch(List<IEntry> queryEntries, Map<String, Object> queryParams) {
+    if (queryEntries == null || queryParams == null) {
+      throw new IllegalArgumentException("Cannot query with null arguments.");
+    }
+    this.swapInFinishedCompaction();
+    int k = KNN.getK(queryParams);
+
+    List<String> targetFeatures = new ArrayList<>();
+    for (IEntry queryEntry : queryEntries) {
+      this.checkQuery(queryEntry);
+
+      // returns the target feature if possible
+      targetFeatures.add(this.returnTargetFeatureIfPossible(queryEntry, k));
+    }
+
+    List<NeighborHeap> nearests = this.searchNeighbors(queryEntries, queryParams, k);
+    List<String> res = new ArrayList<>();
+    for (int i = 0; i < nearests.size(); i++) {
+      this.matched(nearests.get(i));
+      res.add(this.vote(targetFeatures.get(i), nearests.get(i)));
+    }
+    return res;
+  }
+
+  /**
+   * Queries this KNN for every categorical feature each given entry does not have, using the same
+   * query parameters as queryWithParams. The k nearest neighbors of each entry are searched for
+   * once, and every missing categorical feature is voted on among them, so inferring several
+   * features costs the same as inferring one. Missing numerical and boolean features are not
+   * inferred. k must suit every inferred feature (see queryWithParams).
+   *
+   * @param queryEntries the entries to query with
+   * @param queryParams parameters for the queries
+   * @return the value of each missing categorical feature, for each query in the same order as
+   *         the entries
+   */
+  public List<Map<String, String>> queryTargets(List<IEntry> queryEntries,
+                                                Map<String, Object> queryParams) {
+    if (queryEntries == null || queryParams == null) {
+      throw new IllegalArgumentException("Cannot query with null arguments.");
+    }
+    this.swapInFinishedCompaction();
+    int k = KNN.getK(queryParams);
+
+    List<List<String>> targetFeatures = new ArrayList<>();
+    for (IEntry queryEntry : queryEntries) {
+      this.checkQuery(queryEntry);
+      targetFeatures.add(this.returnTargetFeaturesIfPossible(queryEntry, k));
+    }
+
+    List<NeighborHeap> nearests = this.searchNeighbors(queryEntries, queryParams, k);
+    List<Map<String, String>> res = new ArrayList<>();
+    for (int i = 0; i < nearests.size(); i++) {
+      this.matched(nearests.get(i));
+      Map<String, String> values = new LinkedHashMap<>();
+      for (String targetFeature : targetFeatures.get(i)) {
+        values.put(targetFeature, this.vote(targetFeature, nearests.get(i)));
+      }
+      res.add(values);
+    }
+    return res;
+  }
+
+  /**
+   * Gets k from the query parameters, which must have it.
+   *
+   * @param queryParams parameters for the query
+   * @return k
+   */
+  private static int getK(Map<String, Object> queryParams) {
     String paramK = (String)queryParams.get("k");
     if (paramK == null) {
       throw new IllegalArgumentException("Must provide k when querying a KNN " +
               "model.");
     }
+    return Integer.parseInt(paramK);
+  }
 
+  /**
+   * Checks that the given query entry is not null and does not contain the target class.
+   *
+   * @param queryEntry the query entry
+   */
+  private void checkQuery(IEntry queryEntry) {
+    if (queryEntry == null) {
+      throw new IllegalArgumentException("Cannot query with null arguments.");
+    }
+
+    if (queryEntry.containsFeature(targetClass)) {
+      throw new IllegalArgumentException("Query cannot contain target class.");
+    }
+  }
+
+  /**
+   * Searches for the k nearest neighbors of every given entry. The parameters are parsed and the
+   * min-max bounds are read once for the whole batch. Queries that are not answered by the hash
+   * tables or the neighbor index share a single pass over the example store (see scan).
+   *
+   * @param queryEntries the entries to query with, which have been checked
+   * @param queryParams parameters for the queries
+   * @param k number of neighbors to find
+   * @return the heap of the k nearest neighbors of each entry, in the same order as the entries
+   */
+  private List<NeighborHeap> searchNeighbors(List<IEntry> queryEntries,
+                                             Map<String, Object> queryParams, int k) {
     Object paramDistance = queryParams.get("distance");
     if (paramDistance == null) {
       throw new IllegalArgumentException("Must provide a distance function when querying a KNN " +
               "model.");
     }
-    int k = Integer.parseInt(paramK);
     IDistanceFunction distanceFunction =
             IDistanceFunction.createDistanceFunction((String)paramDistance);
 
-    return this.queryHelp(queryEntry, k, distanceFunction);
+    boolean approximate = Boolean.parseBoolean((String) queryParams.get("approximate"));
+    String paramProbes = (String) queryParams.get("probes");
+    int probes = paramProbes == null ? 1 : Integer.parseInt(paramProbes);
+    if (probes <= 0) {
+      throw new IllegalArgumentException("Probes must be positive.");
+    }
+    String paramRerank = (String) queryParams.get("rerank");
+    int rerank = paramRerank == null ? 4 : Integer.parseInt(paramRerank);
+    if (rerank <= 0) {
+      throw new IllegalArgumentException("Rerank must be positive.");
+    }
+
+    if (queryEntries.isEmpty()) {
+      return new ArrayList<>();
+    }
+
+    double[] minimums = new double[this.layout.getNumericalWidth()];
+    double[] maximums = new double[this.layout.getNumericalWidth()];
+    for (int column = 0; column < minimums.length; column++) {
+      Pair<Double, Double> featureMinMax =
+              this.minMaxLookup.get(this.layout.getNumericalName(column));
+      minimums[column] = featureMinMax.getKey();
+      maximums[column] = featureMinMax.getValue();
+    }
+
+    List<NeighborHeap> nearests = new ArrayList<>();
+    List<IRowDistance> unsearchedDistances = new ArrayList<>();
+    List<NeighborHeap> unsearchedNearests = new ArrayList<>();
+    // queries whose scan finds candidates by an approximate distance, to re-rank exactly
+    List<QueryPlan> rerankPlans = new ArrayList<>();
+    List<NeighborHeap> rerankCandidates = new ArrayList<>();
+    List<NeighborHeap> rerankNearests = new ArrayList<>();
+    for (IEntry queryEntry : queryEntries) {
+      QueryPlan plan = new QueryPlan(queryEntry, this.layout, this.store,
+              distanceFunction, minimums, maximums);
+      NeighborHeap nearest = new NeighborHeap(k);
+      nearests.add(nearest);
+      if (!this.searchIndexes(queryEntry, distanceFunction, approximate ? probes : 0, plan,
+              nearest, minimums, maximums)) {
+        IRowDistance packedDistance = this.getHammingEngine() == null ? null
+                : this.hamming.compile(queryEntry, distanceFunction, minimums, maximums);
+        IRowDistance distance = packedDistance == null ? plan : packedDistance;
+        // the approximate distance a scan finds candidates with, if any: the product
+        // quantization index goes before the inverted index, the quantized copy after it
+        IRowDistance approximateDistance = packedDistance != null
+                || this.getProductQuantizationIndex(minimums, maximums) == null ? null
+                : this.pq.compile(plan, distanceFunction, minimums, maximums);
+        if (approximateDistance == null && this.searchesInvertedIndex(plan)) {
+          this.getInvertedIndex().search(plan, distance, nearest);
+        }
+        else {
+          if (approximateDistance == null && packedDistance == null
+                  && this.getQuantizedEngine(minimums, maximums) != null) {
+            approximateDistance = this.quantized.compile(plan, distanceFunction, minimums,
+                    maximums);
+          }
+          if (approximateDistance == null) {
+            unsearchedDistances.add(distance);
+            unsearchedNearests.add(nearest);
+          }
+          else {
+            NeighborHeap candidates = new NeighborHeap(k * rerank);
+            unsearchedDistances.add(approximateDistance);
+            unsearchedNearests.add(candidates);
+            rerankPlans.add(plan);
+            rerankCandidates.add(candidates);
+            rerankNearests.add(nearest);
+          }
+        }
+      }
+    }
+    this.scan(unsearchedDistances, unsearchedNearests);
+    for (int i = 0; i < rerankPlans.size(); i++) {
+      for (int row : rerankCandidates.get(i).getSortedRows()) {
+        rerankNearests.get(i).offer(row, rerankPlans.get(i).distanceTo(row));
+      }
+    }
+
+    return nearests;
   }
 
   /**
-   * Applies the distance function and gets a sorted list of distances to pick k neighbors from.
-   * Also votes if k is greater than one. Gets the top result.
+   * Finds every example within the "radius" of the query, by the "distance" function, which are
+   * both required. Distances are measured over the query's features with the same scaling as a
+   * k-nearest query, and the radius is inclusive. The neighbor index is searched if it supports
+   * the distance function, pruning every part of it that lies beyond the radius, and otherwise
+   * the examples are scanned the same way as for an exact k-nearest query, so no example beyond
+   * the radius is sorted. The approximate structures (the hash tables, a "pq" index and a
+   * quantized copy) are not used, since they could miss examples within the radius. A model that
+   * collapses duplicates gets each distinct example once.
    *
-   * @param queryEntry list of features in query
-   * @param k number of neighbors to look at
-   * @param distanceFunction distance function to apply
-   * @return the query result or the resulting class
+   * @param queryEntry the query entry
+   * @param queryParams parameters for the query
+   * @return the examples within the radius, nearest first
+   */
+  public List<IEntry> queryRadius(IEntry queryEntry, Map<String, Object> queryParams) {
+    List<IEntry> res = new ArrayList<>();
+    for (int row : this.searchRadius(queryEntry, queryParams).getSortedRows()) {
+      res.add(this.layout.decode(this.store, row));
+    }
+    return res;
+  }
+
+  /**
+   * Counts the examples within the "radius" of the query (see queryRadius) by their value of the
+   * target feature, the categorical feature the query does not have.
+   *
+   * @param queryEntry the query entry
+   * @param queryParams parameters for the query
+   * @return the number of examples within the radius with each value of the target feature, in
+   *         the order the values were first trained with
+   */
+  public Map<String, Integer> histogramWithin(IEntry queryEntry,
+                                              Map<String, Object> queryParams) {
+    NeighborHeap within = this.searchRadius(queryEntry, queryParams);
+    String targetFeature = this.getTargetFeature(queryEntry);
+    if (!this.layout.isCategorical(targetFeature)) {
+      throw new IllegalArgumentException("Cannot count the values of numerical feature "
+              + targetFeature + ".");
+    }
+
+    Map<String, Integer> res = new LinkedHashMap<>();
+    for (String option : this.features.get(targetFeature)) {
+      res.put(option, 0);
+    }
+    int targetColumn = this.layout.getColumn(targetFeature);
+    boolean collapsedTarget = this.counts != null && targetFeature.equals(this.targetClass);
+    for (int row : within.getSortedRows()) {
+      if (collapsedTarget) {
+        for (int code = 0; code < this.layout.getCodeCount(targetColumn); code++) {
+          if (this.counts.getCount(row, code) > 0) {
+            res.merge(this.layout.getCategoricalValue(targetColumn, code),
+                    this.counts.getCount(row, code), Integer::sum);
+          }
+        }
+      }
+      else {
+        res.merge(this.layout.getCategoricalValue(targetColumn,
+                this.store.getCode(row, targetColumn)),
+                this.counts == null ? 1 : this.counts.getTotal(row), Integer::sum);
+      }
+    }
+    return res;
+  }
+
+  /**
+   * Offers every example to a heap that keeps those within the "radius" of the query, searching
+   * the neighbor index, the inverted index or a scan as an exact k-nearest query would.
+   *
+   * @param queryEntry the query entry
+   * @param queryParams parameters for the query
+   * @return the heap of the examples within the radius
    */
-  private String queryHelp(IEntry queryEntry, int k, IDistanceFunction distanceFunction) {
+  private NeighborHeap searchRadius(IEntry queryEntry, Map<String, Object> queryParams) {
+    if (queryEntry == null || queryParams == null) {
+      throw new IllegalArgumentException("Cannot query with null arguments.");
+    }
+    this.swapInFinishedCompaction();
+
+    String paramRadius = (String) queryParams.get("radius");
+    Object paramDistance = queryParams.get("distance");
+    if (paramRadius == null || paramDistance == null) {
+      throw new IllegalArgumentException("Must provide a radius and a distance function for a "
+              + "range query.");
+    }
+    NeighborHeap res = NeighborHeap.withinRadius(Double.parseDouble(paramRadius));
+    IDistanceFunction distanceFunction =
+            IDistanceFunction.createDistanceFunction((String) paramDistance);
+
     if (queryEntry.containsFeature(targetClass)) {
       throw new IllegalArgumentException("Query cannot contain target class.");
     }
+    this.getTargetFeature(queryEntry);
+
+    double[] minimums = new double[this.layout.getNumericalWidth()];
+    double[] maximums = new double[this.layout.getNumericalWidth()];
+    for (int column = 0; column < minimums.length; column++) {
+      Pair<Double, Double> featureMinMax =
+              this.minMaxLookup.get(this.layout.getNumericalName(column));
+      minimums[column] = featureMinMax.getKey();
+      maximums[column] = featureMinMax.getValue();
+    }
 
-    // returns the target feature if possible
-    String targetFeature = this.returnTargetFeatureIfPossible(queryEntry, k);
+    QueryPlan plan = new QueryPlan(queryEntry, this.layout, this.store, distanceFunction,
+            minimums, maximums);
+    if (!this.searchIndexes(queryEntry, distanceFunction, 0, plan, res, minimums, maximums)) {
+      IRowDistance packedDistance = this.getHammingEngine() == null ? null
+              : this.hamming.compile(queryEntry, distanceFunction, minimums, maximums);
+      IRowDistance distance = packedDistance == null ? plan : packedDistance;
+      if (this.searchesInvertedIndex(plan)) {
+        this.getInvertedIndex().search(plan, distance, res);
+      }
+      else {
+        this.scan(distance, res);
+      }
+    }
+    return res;
+  }
 
-    Map<IEntry, Double> sorted = this.getSortedMapping(queryEntry, distanceFunction);
+  /**
+   * Searches for the k nearest neighbors of the query with the hash tables if the query is
+   * approximate, or with the neighbor index if it supports the distance function.
+   *
+   * @param queryEntry the query entry
+   * @param distanceFunction distance function to apply
+   * @param probes buckets to look in per hash table, or 0 to search exactly
+   * @param distance the distance from the query to a row
+   * @param nearest heap to offer neighbors to
+   * @param minimums current minimum of each numerical column
+   * @param maximums current maximum of each numerical column
+   * @return true if the heap was filled, false if every example must be scanned instead
+   */
+  private boolean searchIndexes(IEntry queryEntry, IDistanceFunction distanceFunction,
+                                int probes, IRowDistance distance, NeighborHeap nearest,
+                                double[] minimums, double[] maximums) {
+    if (probes > 0 && this.searchApproximately(queryEntry, probes, distance, nearest, minimums,
+            maximums)) {
+      return true;
+    }
 
-    Iterator<IEntry> sortedEntries = sorted.keySet().iterator();
-    List<IEntry> firstKEntries = new ArrayList<>();
+    INeighborIndex index = this.getIndex(minimums, maximums);
+    if (index != null && index.supports(distanceFunction, this.getFeatureNames(queryEntry))) {
+      index.search(this.getQueryPoint(queryEntry, minimums, maximums), minimums, maximums,
+              distance, nearest);
+      return true;
+    }
+    return false;
+  }
 
-    for (int i = 0; i < k; i++) {
-      firstKEntries.add(sortedEntries.next());
+  /**
+   * Votes among the given neighbors for a value of the target feature. Gets the top result.
+   *
+   * @param targetFeature the feature being predicted
+   * @param nearest the k nearest neighbors
+   * @return the resulting class
+   */
+  private String vote(String targetFeature, NeighborHeap nearest) {
+    if (this.counts != null) {
+      return this.voteObservations(targetFeature, nearest);
     }
 
-    Map<String, Integer> voteCounts = new HashMap<>();
+    Map<String, Integer> voteCounts = this.emptyVoteCounts(targetFeature);
+
+    int targetColumn = this.layout.getColumn(targetFeature);
+    for (int row : nearest.getSortedRows()) {
+      String value = this.layout.getCategoricalValue(targetColumn,
+              this.store.getCode(row, targetColumn));
+      voteCounts.replace(value, voteCounts.get(value) + 1);
+    }
+
+    return KNN.majority(voteCounts);
+  }
+
+  /**
+   * Votes among the given neighbors of a model that collapses duplicates. Each row votes once per
+   * observation, nearest first, until k observations have voted, so the votes are those the k
+   * nearest observations would cast if each were stored. The row that reaches k casts only the
+   * votes that are left, shared among its observations in proportion.
+   *
+   * @param targetFeature the feature being predicted
+   * @param nearest the k nearest rows
+   * @return the resulting class
+   */
+  private String voteObservations(String targetFeature, NeighborHeap nearest) {
+    Map<String, Double> voteCounts = new HashMap<>();
     for (String option : this.features.get(targetFeature)) {
-      voteCounts.put(option, 0);
+      voteCounts.put(option, 0.0);
     }
 
-    for (IEntry entry : firstKEntries) {
-      List<IFeature> features = entry.getFeatures();
-      for (IFeature feature : features) {
-        if (feature.getFeatureName().equals(targetFeature)) {
-          voteCounts.replace(feature.getCategoricalValue(),
-                  voteCounts.get(feature.getCategoricalValue()) + 1);
+    int targetColumn = this.layout.getColumn(targetFeature);
+    boolean collapsedTarget = targetFeature.equals(this.targetClass);
+    double remaining = nearest.capacity();
+    for (int row : nearest.getSortedRows()) {
+      if (remaining <= 0) {
+        break;
+      }
+
+      int total = this.counts.getTotal(row);
+      double share = Math.min(1.0, remaining / total);
+      remaining -= total;
+      if (collapsedTarget) {
+        for (int code = 0; code < this.layout.getCodeCount(targetColumn); code++) {
+          if (this.counts.getCount(row, code) > 0) {
+            voteCounts.merge(this.layout.getCategoricalValue(targetColumn, code),
+                    this.counts.getCount(row, code) * share, Double::sum);
+          }
         }
       }
+      else {
+        // the other features of the row's observations are the same
+        voteCounts.merge(this.layout.getCategoricalValue(targetColumn,
+                this.store.getCode(row, targetColumn)), total * share, Double::sum);
+      }
+    }
+
+    return KNN.majority(voteCounts);
+  }
+
+  /**
+   * Gets the number of examples trained with, counting every observation of a collapsed row.
+   *
+   * @return the number of observations
+   */
+  private int observations() {
+    return this.counts == null ? this.store.size() : this.counts.getObservations();
+  }
+
+  /**
+   * Tells the eviction policy, if any, that the given neighbors were matched by a query.
+   *
+   * @param nearest the k nearest neighbors
+   */
+  private void matched(NeighborHeap nearest) {
+    if (this.eviction == null) {
+      return;
     }
 
+    for (int row : nearest.getSortedRows()) {
+      this.eviction.matched(row);
+    }
+  }
+
+  /**
+   * Gets a vote count of 0 for every value of the given target feature.
+   *
+   * @param targetFeature the feature being predicted
+   * @return the empty vote counts
+   */
+  private Map<String, Integer> emptyVoteCounts(String targetFeature) {
+    Map<String, Integer> res = new HashMap<>();
+    for (String option : this.features.get(targetFeature)) {
+      res.put(option, 0);
+    }
+    return res;
+  }
+
+  /**
+   * Gets the value with the most votes.
+   *
+   * @param voteCounts the number of votes for each value
+   * @return the top result
+   */
+  private static String majority(Map<String, ? extends Number> voteCounts) {
     String result = null;
-    int max = -1;
+    double max = -1;
 
     for (String string : voteCounts.keySet()) {
-      if (voteCounts.get(string) > max) {
-        max = voteCounts.get(string);
+      if (voteCounts.get(string).doubleValue() > max) {
+        max = voteCounts.get(string).doubleValue();
         result = string;
       }
     }
@@ -182,99 +1270,396 @@ public class KNN extends AFlatClassifier {
    * @return the target class if everything is valid
    */
   private String returnTargetFeatureIfPossible(IEntry queryEntry, int k) {
-    if (this.examples.isEmpty()) {
+    String targetFeature = this.getTargetFeature(queryEntry);
+    this.checkK(targetFeature, k);
+    return targetFeature;
+  }
+
+  /**
+   * Checks that k is valid for the given target feature: positive, odd, not a multiple of the
+   * number of its values, and no more than the number of examples.
+   *
+   * @param targetFeature the feature being predicted
+   * @param k number of neighbors to look at
+   */
+  private void checkK(String targetFeature, int k) {
+    if (k <= 0) {
+      throw new IllegalArgumentException("K must be positive.");
+    }
+
+    if (k % 2 == 0 || k % this.features.get(targetFeature).length == 0) {
+      throw new IllegalArgumentException("Pick a k that is not even and not a multiple of the " +
+              "number of possibilities of desired feature.");
+    }
+
+    if (k > this.observations()) {
+      throw new IllegalArgumentException("Pick a k that is less than or equal to the number of " +
+              "training examples.");
+    }
+  }
+
+  /**
+   * Checks to see if the query entry is valid, like returnTargetFeatureIfPossible, and gets every
+   * categorical feature it does not have, checking that k suits each of them.
+   *
+   * @param queryEntry list of features in the query
+   * @param k number of neighbors to look at
+   * @return the categorical features to infer, in the order they were trained with
+   */
+  private List<String> returnTargetFeaturesIfPossible(IEntry queryEntry, int k) {
+    this.getTargetFeature(queryEntry);
+
+    List<String> res = new ArrayList<>();
+    for (String featureName : this.layout.getFeatureNames()) {
+      if (!queryEntry.containsFeature(featureName) && this.layout.isCategorical(featureName)) {
+        this.checkK(featureName, k);
+        res.add(featureName);
+      }
+    }
+
+    if (res.isEmpty()) {
+      throw new IllegalArgumentException("Query must leave out a categorical feature to infer.");
+    }
+    return res;
+  }
+
+  /**
+   * Checks to see if there are examples to query and that the query entry does not have every
+   * feature, and gets the feature it does not have.
+   *
+   * @param queryEntry list of features in the query
+   * @return the feature being predicted
+   */
+  private String getTargetFeature(IEntry queryEntry) {
+    if (this.store == null || this.store.size() == 0) {
       throw new IllegalArgumentException("Cannot query when there are no examples");
     }
 
-    if (queryEntry.getFeatures().size() >= this.examples.get(0).getFeatures().size()) {
+    if (queryEntry.getFeatures().size() >= this.layout.getFeatureNames().size()) {
       throw new IllegalArgumentException("Supplied query cannot have all the features/more " +
               "features than the provided training examples.");
     }
 
     // get which feature is being predicted
     String targetFeature = null;
-    for (IFeature feature : this.examples.get(0).getFeatures()) {
-      if (!queryEntry.containsFeature(feature.getFeatureName())) {
-        targetFeature = feature.getFeatureName();
+    for (String featureName : this.layout.getFeatureNames()) {
+      if (!queryEntry.containsFeature(featureName)) {
+        targetFeature = featureName;
       }
     }
+    return targetFeature;
+  }
 
-    if (k <= 0) {
-      throw new IllegalArgumentException("K must be positive.");
+  /**
+   * Scans every row in this KNN's example store and offers it to the given heap, which keeps the
+   * k nearest, so the scan takes O(n log k) time and does not sort every distance. Rows are scored
+   * a block at a time when the row distance can (see ParallelScan.scanBlocks); otherwise, once the
+   * heap is full, each row is scored with the distance of the worst kept neighbor as a cutoff, so
+   * rows that cannot be kept are abandoned part way (see IRowDistance.distanceTo). Stores with at
+   * least the parallel threshold of rows are scanned in chunks on the fork-join pool (see
+   * ParallelScan), and the nearest rows of each chunk are merged into the heap.
+   *
+   * @param distance the distance from the query to a row
+   * @param nearest heap to offer every row to
+   */
+  private void scan(IRowDistance distance, NeighborHeap nearest) {
+    if (this.store.size() >= this.parallelThreshold) {
+      nearest.merge(ParallelScan.scan(distance, nearest, 0, this.store.size()));
+      return;
     }
 
-    if (k % 2 == 0 || k % this.features.get(targetFeature).length == 0) {
-      throw new IllegalArgumentException("Pick a k that is not even and not a multiple of the " +
-              "number of possibilities of desired feature.");
+    ParallelScan.scanBlocks(distance, nearest, 0, this.store.size(),
+            new double[SCAN_BLOCK_SIZE]);
+  }
+
+  /**
+   * Scans every row for each of the given queries. Rows are visited in blocks, and every query
+   * is scored against a block before the next block is read, so each block is read once for the
+   * whole batch while it is still in cache. Stores with at least the parallel threshold of rows
+   * are instead scanned in parallel, one query at a time.
+   *
+   * @param distances the distance from each query to a row
+   * @param nearests heap of each query to offer every row to
+   */
+  private void scan(List<IRowDistance> distances, List<NeighborHeap> nearests) {
+    if (distances.size() == 1 || this.store.size() >= this.parallelThreshold) {
+      for (int i = 0; i < distances.size(); i++) {
+        this.scan(distances.get(i), nearests.get(i));
+      }
+      return;
     }
 
-    if (k > this.examples.size()) {
-      throw new IllegalArgumentException("Pick a k that is less than or equal to the number of " +
-              "training examples.");
+    double[] blockDistances = new double[SCAN_BLOCK_SIZE];
+    for (int from = 0; from < this.store.size(); from += SCAN_BLOCK_SIZE) {
+      int to = Math.min(from + SCAN_BLOCK_SIZE, this.store.size());
+      for (int i = 0; i < distances.size(); i++) {
+        ParallelScan.scanBlocks(distances.get(i), nearests.get(i), from, to, blockDistances);
+      }
     }
-    return targetFeature;
   }
 
   /**
-   * Returns a map with sorted distances for each entry in this KNN's examples list.
+   * Offers the examples that share a bucket with the query in the hash tables to the given heap,
+   * building the tables over every stored row if they have not been built with the given bounds
+   * yet. Only queries over every feature but the target class are hashed.
    *
-   * @param queryEntry list of features in the query
-   * @param distanceFunction the distance function to apply
-   * @return a sorted list of distances
+   * @param queryEntry the query entry
+   * @param probes buckets to look in per table
+   * @param distance the distance from the query to a row
+   * @param nearest heap to offer the candidates to
+   * @param minimums current minimum of each numerical column
+   * @param maximums current maximum of each numerical column
+   * @return true if the heap was filled, false if the query must be searched exactly
    */
-  private Map<IEntry, Double> getSortedMapping(IEntry queryEntry, IDistanceFunction distanceFunction) {
-    Map<IEntry, Double> distanceMapping = new HashMap<>();
+  private boolean searchApproximately(IEntry queryEntry, int probes, IRowDistance distance,
+                                      NeighborHeap nearest, double[] minimums,
+                                      double[] maximums) {
+    List<String> hashedFeatures = this.layout.getFeatureNames();
+    hashedFeatures.remove(this.targetClass);
+    List<String> queryFeatures = this.getFeatureNames(queryEntry);
+    if (queryFeatures.size() != hashedFeatures.size()
+            || !hashedFeatures.containsAll(queryFeatures)) {
+      return false;
+    }
 
-    for (IEntry entry : this.examples) {
-      distanceMapping.put(entry, KNN.calcDistance(queryEntry, entry, distanceFunction,
-              this.features));
+    if (this.lsh == null) {
+      int[] categoricalColumns = new int[this.layout.getCategoricalWidth() - 1];
+      int targetColumn = this.layout.getColumn(this.targetClass);
+      for (int column = 0, i = 0; column < this.layout.getCategoricalWidth(); column++) {
+        if (column != targetColumn) {
+          categoricalColumns[i++] = column;
+        }
+      }
+      this.lsh = new LSHIndex(this.store, minimums, maximums, categoricalColumns,
+              this.lshTables, this.lshHashes, this.lshWidth, 0);
+      for (int row = 0; row < this.store.size(); row++) {
+        this.lsh.add(row);
+      }
     }
 
-    return distanceMapping.entrySet().stream().sorted(Map.Entry.comparingByValue())
-            .collect(toMap(e -> e.getKey(), e -> e.getValue(), (e1, e2) -> e2,
-            LinkedHashMap::new));
+    int[] codes = new int[this.layout.getCategoricalWidth()];
+    for (IFeature feature : queryEntry.getFeatures()) {
+      if (feature.isCategorical() && this.layout.isCategorical(feature.getFeatureName())) {
+        int column = this.layout.getColumn(feature.getFeatureName());
+        codes[column] = this.layout.getCode(column, feature.getCategoricalValue());
+      }
+    }
 
+    this.lsh.search(this.getQueryPoint(queryEntry, minimums, maximums), codes, probes, distance,
+            nearest);
+    if (!nearest.isFull()) {
+      nearest.clear();
+      return false;
+    }
+    return true;
   }
 
   /**
-   * Calculates the distance between two entries with the given distance function. Also requires
-   * a set of features and their enumerations.
+   * Can the inverted index skip examples for the given query, i.e. does a row that disagrees with
+   * it on some categorical feature have a positive least distance?
    *
-   * @param queryEntry the query entry
-   * @param exampleEntry an example entry to compute distance with
-   * @param distanceFunction the distance function to use
-   * @param enumerations the set of features and their enumerations
-   * @return the distance between the two entries
-   */
-  private static double calcDistance(IEntry queryEntry, IEntry exampleEntry,
-                                    IDistanceFunction distanceFunction,
-                                    Map<String, String[]> enumerations) {
-    double res = 0.0;
-    List<IFeature> queryFeatures = queryEntry.getFeatures();
-    List<IFeature> exampleFeatures = exampleEntry.getFeatures();
-    double[] queryVals = new double[queryFeatures.size()];
-    double[] exampleVals = new double[queryFeatures.size()];
-    for (int i = 0; i < queryFeatures.size(); i++) {
-      String currentFeature = queryFeatures.get(i).getFeatureName();
-      // iterate through the other entry's features to check for the current feature the loop
-      // is on for this entry
-      for (IFeature otherFeature : exampleFeatures) {
-        if (otherFeature.getFeatureName().equals(currentFeature)) {
-          // use vector calculations if the feature is categorical
-          if (queryFeatures.get(i).isCategorical()) {
-            res += distanceFunction.evaluate(queryFeatures.get(i).getValueAsVector(enumerations.get(currentFeature)),
-                    otherFeature.getValueAsVector(enumerations.get(currentFeature)));
-          } else {
-            queryVals[i] = queryFeatures.get(i).getScaledValue();
-            exampleVals[i] = otherFeature.getScaledValue();
-          }
-        }
+   * @param plan the compiled query
+   * @return true if some categorical feature has a positive mismatch distance, false otherwise
+   */
+  private static boolean canPrune(QueryPlan plan) {
+    for (int i = 0; i < plan.getCategoricalCount(); i++) {
+      if (plan.getMismatchDistance(i) > 0.0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Should the query of the given plan search the inverted index rather than be scanned? The
+   * index must be able to skip rows for it (see canPrune). Its search runs on the querying
+   * thread, so a store large enough to be scanned in parallel is only searched if the postings
+   * of the query's values are selective (see InvertedIndex.isSelective).
+   *
+   * @param plan the compiled query
+   * @return true if the query should search the inverted index, false if it should be scanned
+   */
+  private boolean searchesInvertedIndex(QueryPlan plan) {
+    return KNN.canPrune(plan) && (this.store.size() < this.parallelThreshold
+            || this.getInvertedIndex().isSelective(plan));
+  }
+
+  /**
+   * Gets the inverted index of this KNN's categorical values, indexing every stored row if it has
+   * not been built yet.
+   *
+   * @return the inverted index
+   */
+  private InvertedIndex getInvertedIndex() {
+    if (this.postings == null) {
+      this.postings = new InvertedIndex(this.layout, this.store);
+      for (int row = 0; row < this.store.size(); row++) {
+        this.postings.add(row);
+      }
+    }
+    return this.postings;
+  }
+
+  /**
+   * Gets the bit-packed copy of this KNN's examples, packing every stored row if it has not been
+   * built yet.
+   *
+   * @return the engine, or null if some feature is neither categorical nor boolean
+   */
+  private HammingEngine getHammingEngine() {
+    if (this.hamming == null && HammingEngine.canPack(this.layout)) {
+      this.hamming = new HammingEngine(this.layout, this.store);
+      for (int row = 0; row < this.store.size(); row++) {
+        this.hamming.add(row);
+      }
+    }
+    return this.hamming;
+  }
+
+  /**
+   * Gets the quantized copy of this KNN's numerical columns, quantizing every stored row if it
+   * has not been built, or was built with other bounds than the given ones for int8 precision.
+   *
+   * @param minimums current minimum of each numerical column
+   * @param maximums current maximum of each numerical column
+   * @return the quantized copy, or null if this KNN is not quantized
+   */
+  private QuantizedEngine getQuantizedEngine(double[] minimums, double[] maximums) {
+    if (this.quantization == null) {
+      return null;
+    }
+
+    if (this.quantized == null || !this.quantized.isBuiltWith(minimums, maximums)) {
+      this.quantized = new QuantizedEngine(this.store, this.quantization, minimums, maximums);
+      for (int row = 0; row < this.store.size(); row++) {
+        this.quantized.add(row);
       }
     }
+    return this.quantized;
+  }
 
-    res += distanceFunction.evaluate(queryVals, exampleVals);
+  /**
+   * Gets the product-quantization index of this KNN, training it on and adding every stored row
+   * if it has not been built yet, or if the store has grown to more than twice the rows it was
+   * trained on, so the codebooks keep up with the examples at a constant amortized cost per
+   * example.
+   *
+   * @param minimums current minimum of each numerical column
+   * @param maximums current maximum of each numerical column
+   * @return the index, or null if this KNN does not use one or has no numerical features
+   */
+  private ProductQuantizationIndex getProductQuantizationIndex(double[] minimums,
+                                                               double[] maximums) {
+    int width = this.layout.getNumericalWidth();
+    if (!"pq".equals(this.indexType) || width == 0) {
+      return null;
+    }
 
+    if (this.pq == null || this.store.size() > 2 * this.pq.getTrainingSize()) {
+      int subspaces = this.pqSubspaces == 0 ? (width + 1) / 2 : Math.min(this.pqSubspaces, width);
+      this.pq = new ProductQuantizationIndex(this.store, minimums, maximums, subspaces,
+              this.pqCentroids, 10, 5);
+      for (int row = 0; row < this.store.size(); row++) {
+        this.pq.add(row);
+      }
+    }
+    return this.pq;
+  }
+
+  /**
+   * Gets the neighbor index of this KNN, building it over every stored row if it has not been
+   * built yet, or, for an index tied to the bounds, not built with the given bounds yet.
+   *
+   * @param minimums current minimum of each numerical column
+   * @param maximums current maximum of each numerical column
+   * @return the index, or null if this KNN does not use one
+   */
+  private INeighborIndex getIndex(double[] minimums, double[] maximums) {
+    if (this.indexType == null || this.indexType.equals("pq")) {
+      return null;
+    }
+
+    if (this.index == null) {
+      if (this.indexType.equals("kd-tree")) {
+        this.index = new KDTreeIndex(this.store);
+      }
+      else {
+        // distances between rows are over every feature but the target class, which is what
+        // queries for the target class are over
+        List<String> indexFeatures = this.layout.getFeatureNames();
+        indexFeatures.remove(this.targetClass);
+        this.index = new VPTreeIndex(this.indexDistance, indexFeatures, row -> {
+          return new QueryPlan(this.decodeWithout(row, this.targetClass), this.layout,
+                  this.store, this.indexDistance, minimums, maximums);
+        });
+      }
+      for (int row = 0; row < this.store.size(); row++) {
+        this.index.add(row);
+      }
+    }
+    return this.index;
+  }
+
+  /**
+   * Decodes the given row into an entry, leaving out the given feature.
+   *
+   * @param row the row to decode
+   * @param featureName name of the feature to leave out
+   * @return the decoded entry
+   */
+  private IEntry decodeWithout(int row, String featureName) {
+    List<IFeature> rowFeatures = this.layout.decode(this.store, row).getFeatures();
+    rowFeatures.removeIf(feature -> feature.getFeatureName().equals(featureName));
+    return new EntryImpl(rowFeatures);
+  }
+
+  /**
+   * Gets the names of the features in the given entry.
+   *
+   * @param entry the entry
+   * @return the names of its features
+   */
+  private List<String> getFeatureNames(IEntry entry) {
+    List<String> res = new ArrayList<>();
+    for (IFeature feature : entry.getFeatures()) {
+      res.add(feature.getFeatureName());
+    }
     return res;
   }
 
+  /**
+   * Gets the scaled value of each numerical column in the query, with NaN for columns that are
+   * not in the query.
+   *
+   * @param queryEntry the query entry
+   * @param minimums current minimum of each numerical column
+   * @param maximums current maximum of each numerical column
+   * @return the query as a point in the scaled numerical space
+   */
+  private double[] getQueryPoint(IEntry queryEntry, double[] minimums, double[] maximums) {
+    double[] point = new double[this.layout.getNumericalWidth()];
+    Arrays.fill(point, Double.NaN);
+    for (IFeature feature : queryEntry.getFeatures()) {
+      int column = this.layout.getColumn(feature.getFeatureName());
+      if (!feature.isCategorical() && column >= 0
+              && !this.layout.isCategorical(feature.getFeatureName())) {
+        point[column] = KNN.scale(feature.getValue(), minimums[column], maximums[column]);
+      }
+    }
+    return point;
+  }
+
+  /**
+   * Scales the given value from 0 to 1 based on the given min and max. Values outside of the
+   * bounds (like those of a query) scale to outside of 0 to 1. If min and max are equal, the
+   * scaled value is 0.
+   *
+   * @param value value to scale
+   * @param min value of the feature
+   * @param max value of the feature
+   * @return the scaled value
+   */
+  static double scale(double value, double min, double max) {
+    return max == min ? 0.0 : (value - min) / (max - min);
+  }
 }
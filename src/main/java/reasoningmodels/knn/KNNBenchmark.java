@@ -0,0 +1,115 @@
+package reasoningmodels.knn;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import reasoningmodels.classifiers.EntryImpl;
+import reasoningmodels.classifiers.IEntry;
+import reasoningmodels.classifiers.IFeature;
+import reasoningmodels.classifiers.NumericalFeature;
+
+/**
+ * A main method that benchmarks the product-quantization index against a full scan, without a
+ * Soar agent. It stores clustered random examples with 16 numerical features, then reports the
+ * queries per second of each, and the recall of the index: the fraction of the true 10 nearest
+ * examples it finds, with and without re-ranking its candidates. The number of examples and
+ * queries can be given as arguments (200000 and 200 by default).
+ */
+public class KNNBenchmark {
+  private static final int WIDTH = 16;
+  private static final int K = 10;
+  private static final int RERANK = 10;
+
+  public static void main(String[] args) {
+    int rows = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+    int queries = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+    Random random = new Random(1);
+    double[][] centers = new double[100][WIDTH];
+    for (double[] center : centers) {
+      for (int column = 0; column < WIDTH; column++) {
+        center[column] = random.nextDouble();
+      }
+    }
+    double[] minimums = new double[WIDTH];
+    double[] maximums = new double[WIDTH];
+    Arrays.fill(minimums, -1.0);
+    Arrays.fill(maximums, 2.0);
+
+    FeatureLayout layout = new FeatureLayout(KNNBenchmark.entryOf(centers[0]), new HashMap<>());
+    IExampleStore store = new ColumnarExampleStore(WIDTH, 0);
+    for (int row = 0; row < rows; row++) {
+      store.add(KNNBenchmark.pointNear(centers, random), new int[0]);
+    }
+    List<QueryPlan> plans = new ArrayList<>();
+    for (int i = 0; i < queries; i++) {
+      plans.add(new QueryPlan(KNNBenchmark.entryOf(KNNBenchmark.pointNear(centers, random)),
+              layout, store, new L2Distance(), minimums, maximums));
+    }
+
+    long start = System.nanoTime();
+    List<int[]> expected = new ArrayList<>();
+    for (QueryPlan plan : plans) {
+      NeighborHeap nearest = new NeighborHeap(K);
+      for (int row = 0; row < store.size(); row++) {
+        nearest.offer(row, plan.distanceTo(row, nearest.worstDistance()));
+      }
+      expected.add(nearest.getSortedRows());
+    }
+    double scanSeconds = (System.nanoTime() - start) / 1e9;
+
+    start = System.nanoTime();
+    ProductQuantizationIndex index = new ProductQuantizationIndex(store, minimums, maximums,
+            WIDTH / 2, 256, 10, 5);
+    for (int row = 0; row < store.size(); row++) {
+      index.add(row);
+    }
+    double buildSeconds = (System.nanoTime() - start) / 1e9;
+
+    System.out.printf("%d examples, %d queries, k = %d%n", rows, queries, K);
+    System.out.printf("scan: %.1f queries per second%n", queries / scanSeconds);
+    System.out.printf("pq index built in %.1f s%n", buildSeconds);
+    for (int rerank : new int[] {1, RERANK}) {
+      start = System.nanoTime();
+      int found = 0;
+      for (int i = 0; i < queries; i++) {
+        IRowDistance encoded = index.compile(plans.get(i), new L2Distance(), minimums,
+                maximums);
+        NeighborHeap candidates = new NeighborHeap(rerank * K);
+        for (int row = 0; row < store.size(); row++) {
+          candidates.offer(row, encoded.distanceTo(row));
+        }
+        NeighborHeap nearest = new NeighborHeap(K);
+        for (int row : candidates.getSortedRows()) {
+          nearest.offer(row, plans.get(i).distanceTo(row));
+        }
+        for (int row : nearest.getSortedRows()) {
+          found += Arrays.stream(expected.get(i)).anyMatch(other -> other == row) ? 1 : 0;
+        }
+      }
+      double seconds = (System.nanoTime() - start) / 1e9;
+      System.out.printf("pq, re-ranking %d candidates: %.1f queries per second, recall %.3f%n",
+              rerank * K, queries / seconds, found / (double) (queries * K));
+    }
+  }
+
+  private static double[] pointNear(double[][] centers, Random random) {
+    double[] center = centers[random.nextInt(centers.length)];
+    double[] res = new double[WIDTH];
+    for (int column = 0; column < WIDTH; column++) {
+      res[column] = center[column] + random.nextGaussian() * 0.05;
+    }
+    return res;
+  }
+
+  private static IEntry entryOf(double[] point) {
+    List<IFeature> features = new ArrayList<>();
+    for (int column = 0; column < WIDTH; column++) {
+      features.add(new NumericalFeature("F" + column, point[column]));
+    }
+    return new EntryImpl(features);
+  }
+}
@@ -0,0 +1,55 @@
+package reasoningmodels.knn;
+
+/**
+ * Represents L1 or Manhattan distance, the sum of the absolute differences.
+ */
+public class L1Distance extends ADistanceFunction {
+
+  /**
+   * Throws a DimensionMismatchException if the inputs have differing sizes.
+   */
+  @Override
+  public double evaluate(double[] a, double[] b) {
+    ADistanceFunction.checkDimensions(a, b);
+    return DistanceKernels.l1(a, 0, b, 0, a.length);
+  }
+
+  @Override
+  public double evaluateWithCutoff(double[] a, double[] b, double cutoff) {
+    ADistanceFunction.checkDimensions(a, b);
+    return DistanceKernels.l1WithCutoff(a, 0, b, 0, a.length, cutoff);
+  }
+
+  /**
+   * Two one-hot vectors are 2 apart if their values differ, and 1 apart if only one of them has
+   * a value.
+   */
+  @Override
+  public double evaluateCategorical(int dimensions, int a, int b) {
+    if (a == b) {
+      return 0.0;
+    }
+    return a < 0 || b < 0 ? 1.0 : 2.0;
+  }
+
+  @Override
+  public void evaluateBatch(double[] query, double[] block, int offset, int count,
+                            double[] out) {
+    DistanceKernels.l1Batch(query, block, offset, count, out);
+  }
+
+  @Override
+  public boolean supportsBatch() {
+    return true;
+  }
+
+  @Override
+  public boolean isMetric() {
+    return true;
+  }
+
+  @Override
+  public boolean supportsCutoff() {
+    return true;
+  }
+}
@@ -1,19 +1,67 @@
 package reasoningmodels.knn;
 
-import org.apache.commons.math3.ml.distance.EuclideanDistance;
-
 /**
- * Represents L2 or Euclidean distance. Evaluates distance by euclidean calculations.
+ * Represents L2 or Euclidean distance. Evaluates distance by euclidean calculations, using the
+ * kernels in DistanceKernels.
  */
-public class L2Distance implements IDistanceFunction {
-  EuclideanDistance delegate = new EuclideanDistance();
+public class L2Distance extends ADistanceFunction {
 
   /**
-   * May throw an exception belonging to EuclideanDistance if inputs are invalid (such as
-   * differing sizes).
+   * Throws a DimensionMismatchException if the inputs have differing sizes.
    */
   @Override
   public double evaluate(double[] a, double[] b) {
-    return delegate.compute(a, b);
+    ADistanceFunction.checkDimensions(a, b);
+    return DistanceKernels.l2(a, 0, b, 0, a.length);
+  }
+
+  /**
+   * The squared distance is accumulated with the same kernel as evaluate and checked against the
+   * squared cutoff as it goes (see DistanceKernels.squaredL2WithCutoff).
+   */
+  @Override
+  public double evaluateWithCutoff(double[] a, double[] b, double cutoff) {
+    ADistanceFunction.checkDimensions(a, b);
+    double squaredCutoff = cutoff * cutoff;
+    double squared = DistanceKernels.squaredL2WithCutoff(a, 0, b, 0, a.length, squaredCutoff);
+    double res = Math.sqrt(squared);
+    if (res <= cutoff && squared > squaredCutoff) {
+      // the sum may have been abandoned, but the rounding of the squares hides it
+      return this.evaluate(a, b);
+    }
+    return res;
+  }
+
+  /**
+   * Two one-hot vectors are sqrt(2) apart if their values differ, and 1 apart if only one of
+   * them has a value.
+   */
+  @Override
+  public double evaluateCategorical(int dimensions, int a, int b) {
+    if (a == b) {
+      return 0.0;
+    }
+    return a < 0 || b < 0 ? 1.0 : Math.sqrt(2.0);
+  }
+
+  @Override
+  public void evaluateBatch(double[] query, double[] block, int offset, int count,
+                            double[] out) {
+    DistanceKernels.l2Batch(query, block, offset, count, out);
+  }
+
+  @Override
+  public boolean supportsBatch() {
+    return true;
+  }
+
+  @Override
+  public boolean isMetric() {
+    return true;
+  }
+
+  @Override
+  public boolean supportsCutoff() {
+    return true;
   }
 }
@@ -0,0 +1,269 @@
+package reasoningmodels.knn;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * A locality-sensitive hashing index for approximate KNN queries. Unlike an INeighborIndex, it
+ * may miss some of the true nearest rows in exchange for only scoring a small set of candidates.
+ * It keeps a number of hash tables; each table hashes a row by a few random projections of its
+ * scaled numerical values, each cut into buckets of a fixed width (p-stable hashing for
+ * euclidean distance), together with the codes of a random sample of its categorical columns.
+ * Rows that share a bucket with the query in any table are candidates. Besides the query's own
+ * bucket, each table can be probed at the buckets next to it whose boundaries are closest to the
+ * query (multi-probe hashing). More tables and more probes find more of the true neighbors at
+ * the cost of more candidates. The hashes are tied to the bounds they were built with, so the
+ * index must be replaced when the min-max bounds of the model change. A row whose example is
+ * replaced can be removed from its buckets and added again.
+ */
+public class LSHIndex {
+  private final IExampleStore store;
+  private final double[] minimums;
+  private final double[] maximums;
+  private final int[] categoricalColumns;
+  private final double width;
+  // projections[table][hash][column], offsets[table][hash]
+  private final double[][][] projections;
+  private final double[][] offsets;
+  // sampled categorical columns of each table, as indices into categoricalColumns
+  private final int[][] sampledColumns;
+  private final List<Map<Long, Bucket>> buckets;
+  private int[] seen;
+  private int queryCount;
+
+  /**
+   * Constructs an empty LSHIndex over the given store.
+   *
+   * @param store the example store whose rows are indexed
+   * @param minimums minimum of each numerical column
+   * @param maximums maximum of each numerical column
+   * @param categoricalColumns the categorical columns that may be hashed
+   * @param tables number of hash tables
+   * @param hashes number of projections hashed per table
+   * @param width width of the buckets of each projection, in scaled units
+   * @param seed seed for the random projections and samples
+   */
+  public LSHIndex(IExampleStore store, double[] minimums, double[] maximums,
+                  int[] categoricalColumns, int tables, int hashes, double width, long seed) {
+    if (store == null || minimums == null || maximums == null || categoricalColumns == null) {
+      throw new IllegalArgumentException("Store, bounds and columns cannot be null.");
+    }
+
+    if (tables <= 0 || hashes <= 0 || width <= 0) {
+      throw new IllegalArgumentException("Tables, hashes and width must be positive.");
+    }
+
+    this.store = store;
+    this.minimums = Arrays.copyOf(minimums, minimums.length);
+    this.maximums = Arrays.copyOf(maximums, maximums.length);
+    this.categoricalColumns = Arrays.copyOf(categoricalColumns, categoricalColumns.length);
+    this.width = width;
+
+    Random random = new Random(seed);
+    int projectionCount = minimums.length == 0 ? 0 : hashes;
+    this.projections = new double[tables][projectionCount][minimums.length];
+    this.offsets = new double[tables][projectionCount];
+    this.sampledColumns = new int[tables][];
+    this.buckets = new ArrayList<>();
+    for (int table = 0; table < tables; table++) {
+      for (int hash = 0; hash < projectionCount; hash++) {
+        for (int column = 0; column < minimums.length; column++) {
+          this.projections[table][hash][column] = random.nextGaussian();
+        }
+        this.offsets[table][hash] = random.nextDouble() * width;
+      }
+
+      // sample about half of the categorical columns, in a random order
+      int[] order = new int[categoricalColumns.length];
+      for (int i = 0; i < order.length; i++) {
+        int j = random.nextInt(i + 1);
+        order[i] = order[j];
+        order[j] = i;
+      }
+      this.sampledColumns[table] = Arrays.copyOf(order, (order.length + 1) / 2);
+      this.buckets.add(new HashMap<>());
+    }
+
+    this.seen = new int[0];
+    this.queryCount = 0;
+  }
+
+  /**
+   * Adds the given row of the example store to every table.
+   *
+   * @param row the row to add
+   */
+  public void add(int row) {
+    long[] keys = this.keysOf(row);
+    for (int table = 0; table < this.buckets.size(); table++) {
+      this.buckets.get(table).computeIfAbsent(keys[table], k -> new Bucket()).add(row);
+    }
+  }
+
+  /**
+   * Removes the given row from the bucket it hashes to in every table, before its example is
+   * replaced in the store, so it can be added again with its new example.
+   *
+   * @param row the row to remove
+   */
+  public void remove(int row) {
+    long[] keys = this.keysOf(row);
+    for (int table = 0; table < this.buckets.size(); table++) {
+      Bucket bucket = this.buckets.get(table).get(keys[table]);
+      if (bucket != null && bucket.remove(row) && bucket.size == 0) {
+        this.buckets.get(table).remove(keys[table]);
+      }
+    }
+  }
+
+  /**
+   * Gets the key of the bucket the given row of the store hashes to in each table.
+   */
+  private long[] keysOf(int row) {
+    double[] point = new double[this.minimums.length];
+    for (int column = 0; column < point.length; column++) {
+      point[column] = KNN.scale(this.store.getValue(row, column), this.minimums[column],
+              this.maximums[column]);
+    }
+    int[] codes = new int[this.store.getCategoricalWidth()];
+    for (int column : this.categoricalColumns) {
+      codes[column] = this.store.getCode(row, column);
+    }
+
+    long[] components = new long[this.offsets.length == 0 ? 0 : this.offsets[0].length];
+    long[] res = new long[this.buckets.size()];
+    for (int table = 0; table < res.length; table++) {
+      this.hash(table, point, components, null);
+      res[table] = this.key(table, components, codes);
+    }
+    return res;
+  }
+
+  /**
+   * Offers every candidate row for the query to the given heap, scoring each with the given
+   * distance. Candidates are the rows in the query's bucket and the probes - 1 nearest buckets
+   * around it, in every table.
+   *
+   * @param point the scaled value of each numerical column in the query
+   * @param codes the code of each categorical column in the query (-1 if unseen)
+   * @param probes number of buckets to look in per table
+   * @param distance the distance from the query to a row
+   * @param nearest heap to offer the candidates to
+   * @return the number of distinct candidates offered
+   */
+  public int search(double[] point, int[] codes, int probes, IRowDistance distance,
+                    NeighborHeap nearest) {
+    if (probes <= 0) {
+      throw new IllegalArgumentException("Probes must be positive.");
+    }
+
+    if (this.seen.length < this.store.size()) {
+      this.seen = Arrays.copyOf(this.seen, Math.max(this.store.size(), this.seen.length * 2));
+    }
+    // marks rows as seen for this query without clearing the array between queries
+    int stamp = ++this.queryCount;
+
+    int hashCount = this.offsets.length == 0 ? 0 : this.offsets[0].length;
+    long[] components = new long[hashCount];
+    double[] fractions = new double[hashCount];
+    // perturbation p moves hash p / 2 down a bucket if p is even, and up a bucket if it is odd
+    long[] perturbations = new long[2 * hashCount];
+    int candidates = 0;
+    for (int table = 0; table < this.buckets.size(); table++) {
+      this.hash(table, point, components, fractions);
+      for (int p = 0; p < perturbations.length; p++) {
+        double cost = p % 2 == 0 ? fractions[p / 2] : 1 - fractions[p / 2];
+        perturbations[p] = ((long) (cost * Integer.MAX_VALUE) << 32) | p;
+      }
+      Arrays.sort(perturbations);
+
+      for (int probe = 0; probe < Math.min(probes, perturbations.length + 1); probe++) {
+        int perturbed = -1;
+        if (probe > 0) {
+          perturbed = (int) perturbations[probe - 1];
+          components[perturbed / 2] += perturbed % 2 == 0 ? -1 : 1;
+        }
+        Bucket bucket = this.buckets.get(table).get(this.key(table, components, codes));
+        if (perturbed >= 0) {
+          components[perturbed / 2] -= perturbed % 2 == 0 ? -1 : 1;
+        }
+
+        for (int i = 0; bucket != null && i < bucket.size; i++) {
+          int row = bucket.rows[i];
+          if (this.seen[row] != stamp) {
+            this.seen[row] = stamp;
+            nearest.offer(row, distance.distanceTo(row, nearest.worstDistance()));
+            candidates++;
+          }
+        }
+      }
+    }
+    return candidates;
+  }
+
+  /**
+   * Computes the projection buckets of the given point in the given table. If fractions is not
+   * null, it is given how far into its bucket the point is along each projection, from 0 to 1.
+   */
+  private void hash(int table, double[] point, long[] components, double[] fractions) {
+    for (int hash = 0; hash < components.length; hash++) {
+      double projection = this.offsets[table][hash];
+      for (int column = 0; column < point.length; column++) {
+        projection += this.projections[table][hash][column] * point[column];
+      }
+      double position = projection / this.width;
+      components[hash] = (long) Math.floor(position);
+      if (fractions != null) {
+        fractions[hash] = position - Math.floor(position);
+      }
+    }
+  }
+
+  /**
+   * Combines the projection buckets and sampled categorical codes into the key of a bucket.
+   */
+  private long key(int table, long[] components, int[] codes) {
+    long key = 17;
+    for (long component : components) {
+      key = key * 1_000_003 + component;
+    }
+    for (int sampled : this.sampledColumns[table]) {
+      key = key * 1_000_003 + codes[this.categoricalColumns[sampled]];
+    }
+    return key;
+  }
+
+  /**
+   * A growable list of the rows in a bucket.
+   */
+  private static class Bucket {
+    private int[] rows = new int[4];
+    private int size = 0;
+
+    private void add(int row) {
+      if (this.size == this.rows.length) {
+        this.rows = Arrays.copyOf(this.rows, this.rows.length * 2);
+      }
+      this.rows[this.size++] = row;
+    }
+
+    /**
+     * Removes the given row by moving the last row into its place.
+     *
+     * @return true if the row was in the bucket, false otherwise
+     */
+    private boolean remove(int row) {
+      for (int i = 0; i < this.size; i++) {
+        if (this.rows[i] == row) {
+          this.rows[i] = this.rows[--this.size];
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+}
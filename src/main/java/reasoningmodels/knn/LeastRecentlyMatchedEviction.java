@@ -0,0 +1,84 @@
+package reasoningmodels.knn;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Evicts the example that has gone the longest without being among the nearest neighbors of a
+ * query, counting its training as a match. Examples that keep deciding queries are kept, and
+ * examples that never do age out. The rows are kept in a doubly linked list from most to least
+ * recently matched, held in two int arrays, so noting a match and choosing a victim both take
+ * constant time.
+ */
+public class LeastRecentlyMatchedEviction implements IEvictionPolicy, Serializable {
+  // previous link of a row that has not been stored yet
+  private static final int UNLINKED = -2;
+
+  private final int[] previous;
+  private final int[] next;
+  // most and least recently matched rows, or -1 if no row has been stored
+  private int head;
+  private int tail;
+
+  /**
+   * Constructs a LeastRecentlyMatchedEviction for a store of the given capacity.
+   *
+   * @param capacity the number of rows the store holds once it is full
+   */
+  public LeastRecentlyMatchedEviction(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Capacity must be positive.");
+    }
+
+    this.previous = new int[capacity];
+    this.next = new int[capacity];
+    Arrays.fill(this.previous, UNLINKED);
+    this.head = -1;
+    this.tail = -1;
+  }
+
+  @Override
+  public int chooseVictim() {
+    return this.tail;
+  }
+
+  @Override
+  public void added(int row) {
+    this.matched(row);
+  }
+
+  @Override
+  public void matched(int row) {
+    if (row == this.head) {
+      return;
+    }
+
+    if (this.previous[row] != UNLINKED) {
+      this.unlink(row);
+    }
+    this.previous[row] = -1;
+    this.next[row] = this.head;
+    if (this.head >= 0) {
+      this.previous[this.head] = row;
+    }
+    this.head = row;
+    if (this.tail < 0) {
+      this.tail = row;
+    }
+  }
+
+  /**
+   * Removes the given row, which is in the list but not at its head, from the list.
+   */
+  private void unlink(int row) {
+    int before = this.previous[row];
+    int after = this.next[row];
+    this.next[before] = after;
+    if (after >= 0) {
+      this.previous[after] = before;
+    }
+    else {
+      this.tail = before;
+    }
+  }
+}
@@ -0,0 +1,234 @@
+package reasoningmodels.knn;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * An implementation of IExampleStore that keeps the examples off the heap, in a memory-mapped
+ * file, so a model can hold more examples than the heap has room for. The file starts with a
+ * header of the column counts, followed by the rows, each laid out as its raw numerical values
+ * (doubles) and then its categorical codes (ints). The file is mapped in segments of whole rows,
+ * which are added as rows are appended, and rows are read straight from the mapped buffers.
+ * Serializing the store writes the file's contents to disk and records only its path and size,
+ * so a deserialized store maps the same file again instead of reading every row. The file must
+ * therefore not be moved, or written to by another store, while a serialized model refers to it.
+ * The file is only opened while a segment is mapped, since a mapping stays valid once its channel
+ * is closed, so the store holds no open file between calls and needs no closing.
+ */
+public class MappedExampleStore implements IExampleStore, Serializable {
+  private static final int MAGIC = 0x4b4e4e31;
+  // header of the magic number and the column counts, padded so the doubles stay aligned
+  private static final int HEADER_BYTES = 16;
+  private static final int SEGMENT_BYTES = 1 << 26;
+
+  private final String filePath;
+  private final int numericalWidth;
+  private final int categoricalWidth;
+  private final int rowBytes;
+  private final int segmentRows;
+  private int size;
+  private transient ByteBuffer[] segments;
+
+  /**
+   * Constructs an empty MappedExampleStore in the file at the given path, with the given number
+   * of columns per row. The file is created, or truncated if it exists.
+   *
+   * @param filePath path of the file to keep the rows in
+   * @param numericalWidth number of numerical/boolean columns
+   * @param categoricalWidth number of categorical columns
+   */
+  public MappedExampleStore(String filePath, int numericalWidth, int categoricalWidth) {
+    if (filePath == null) {
+      throw new IllegalArgumentException("File path cannot be null.");
+    }
+
+    if (numericalWidth < 0 || categoricalWidth < 0) {
+      throw new IllegalArgumentException("Column counts cannot be negative.");
+    }
+
+    this.filePath = filePath;
+    this.numericalWidth = numericalWidth;
+    this.categoricalWidth = categoricalWidth;
+    this.rowBytes = numericalWidth * Double.BYTES + categoricalWidth * Integer.BYTES;
+    this.segmentRows = Math.max(1, SEGMENT_BYTES / Math.max(1, this.rowBytes));
+    this.size = 0;
+    try (FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+            StandardOpenOption.WRITE)) {
+      ByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+      header.putInt(MAGIC).putInt(numericalWidth).putInt(categoricalWidth);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Cannot map example file " + filePath + ".", e);
+    }
+    this.segments = new ByteBuffer[0];
+  }
+
+  /**
+   * Gets the path of the file the rows are kept in.
+   *
+   * @return the file path
+   */
+  public String getFilePath() {
+    return this.filePath;
+  }
+
+  @Override
+  public int size() {
+    return this.size;
+  }
+
+  @Override
+  public int getNumericalWidth() {
+    return this.numericalWidth;
+  }
+
+  @Override
+  public int getCategoricalWidth() {
+    return this.categoricalWidth;
+  }
+
+  @Override
+  public int add(double[] numerical, int[] categorical) {
+    this.checkRow(numerical, categorical);
+
+    int segment = this.size / this.segmentRows;
+    if (segment == this.segments.length) {
+      this.segments = Arrays.copyOf(this.segments, segment + 1);
+      this.segments[segment] = this.mapSegment(segment);
+    }
+
+    this.write(this.size, numerical, categorical);
+    return this.size++;
+  }
+
+  @Override
+  public void set(int row, double[] numerical, int[] categorical) {
+    this.checkRow(numerical, categorical);
+    if (row < 0 || row >= this.size) {
+      throw new IndexOutOfBoundsException("No row " + row + " to replace.");
+    }
+
+    this.write(row, numerical, categorical);
+  }
+
+  @Override
+  public void truncate(int size) {
+    if (size < 0 || size > this.size) {
+      throw new IndexOutOfBoundsException("Cannot truncate " + this.size + " rows to " + size
+              + ".");
+    }
+
+    this.size = size;
+  }
+
+  /**
+   * Writes the given values into the given row, whose segment is mapped.
+   */
+  private void write(int row, double[] numerical, int[] categorical) {
+    ByteBuffer segment = this.segments[row / this.segmentRows];
+    int offset = (row % this.segmentRows) * this.rowBytes;
+    for (int column = 0; column < this.numericalWidth; column++) {
+      segment.putDouble(offset, numerical[column]);
+      offset += Double.BYTES;
+    }
+    for (int column = 0; column < this.categoricalWidth; column++) {
+      segment.putInt(offset, categorical[column]);
+      offset += Integer.BYTES;
+    }
+  }
+
+  /**
+   * Checks that the given row values are not null and have as many columns as the store.
+   *
+   * @param numerical the numerical values of the row
+   * @param categorical the categorical codes of the row
+   */
+  private void checkRow(double[] numerical, int[] categorical) {
+    if (numerical == null || categorical == null) {
+      throw new IllegalArgumentException("Row values cannot be null.");
+    }
+
+    if (numerical.length != this.numericalWidth || categorical.length != this.categoricalWidth) {
+      throw new IllegalArgumentException("Row does not have the same number of columns as the " +
+              "store.");
+    }
+  }
+
+  @Override
+  public double getValue(int row, int column) {
+    if (row < 0 || row >= this.size || column < 0 || column >= this.numericalWidth) {
+      throw new IndexOutOfBoundsException("No numerical value at row " + row + ", column "
+              + column + ".");
+    }
+
+    return this.segments[row / this.segmentRows].getDouble((row % this.segmentRows)
+            * this.rowBytes + column * Double.BYTES);
+  }
+
+  @Override
+  public int getCode(int row, int column) {
+    if (row < 0 || row >= this.size || column < 0 || column >= this.categoricalWidth) {
+      throw new IndexOutOfBoundsException("No categorical value at row " + row + ", column "
+              + column + ".");
+    }
+
+    return this.segments[row / this.segmentRows].getInt((row % this.segmentRows)
+            * this.rowBytes + this.numericalWidth * Double.BYTES + column * Integer.BYTES);
+  }
+
+  /**
+   * Maps the given segment of rows, growing the file if it does not reach that far yet. The file
+   * is opened for the mapping and closed again.
+   */
+  private ByteBuffer mapSegment(int segment) {
+    try (FileChannel channel = FileChannel.open(Paths.get(this.filePath),
+            StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      return channel.map(FileChannel.MapMode.READ_WRITE,
+              HEADER_BYTES + (long) segment * this.segmentRows * this.rowBytes,
+              (long) this.segmentRows * this.rowBytes).order(ByteOrder.LITTLE_ENDIAN);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Cannot map example file " + this.filePath + ".", e);
+    }
+  }
+
+  /**
+   * Writes the mapped rows to the file before recording its path and size.
+   */
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    for (ByteBuffer segment : this.segments) {
+      ((MappedByteBuffer) segment).force();
+    }
+    out.defaultWriteObject();
+  }
+
+  /**
+   * Maps the file again, after checking that its header matches the store.
+   */
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    try (FileChannel channel = FileChannel.open(Paths.get(this.filePath),
+            StandardOpenOption.READ)) {
+      ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+      if (header.getInt() != MAGIC || header.getInt() != this.numericalWidth
+              || header.getInt() != this.categoricalWidth
+              || channel.size() < HEADER_BYTES + (long) this.size * this.rowBytes) {
+        throw new IOException("Example file " + this.filePath + " does not match the store.");
+      }
+    }
+
+    this.segments = new ByteBuffer[(this.size + this.segmentRows - 1) / this.segmentRows];
+    for (int segment = 0; segment < this.segments.length; segment++) {
+      this.segments[segment] = this.mapSegment(segment);
+    }
+  }
+}
@@ -0,0 +1,93 @@
+package reasoningmodels.knn;
+
+/**
+ * Represents the Minkowski distance of order p, the p-th root of the sum of the absolute
+ * differences raised to the p-th power. It is a metric for p of at least 1; orders 1 and 2 give
+ * the manhattan and euclidean distances, which have their own faster classes.
+ */
+public class MinkowskiDistance extends ADistanceFunction {
+  private final double p;
+
+  /**
+   * Constructs a Minkowski distance of the given order.
+   *
+   * @param p the order, which must be positive
+   */
+  public MinkowskiDistance(double p) {
+    if (!(p > 0) || Double.isInfinite(p)) {
+      throw new IllegalArgumentException("Order of a Minkowski distance must be positive.");
+    }
+    this.p = p;
+  }
+
+  /**
+   * Gets the order of this distance.
+   *
+   * @return the order
+   */
+  public double getP() {
+    return this.p;
+  }
+
+  /**
+   * Throws a DimensionMismatchException if the inputs have differing sizes.
+   */
+  @Override
+  public double evaluate(double[] a, double[] b) {
+    ADistanceFunction.checkDimensions(a, b);
+    return Math.pow(DistanceKernels.minkowskiSum(a, 0, b, 0, a.length, this.p,
+            Double.POSITIVE_INFINITY), 1.0 / this.p);
+  }
+
+  /**
+   * The sum of the powers is checked against the cutoff raised to the p-th power as it goes (see
+   * DistanceKernels.minkowskiSum).
+   */
+  @Override
+  public double evaluateWithCutoff(double[] a, double[] b, double cutoff) {
+    ADistanceFunction.checkDimensions(a, b);
+    double sumCutoff = Math.pow(cutoff, this.p);
+    double sum = DistanceKernels.minkowskiSum(a, 0, b, 0, a.length, this.p, sumCutoff);
+    double res = Math.pow(sum, 1.0 / this.p);
+    if (res <= cutoff && sum > sumCutoff) {
+      // the sum may have been abandoned, but the rounding of the powers hides it
+      return this.evaluate(a, b);
+    }
+    return res;
+  }
+
+  /**
+   * Two one-hot vectors are the p-th root of 2 apart if their values differ, and 1 apart if only
+   * one of them has a value.
+   */
+  @Override
+  public double evaluateCategorical(int dimensions, int a, int b) {
+    if (a == b) {
+      return 0.0;
+    }
+    return a < 0 || b < 0 ? 1.0 : Math.pow(2.0, 1.0 / this.p);
+  }
+
+  @Override
+  public boolean isMetric() {
+    return this.p >= 1.0;
+  }
+
+  @Override
+  public boolean supportsCutoff() {
+    return true;
+  }
+
+  /**
+   * Two Minkowski distances are equal if they have the same order.
+   */
+  @Override
+  public boolean equals(Object other) {
+    return super.equals(other) && ((MinkowskiDistance) other).p == this.p;
+  }
+
+  @Override
+  public int hashCode() {
+    return Double.hashCode(this.p);
+  }
+}
@@ -0,0 +1,265 @@
+package reasoningmodels.knn;
+
+import java.util.Arrays;
+
+/**
+ * A bounded max-heap of (row, distance) pairs that keeps the k nearest rows offered to it. Rows
+ * and distances are held in parallel primitive arrays, so offering a candidate never allocates
+ * or boxes. The root of the heap is the worst neighbor kept so far, so candidates that cannot
+ * make the cut are rejected in constant time. Ties in distance are broken by row, with the lower
+ * row counting as nearer, so the kept set does not depend on the order rows are offered in.
+ * A heap made with withinRadius instead keeps every row offered to it that is within the radius,
+ * however many there are, and reports the radius as the distance to beat, so the scans and
+ * indexes that prune against a k-nearest heap prune against the radius in the same way.
+ */
+public class NeighborHeap {
+  private final int capacity;
+  private final double radius;
+  private int[] rows;
+  private double[] distances;
+  private int size;
+
+  /**
+   * Constructs an empty NeighborHeap that keeps at most k neighbors.
+   *
+   * @param k number of neighbors to keep
+   */
+  public NeighborHeap(int k) {
+    if (k <= 0) {
+      throw new IllegalArgumentException("K must be positive.");
+    }
+
+    this.capacity = k;
+    this.radius = Double.POSITIVE_INFINITY;
+    this.rows = new int[k];
+    this.distances = new double[k];
+    this.size = 0;
+  }
+
+  private NeighborHeap(double radius) {
+    this.capacity = Integer.MAX_VALUE;
+    this.radius = radius;
+    this.rows = new int[16];
+    this.distances = new double[16];
+    this.size = 0;
+  }
+
+  /**
+   * Constructs an empty NeighborHeap that keeps every neighbor whose distance is at most the
+   * given radius.
+   *
+   * @param radius the greatest distance of a kept neighbor
+   * @return the empty heap
+   */
+  public static NeighborHeap withinRadius(double radius) {
+    if (Double.isNaN(radius) || radius < 0) {
+      throw new IllegalArgumentException("Radius cannot be negative.");
+    }
+
+    return new NeighborHeap(radius);
+  }
+
+  /**
+   * Constructs an empty NeighborHeap that keeps neighbors the same way as this one: the same
+   * number of them, or every one within the same radius.
+   *
+   * @return the empty heap
+   */
+  public NeighborHeap emptyCopy() {
+    return this.capacity == Integer.MAX_VALUE ? new NeighborHeap(this.radius)
+            : new NeighborHeap(this.capacity);
+  }
+
+  /**
+   * Gets the maximum number of neighbors this heap keeps.
+   *
+   * @return k, or Integer.MAX_VALUE if the heap keeps every neighbor within a radius
+   */
+  public int capacity() {
+    return this.capacity;
+  }
+
+  /**
+   * Gets the number of neighbors currently kept.
+   *
+   * @return the number of neighbors
+   */
+  public int size() {
+    return this.size;
+  }
+
+  /**
+   * Does the heap hold k neighbors?
+   *
+   * @return true if it is full, false otherwise
+   */
+  public boolean isFull() {
+    return this.size == this.capacity;
+  }
+
+  /**
+   * Gets the distance a candidate has to beat to be kept: the distance of the worst kept
+   * neighbor if the heap is full, and otherwise the radius, which is positive infinity for a
+   * heap that keeps k neighbors.
+   *
+   * @return the distance to beat
+   */
+  public double worstDistance() {
+    return this.isFull() ? this.distances[0] : this.radius;
+  }
+
+  /**
+   * Offers a candidate row to the heap. A candidate beyond the radius is never kept; otherwise,
+   * it is kept if the heap is not full or if it is nearer than the worst kept neighbor, which it
+   * then replaces.
+   *
+   * @param row the candidate row
+   * @param distance the candidate's distance to the query
+   * @return true if the candidate was kept, false otherwise
+   */
+  public boolean offer(int row, double distance) {
+    if (distance > this.radius) {
+      return false;
+    }
+
+    if (this.size < this.capacity) {
+      if (this.size == this.rows.length) {
+        this.rows = Arrays.copyOf(this.rows, this.size * 2);
+        this.distances = Arrays.copyOf(this.distances, this.size * 2);
+      }
+      this.rows[this.size] = row;
+      this.distances[this.size] = distance;
+      this.siftUp(this.size++);
+      return true;
+    }
+
+    if (!NeighborHeap.isNearer(row, distance, this.rows[0], this.distances[0])) {
+      return false;
+    }
+
+    this.rows[0] = row;
+    this.distances[0] = distance;
+    NeighborHeap.siftDown(this.rows, this.distances, 0, this.size);
+    return true;
+  }
+
+  /**
+   * Offers every neighbor kept by the given heap to this heap.
+   *
+   * @param other heap to merge into this one
+   */
+  public void merge(NeighborHeap other) {
+    for (int i = 0; i < other.size; i++) {
+      this.offer(other.rows[i], other.distances[i]);
+    }
+  }
+
+  /**
+   * Removes every kept neighbor.
+   */
+  public void clear() {
+    this.size = 0;
+  }
+
+  /**
+   * Gets the kept rows, nearest first.
+   *
+   * @return the rows sorted by distance
+   */
+  public int[] getSortedRows() {
+    int[] sortedRows = new int[this.size];
+    this.sortInto(sortedRows, new double[this.size]);
+    return sortedRows;
+  }
+
+  /**
+   * Gets the distances of the kept rows, nearest first, in the same order as getSortedRows.
+   *
+   * @return the sorted distances
+   */
+  public double[] getSortedDistances() {
+    double[] sortedDistances = new double[this.size];
+    this.sortInto(new int[this.size], sortedDistances);
+    return sortedDistances;
+  }
+
+  /**
+   * Heap sorts copies of the kept neighbors into the given arrays, nearest first.
+   *
+   * @param sortedRows array to copy rows into
+   * @param sortedDistances array to copy distances into
+   */
+  private void sortInto(int[] sortedRows, double[] sortedDistances) {
+    System.arraycopy(this.rows, 0, sortedRows, 0, this.size);
+    System.arraycopy(this.distances, 0, sortedDistances, 0, this.size);
+    for (int end = this.size - 1; end > 0; end--) {
+      NeighborHeap.swap(sortedRows, sortedDistances, 0, end);
+      NeighborHeap.siftDown(sortedRows, sortedDistances, 0, end);
+    }
+  }
+
+  /**
+   * Moves the neighbor at the given index up until its parent is farther than it.
+   *
+   * @param index index of the neighbor to move
+   */
+  private void siftUp(int index) {
+    while (index > 0) {
+      int parent = (index - 1) / 2;
+      if (!NeighborHeap.isNearer(this.rows[parent], this.distances[parent], this.rows[index],
+              this.distances[index])) {
+        return;
+      }
+      NeighborHeap.swap(this.rows, this.distances, parent, index);
+      index = parent;
+    }
+  }
+
+  /**
+   * Moves the neighbor at the given index down until both its children are nearer than it.
+   *
+   * @param rows heap rows
+   * @param distances heap distances
+   * @param index index of the neighbor to move
+   * @param size number of neighbors in the heap
+   */
+  private static void siftDown(int[] rows, double[] distances, int index, int size) {
+    while (true) {
+      int farthest = index;
+      int left = 2 * index + 1;
+      int right = left + 1;
+      if (left < size && NeighborHeap.isNearer(rows[farthest], distances[farthest], rows[left],
+              distances[left])) {
+        farthest = left;
+      }
+      if (right < size && NeighborHeap.isNearer(rows[farthest], distances[farthest], rows[right],
+              distances[right])) {
+        farthest = right;
+      }
+      if (farthest == index) {
+        return;
+      }
+      NeighborHeap.swap(rows, distances, index, farthest);
+      index = farthest;
+    }
+  }
+
+  /**
+   * Is the first neighbor nearer than the second? Ties in distance go to the lower row.
+   */
+  private static boolean isNearer(int row, double distance, int otherRow, double otherDistance) {
+    return distance < otherDistance || (distance == otherDistance && row < otherRow);
+  }
+
+  /**
+   * Swaps the neighbors at the two given indices.
+   */
+  private static void swap(int[] rows, double[] distances, int i, int j) {
+    int row = rows[i];
+    rows[i] = rows[j];
+    rows[j] = row;
+    double distance = distances[i];
+    distances[i] = distances[j];
+    distances[j] = distance;
+  }
+}
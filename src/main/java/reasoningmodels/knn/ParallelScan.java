@@ -0,0 +1,103 @@
+package reasoningmodels.knn;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * A fork-join task that scans a range of rows and returns the k nearest of them (or those within a
+ * radius, see NeighborHeap.withinRadius). Ranges larger than the chunk size are split in half, each
+ * half is scanned into its own heap (in parallel), and the two heaps are merged. Since NeighborHeap
+ * breaks ties by row, the merged heap holds exactly the rows a sequential scan would keep. Each
+ * chunk scores rows with its own copy of the row distance (see IRowDistance.copy), so row distances
+ * that keep scratch state can be used.
+ */
+public class ParallelScan extends RecursiveTask<NeighborHeap> {
+  // the smallest range worth handing to another thread
+  private static final int MIN_CHUNK_SIZE = 1024;
+  // number of rows a chunk scores at once when the row distance can score blocks
+  private static final int BLOCK_SIZE = 256;
+
+  private final IRowDistance distance;
+  // an empty heap like the ones each chunk keeps its nearest rows in
+  private final NeighborHeap empty;
+  private final int from;
+  private final int to;
+  private final int chunkSize;
+
+  private ParallelScan(IRowDistance distance, NeighborHeap empty, int from, int to,
+                       int chunkSize) {
+    this.distance = distance;
+    this.empty = empty;
+    this.from = from;
+    this.to = to;
+    this.chunkSize = chunkSize;
+  }
+
+  /**
+   * Scans the given rows on the common fork-join pool, splitting them into about four chunks per
+   * thread of the pool, and keeping the nearest of them the same way as the given heap does (see
+   * NeighborHeap.emptyCopy).
+   *
+   * @param distance the distance from the query to a row
+   * @param like heap whose kind of neighbors to keep, which is not changed
+   * @param from first row to scan
+   * @param to row after the last row to scan
+   * @return a heap holding the nearest of the rows
+   */
+  public static NeighborHeap scan(IRowDistance distance, NeighborHeap like, int from, int to) {
+    if (distance == null || like == null) {
+      throw new IllegalArgumentException("Distance and heap cannot be null.");
+    }
+
+    ForkJoinPool pool = ForkJoinPool.commonPool();
+    int chunkSize = Math.max(MIN_CHUNK_SIZE, (to - from) / (4 * pool.getParallelism()) + 1);
+    return pool.invoke(new ParallelScan(distance, like.emptyCopy(), from, to, chunkSize));
+  }
+
+  /**
+   * Scans the given rows on this thread, in blocks as long as the given array. Each block is
+   * scored at once if the row distance can (see IRowDistance.distancesTo), and otherwise each
+   * row is scored with the distance of the worst kept neighbor as a cutoff.
+   *
+   * @param distance the distance from the query to a row
+   * @param nearest heap to offer every row to
+   * @param from first row to scan
+   * @param to row after the last row to scan
+   * @param distances scratch array for the distances of a block
+   */
+  static void scanBlocks(IRowDistance distance, NeighborHeap nearest, int from, int to,
+                         double[] distances) {
+    for (int start = from; start < to; start += distances.length) {
+      int end = Math.min(start + distances.length, to);
+      if (distance.distancesTo(start, end, distances)) {
+        for (int row = start; row < end; row++) {
+          nearest.offer(row, distances[row - start]);
+        }
+      } else {
+        for (int row = start; row < end; row++) {
+          nearest.offer(row, distance.distanceTo(row, nearest.worstDistance()));
+        }
+      }
+    }
+  }
+
+  @Override
+  protected NeighborHeap compute() {
+    if (this.to - this.from <= this.chunkSize) {
+      IRowDistance distance = this.distance.copy();
+      NeighborHeap nearest = this.empty.emptyCopy();
+      ParallelScan.scanBlocks(distance, nearest, this.from, this.to, new double[BLOCK_SIZE]);
+      return nearest;
+    }
+
+    int middle = (this.from + this.to) >>> 1;
+    ParallelScan left = new ParallelScan(this.distance, this.empty, this.from, middle,
+            this.chunkSize);
+    ParallelScan right = new ParallelScan(this.distance, this.empty, middle, this.to,
+            this.chunkSize);
+    left.fork();
+    NeighborHeap nearest = right.compute();
+    nearest.merge(left.join());
+    return nearest;
+  }
+}
@@ -0,0 +1,269 @@
+package reasoningmodels.knn;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A product-quantization index for approximate KNN queries over very many examples. The scaled
+ * numerical columns are split into a few subspaces of neighboring columns, and each subspace has
+ * a codebook of up to 256 centroids, trained with k-means on a sample of the rows. Each row is
+ * then kept as one byte per subspace: the code of its nearest centroid there. To search, the
+ * distance from the query to every centroid of every subspace is computed once (asymmetric
+ * distance computation), so the distance to a row is a sum of one table lookup per subspace,
+ * without reading the row's values. Like the hash tables of an LSHIndex, the index may rank some
+ * rows wrongly, so its candidates are meant to be re-ranked with exact distances. The codebooks
+ * are trained with the columns scaled by the bounds at the time, but a centroid stands for raw
+ * values, which are scaled with the current bounds of each query, so the index survives changes
+ * to the min-max bounds of the model. Rows added after it is built are encoded with the same
+ * codebooks, which fit them less well as the rows drift away from the training sample, so the
+ * index should be trained again once the store grows well past the rows it was trained on (see
+ * getTrainingSize).
+ */
+public class ProductQuantizationIndex {
+  // rows sampled per centroid to train each codebook
+  private static final int SAMPLE_PER_CENTROID = 40;
+
+  private final IExampleStore store;
+  private final double[] minimums;
+  private final double[] maximums;
+  // subspace s holds the numerical columns from subspaceStarts[s] up to subspaceStarts[s + 1]
+  private final int[] subspaceStarts;
+  // codebooks[subspace][centroid][column - start of the subspace], scaled by the bounds the
+  // index was built with
+  private final double[][][] codebooks;
+  private final int trainingSize;
+  private byte[] codes;
+  private int size;
+
+  /**
+   * Constructs a ProductQuantizationIndex over the given store, training its codebooks on the
+   * rows the store has now. Its rows must still be added (see add).
+   *
+   * @param store the example store whose rows are indexed, which must not be empty
+   * @param minimums minimum of each numerical column, which the columns are scaled by to train
+   *                 the codebooks
+   * @param maximums maximum of each numerical column
+   * @param subspaces number of subspaces to split the numerical columns into, at most the
+   *                  number of numerical columns
+   * @param centroids number of centroids per subspace, from 1 to 256
+   * @param iterations number of k-means iterations to train each codebook with
+   * @param seed seed for the sample of training rows
+   */
+  public ProductQuantizationIndex(IExampleStore store, double[] minimums, double[] maximums,
+                                  int subspaces, int centroids, int iterations, long seed) {
+    if (store == null || minimums == null || maximums == null) {
+      throw new IllegalArgumentException("Store and bounds cannot be null.");
+    }
+
+    if (subspaces <= 0 || subspaces > minimums.length || centroids <= 0 || centroids > 256
+            || iterations < 0) {
+      throw new IllegalArgumentException("Subspaces must be from 1 to the number of numerical "
+              + "columns, centroids from 1 to 256, and iterations cannot be negative.");
+    }
+
+    if (store.size() == 0) {
+      throw new IllegalArgumentException("Cannot train codebooks without examples.");
+    }
+
+    this.store = store;
+    this.minimums = Arrays.copyOf(minimums, minimums.length);
+    this.maximums = Arrays.copyOf(maximums, maximums.length);
+    this.subspaceStarts = new int[subspaces + 1];
+    for (int subspace = 0; subspace <= subspaces; subspace++) {
+      this.subspaceStarts[subspace] = subspace * minimums.length / subspaces;
+    }
+
+    // a random sample of distinct rows, the first of which seed the centroids
+    Random random = new Random(seed);
+    int[] sample = new int[store.size()];
+    for (int i = 0; i < sample.length; i++) {
+      int j = random.nextInt(i + 1);
+      sample[i] = sample[j];
+      sample[j] = i;
+    }
+    sample = Arrays.copyOf(sample, Math.min(sample.length, centroids * SAMPLE_PER_CENTROID));
+    double[][] points = new double[sample.length][];
+    for (int i = 0; i < sample.length; i++) {
+      points[i] = this.pointOf(sample[i]);
+    }
+
+    this.codebooks = new double[subspaces][][];
+    for (int subspace = 0; subspace < subspaces; subspace++) {
+      this.codebooks[subspace] = this.train(subspace, points, Math.min(centroids,
+              points.length), iterations);
+    }
+    this.trainingSize = store.size();
+    this.codes = new byte[0];
+    this.size = 0;
+  }
+
+  /**
+   * Gets the number of rows the store had when the codebooks were trained.
+   *
+   * @return the number of rows
+   */
+  public int getTrainingSize() {
+    return this.trainingSize;
+  }
+
+  /**
+   * Trains the codebook of the given subspace with k-means, seeded with the first points.
+   * Centroids that no point is nearest to are left where they are.
+   */
+  private double[][] train(int subspace, double[][] points, int centroids, int iterations) {
+    int start = this.subspaceStarts[subspace];
+    int width = this.subspaceStarts[subspace + 1] - start;
+    double[][] res = new double[centroids][];
+    for (int centroid = 0; centroid < centroids; centroid++) {
+      res[centroid] = Arrays.copyOfRange(points[centroid], start, start + width);
+    }
+
+    double[][] sums = new double[centroids][width];
+    int[] counts = new int[centroids];
+    for (int iteration = 0; iteration < iterations; iteration++) {
+      for (double[] sum : sums) {
+        Arrays.fill(sum, 0.0);
+      }
+      Arrays.fill(counts, 0);
+      for (double[] point : points) {
+        int nearest = ProductQuantizationIndex.nearest(res, point, start);
+        counts[nearest]++;
+        for (int column = 0; column < width; column++) {
+          sums[nearest][column] += point[start + column];
+        }
+      }
+
+      for (int centroid = 0; centroid < centroids; centroid++) {
+        for (int column = 0; counts[centroid] > 0 && column < width; column++) {
+          res[centroid][column] = sums[centroid][column] / counts[centroid];
+        }
+      }
+    }
+    return res;
+  }
+
+  /**
+   * Gets the centroid of the codebook nearest to the part of the point that starts at the given
+   * column, by squared euclidean distance.
+   */
+  private static int nearest(double[][] codebook, double[] point, int start) {
+    int res = 0;
+    double least = Double.POSITIVE_INFINITY;
+    for (int centroid = 0; centroid < codebook.length; centroid++) {
+      double distance = 0.0;
+      for (int column = 0; column < codebook[centroid].length; column++) {
+        double difference = point[start + column] - codebook[centroid][column];
+        distance += difference * difference;
+      }
+      if (distance < least) {
+        least = distance;
+        res = centroid;
+      }
+    }
+    return res;
+  }
+
+  private double[] pointOf(int row) {
+    double[] point = new double[this.minimums.length];
+    for (int column = 0; column < point.length; column++) {
+      point[column] = KNN.scale(this.store.getValue(row, column), this.minimums[column],
+              this.maximums[column]);
+    }
+    return point;
+  }
+
+  /**
+   * Encodes the given row of the store. New rows must be added in order; adding a row that was
+   * already encoded encodes it again, for when the store's row was replaced.
+   *
+   * @param row the row to add
+   */
+  public void add(int row) {
+    if (row < 0 || row > this.size) {
+      throw new IllegalArgumentException("Rows must be added in order.");
+    }
+
+    int subspaces = this.codebooks.length;
+    if (row == this.size && (this.size + 1) * subspaces > this.codes.length) {
+      this.codes = Arrays.copyOf(this.codes, Math.max(16, this.size * 2) * subspaces);
+    }
+
+    double[] point = this.pointOf(row);
+    for (int subspace = 0; subspace < subspaces; subspace++) {
+      this.codes[row * subspaces + subspace] = (byte) ProductQuantizationIndex.nearest(
+              this.codebooks[subspace], point, this.subspaceStarts[subspace]);
+    }
+    if (row == this.size) {
+      this.size++;
+    }
+  }
+
+  /**
+   * Can distances with the given distance function be summed up one subspace at a time? That is
+   * the case for euclidean (from the summed squares), squared euclidean and manhattan distance.
+   *
+   * @param distanceFunction the distance function
+   * @return true if it is supported, false otherwise
+   */
+  public static boolean supports(IDistanceFunction distanceFunction) {
+    return distanceFunction instanceof L2Distance || distanceFunction instanceof SquaredL2Distance
+            || distanceFunction instanceof L1Distance;
+  }
+
+  /**
+   * Compiles the approximate distance from the query of the given plan to the encoded rows: the
+   * categorical part of the plan's distance, plus the distance to the row's centroids, scaled
+   * with the bounds the plan was compiled with. The query cannot be compiled if the distance
+   * function is not supported, or if it does not have every numerical feature.
+   *
+   * @param plan the compiled query
+   * @param distanceFunction the distance function the plan was compiled with
+   * @param minimums minimum of each numerical column the plan was compiled with
+   * @param maximums maximum of each numerical column the plan was compiled with
+   * @return the approximate distance from the query to a row, or null if the query cannot be
+   *         compiled
+   */
+  public IRowDistance compile(QueryPlan plan, IDistanceFunction distanceFunction,
+                              double[] minimums, double[] maximums) {
+    if (!ProductQuantizationIndex.supports(distanceFunction)
+            || plan.getNumericalCount() != this.minimums.length) {
+      return null;
+    }
+
+    double[] point = new double[this.minimums.length];
+    for (int i = 0; i < plan.getNumericalCount(); i++) {
+      point[plan.getNumericalColumn(i)] = plan.getQueryValue(i);
+    }
+
+    // tables[subspace][code] is the part of the distance from the query to the centroid
+    boolean absolute = distanceFunction instanceof L1Distance;
+    int subspaces = this.codebooks.length;
+    double[][] tables = new double[subspaces][];
+    for (int subspace = 0; subspace < subspaces; subspace++) {
+      double[][] codebook = this.codebooks[subspace];
+      int start = this.subspaceStarts[subspace];
+      tables[subspace] = new double[codebook.length];
+      for (int code = 0; code < codebook.length; code++) {
+        for (int column = 0; column < codebook[code].length; column++) {
+          // the raw value of the centroid, scaled again with the current bounds
+          double value = this.minimums[start + column] + codebook[code][column]
+                  * (this.maximums[start + column] - this.minimums[start + column]);
+          double difference = point[start + column] - KNN.scale(value, minimums[start + column],
+                  maximums[start + column]);
+          tables[subspace][code] += absolute ? Math.abs(difference) : difference * difference;
+        }
+      }
+    }
+
+    boolean root = distanceFunction instanceof L2Distance;
+    byte[] rows = this.codes;
+    return row -> {
+      double res = 0.0;
+      for (int subspace = 0, offset = row * subspaces; subspace < subspaces;
+           subspace++, offset++) {
+        res += tables[subspace][rows[offset] & 0xFF];
+      }
+      return plan.categoricalDistanceTo(row) + (root ? Math.sqrt(res) : res);
+    };
+  }
+}
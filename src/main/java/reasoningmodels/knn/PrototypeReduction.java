@@ -0,0 +1,178 @@
+package reasoningmodels.knn;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import reasoningmodels.classifiers.EntryImpl;
+import reasoningmodels.classifiers.IFeature;
+
+/**
+ * Prototype reduction over the rows of an example store: Wilson editing, which drops the rows
+ * whose label disagrees with the majority of their k nearest neighbors (noise and overlapping
+ * class borders), and Hart's condensed nearest neighbor, which keeps only the rows needed for
+ * 1-NN to label every other row correctly (the rows near the decision boundary). Rows are
+ * compared over every feature but the target, with the same distances as a query (see
+ * QueryPlan), and a row's label is its code in the target column.
+ */
+public class PrototypeReduction {
+  private final FeatureLayout layout;
+  private final IExampleStore store;
+  private final int targetColumn;
+  private final IDistanceFunction distanceFunction;
+  private final double[] minimums;
+  private final double[] maximums;
+
+  /**
+   * Constructs a PrototypeReduction over the rows of the given store.
+   *
+   * @param layout the layout of the store's rows
+   * @param store the example store
+   * @param targetColumn the categorical column of the labels
+   * @param distanceFunction the distance function to compare rows with
+   * @param minimums current minimum of each numerical column
+   * @param maximums current maximum of each numerical column
+   */
+  public PrototypeReduction(FeatureLayout layout, IExampleStore store, int targetColumn,
+                            IDistanceFunction distanceFunction,
+                            double[] minimums, double[] maximums) {
+    if (layout == null || store == null || distanceFunction == null || minimums == null
+            || maximums == null) {
+      throw new IllegalArgumentException("Cannot reduce prototypes with null arguments.");
+    }
+
+    this.layout = layout;
+    this.store = store;
+    this.targetColumn = targetColumn;
+    this.distanceFunction = distanceFunction;
+    this.minimums = minimums;
+    this.maximums = maximums;
+  }
+
+  /**
+   * Wilson editing: keeps each of the given rows whose label gets at least as many votes as any
+   * other among its k nearest neighbors in the given rows (not counting itself).
+   *
+   * @param rows the rows to edit, in order
+   * @param k number of neighbors that vote
+   * @return the kept rows, in order
+   */
+  public int[] edit(int[] rows, int k) {
+    if (k <= 0) {
+      throw new IllegalArgumentException("K must be positive.");
+    }
+
+    int[] votes = new int[this.layout.getCodeCount(this.targetColumn)];
+    int[] res = new int[rows.length];
+    int size = 0;
+    for (int row : rows) {
+      IRowDistance distance = this.distanceFrom(row);
+      NeighborHeap nearest = new NeighborHeap(k);
+      for (int other : rows) {
+        if (other != row) {
+          nearest.offer(other, distance.distanceTo(other, nearest.worstDistance()));
+        }
+      }
+
+      Arrays.fill(votes, 0);
+      int most = 0;
+      for (int neighbor : nearest.getSortedRows()) {
+        most = Math.max(most, ++votes[this.labelOf(neighbor)]);
+      }
+      if (votes[this.labelOf(row)] == most) {
+        res[size++] = row;
+      }
+    }
+    return Arrays.copyOf(res, size);
+  }
+
+  /**
+   * Hart's condensed nearest neighbor: starts from the first of the given rows and passes over
+   * the others, adding every row that 1-NN over the rows kept so far labels wrongly, until a
+   * whole pass adds none. The kept rows are then consistent with the given rows (see
+   * isConsistent).
+   *
+   * @param rows the rows to condense, in order
+   * @return the kept rows, in order
+   */
+  public int[] condense(int[] rows) {
+    if (rows.length == 0) {
+      return rows;
+    }
+
+    boolean[] kept = new boolean[rows.length];
+    List<Integer> prototypes = new ArrayList<>();
+    kept[0] = true;
+    prototypes.add(rows[0]);
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (int i = 0; i < rows.length; i++) {
+        if (!kept[i] && this.labelOf(this.nearest(rows[i], prototypes)) != this.labelOf(rows[i])) {
+          kept[i] = true;
+          prototypes.add(rows[i]);
+          changed = true;
+        }
+      }
+    }
+
+    int[] res = new int[prototypes.size()];
+    for (int i = 0, size = 0; i < rows.length; i++) {
+      if (kept[i]) {
+        res[size++] = rows[i];
+      }
+    }
+    return res;
+  }
+
+  /**
+   * Does 1-NN over the prototypes label every one of the given rows with its own label?
+   *
+   * @param prototypes the prototype rows
+   * @param rows the rows to check
+   * @return true if every row is labeled correctly, false otherwise
+   */
+  public boolean isConsistent(int[] prototypes, int[] rows) {
+    if (prototypes.length == 0) {
+      return rows.length == 0;
+    }
+
+    List<Integer> prototypeList = new ArrayList<>();
+    for (int prototype : prototypes) {
+      prototypeList.add(prototype);
+    }
+    for (int row : rows) {
+      if (this.labelOf(this.nearest(row, prototypeList)) != this.labelOf(row)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Gets the nearest of the candidates to the given row; a row is its own nearest candidate.
+   */
+  private int nearest(int row, List<Integer> candidates) {
+    IRowDistance distance = this.distanceFrom(row);
+    NeighborHeap nearest = new NeighborHeap(1);
+    for (int candidate : candidates) {
+      nearest.offer(candidate, distance.distanceTo(candidate, nearest.worstDistance()));
+    }
+    return nearest.getSortedRows()[0];
+  }
+
+  private int labelOf(int row) {
+    return this.store.getCode(row, this.targetColumn);
+  }
+
+  /**
+   * Gets the distance from the given row to the others, over every feature but the target.
+   */
+  private IRowDistance distanceFrom(int row) {
+    List<IFeature> rowFeatures = this.layout.decode(this.store, row).getFeatures();
+    String targetName = this.layout.getCategoricalName(this.targetColumn);
+    rowFeatures.removeIf(feature -> feature.getFeatureName().equals(targetName));
+    return new QueryPlan(new EntryImpl(rowFeatures), this.layout, this.store,
+            this.distanceFunction, this.minimums, this.maximums);
+  }
+}
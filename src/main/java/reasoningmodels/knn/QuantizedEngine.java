@@ -0,0 +1,210 @@
+package reasoningmodels.knn;
+
+import java.util.Arrays;
+
+/**
+ * A quantized copy of the numerical columns of an example store, which a scan reads instead of
+ * the full-precision values to find candidate neighbors cheaply. With "float32" precision, each
+ * raw value is kept as a float (half the size of a double). With "int8" precision, each value is
+ * kept as one of 256 evenly spaced levels between the bounds of its column when the copy was
+ * built (an eighth of the size), so the copy must be rebuilt when the bounds change (see
+ * isBuiltWith). Quantized distances are close to, but not exactly, the distances a QueryPlan
+ * computes, so the candidates should be re-ranked with the plan: as long as the true neighbors
+ * are among the candidates, the re-ranked neighbors are exactly those of a full-precision scan.
+ * Categorical features are compared exactly, from the store's codes.
+ */
+public class QuantizedEngine {
+  private static final int LEVELS = 256;
+
+  private final IExampleStore store;
+  private final boolean bytes;
+  private final int width;
+  // bounds of each column when the copy was built, which the int8 levels span
+  private final double[] minimums;
+  private final double[] maximums;
+  private float[] floats;
+  private byte[] levels;
+  private int size;
+
+  /**
+   * Constructs an empty QuantizedEngine for the rows of the given store.
+   *
+   * @param store the example store
+   * @param precision "float32" or "int8"
+   * @param minimums current minimum of each numerical column
+   * @param maximums current maximum of each numerical column
+   */
+  public QuantizedEngine(IExampleStore store, String precision, double[] minimums,
+                         double[] maximums) {
+    if (store == null || precision == null || minimums == null || maximums == null) {
+      throw new IllegalArgumentException("Cannot quantize with null arguments.");
+    }
+
+    if (!precision.equals("float32") && !precision.equals("int8")) {
+      throw new IllegalArgumentException("Supplied quantization: " + precision + " is not a "
+              + "supported quantization.");
+    }
+
+    this.store = store;
+    this.bytes = precision.equals("int8");
+    this.width = store.getNumericalWidth();
+    this.minimums = minimums.clone();
+    this.maximums = maximums.clone();
+    this.floats = new float[0];
+    this.levels = new byte[0];
+    this.size = 0;
+  }
+
+  /**
+   * Was this copy built with the given bounds, or does its precision not depend on them? If not,
+   * the int8 levels no longer span the columns, and the copy must be rebuilt.
+   *
+   * @param minimums current minimum of each numerical column
+   * @param maximums current maximum of each numerical column
+   * @return true if the copy can be used with the given bounds, false otherwise
+   */
+  public boolean isBuiltWith(double[] minimums, double[] maximums) {
+    return !this.bytes || Arrays.equals(this.minimums, minimums)
+            && Arrays.equals(this.maximums, maximums);
+  }
+
+  /**
+   * Quantizes the given row of the store. New rows must be added in order; adding a row that was
+   * already quantized quantizes it again, for when the store's row was replaced.
+   *
+   * @param row the row to add
+   */
+  public void add(int row) {
+    if (row < 0 || row > this.size) {
+      throw new IllegalArgumentException("Rows must be added in order.");
+    }
+
+    if (row == this.size && (this.size + 1) * this.width > this.length()) {
+      int capacity = Math.max(16, this.size * 2) * this.width;
+      if (this.bytes) {
+        this.levels = Arrays.copyOf(this.levels, capacity);
+      }
+      else {
+        this.floats = Arrays.copyOf(this.floats, capacity);
+      }
+    }
+
+    for (int column = 0, offset = row * this.width; column < this.width; column++, offset++) {
+      double value = this.store.getValue(row, column);
+      if (this.bytes) {
+        long level = Math.round(KNN.scale(value, this.minimums[column], this.maximums[column])
+                * (LEVELS - 1));
+        this.levels[offset] = (byte) (Math.max(0, Math.min(LEVELS - 1, level)) - LEVELS / 2);
+      }
+      else {
+        this.floats[offset] = (float) value;
+      }
+    }
+    if (row == this.size) {
+      this.size++;
+    }
+  }
+
+  private int length() {
+    return this.bytes ? this.levels.length : this.floats.length;
+  }
+
+  /**
+   * Compiles the approximate distance from the query of the given plan to the quantized rows.
+   * The query cannot be compiled if it has no numerical features, since there is nothing to
+   * quantize.
+   *
+   * @param plan the compiled query
+   * @param distanceFunction the distance function the plan was compiled with
+   * @param minimums current minimum of each numerical column
+   * @param maximums current maximum of each numerical column
+   * @return the approximate distance from the query to a row, or null if the query cannot be
+   *         compiled
+   */
+  public IRowDistance compile(QueryPlan plan, IDistanceFunction distanceFunction,
+                              double[] minimums, double[] maximums) {
+    if (plan.getNumericalCount() == 0) {
+      return null;
+    }
+
+    int features = plan.getNumericalCount();
+    int[] columns = new int[features];
+    double[] queryValues = new double[features];
+    // the scaled value of each level of each feature, for int8 precision
+    double[][] levelValues = new double[features][];
+    for (int i = 0; i < features; i++) {
+      int column = plan.getNumericalColumn(i);
+      columns[i] = column;
+      queryValues[i] = plan.getQueryValue(i);
+      if (this.bytes) {
+        levelValues[i] = new double[LEVELS];
+        for (int level = 0; level < LEVELS; level++) {
+          double value = this.minimums[column] + (this.maximums[column] - this.minimums[column])
+                  * level / (LEVELS - 1);
+          levelValues[i][level] = KNN.scale(value, minimums[column], maximums[column]);
+        }
+      }
+    }
+    return new QuantizedDistance(plan, distanceFunction, columns, queryValues, levelValues,
+            minimums, maximums, new double[features]);
+  }
+
+  /**
+   * The approximate distance from a query to the quantized rows. It keeps a scratch array for the
+   * row's values, so each thread needs its own copy.
+   */
+  private class QuantizedDistance implements IRowDistance {
+    private final QueryPlan plan;
+    private final IDistanceFunction distanceFunction;
+    private final int[] columns;
+    private final double[] queryValues;
+    private final double[][] levelValues;
+    private final double[] minimums;
+    private final double[] maximums;
+    private final double[] rowValues;
+
+    private QuantizedDistance(QueryPlan plan, IDistanceFunction distanceFunction, int[] columns,
+                              double[] queryValues, double[][] levelValues,
+                              double[] minimums, double[] maximums, double[] rowValues) {
+      this.plan = plan;
+      this.distanceFunction = distanceFunction;
+      this.columns = columns;
+      this.queryValues = queryValues;
+      this.levelValues = levelValues;
+      this.minimums = minimums;
+      this.maximums = maximums;
+      this.rowValues = rowValues;
+    }
+
+    @Override
+    public double distanceTo(int row) {
+      return this.distanceTo(row, Double.POSITIVE_INFINITY);
+    }
+
+    @Override
+    public double distanceTo(int row, double cutoff) {
+      double res = this.plan.categoricalDistanceTo(row);
+      if (res > cutoff) {
+        return res;
+      }
+
+      int offset = row * QuantizedEngine.this.width;
+      for (int i = 0; i < this.columns.length; i++) {
+        int column = this.columns[i];
+        this.rowValues[i] = QuantizedEngine.this.bytes
+                ? this.levelValues[i][QuantizedEngine.this.levels[offset + column] + LEVELS / 2]
+                : KNN.scale(QuantizedEngine.this.floats[offset + column], this.minimums[column],
+                this.maximums[column]);
+      }
+      return res + this.distanceFunction.evaluateWithCutoff(this.queryValues, this.rowValues,
+              cutoff - res);
+    }
+
+    @Override
+    public IRowDistance copy() {
+      return new QuantizedDistance(this.plan, this.distanceFunction, this.columns,
+              this.queryValues, this.levelValues, this.minimums, this.maximums,
+              new double[this.rowValues.length]);
+    }
+  }
+}
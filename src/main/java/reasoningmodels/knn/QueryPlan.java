@@ -0,0 +1,312 @@
+package reasoningmodels.knn;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import reasoningmodels.classifiers.IEntry;
+import reasoningmodels.classifiers.IFeature;
+
+/**
+ * The distance from one query entry to the rows of an example store, compiled once per query.
+ * Compiling resolves each query feature to its column in the store, scales the query's numerical
+ * values, and works out the distance from each categorical value of the query to every code in
+ * its column (from the values' enumeration indices, see IDistanceFunction.evaluateCategorical),
+ * so scoring a row is a loop over plain arrays that takes time linear in the number of query
+ * features and does not allocate. Features of the query that no example has are ignored. A plan
+ * keeps a scratch array for the row's numerical values, so it must only be used by one thread at
+ * a time; copy shares everything else with a new scratch array.
+ */
+public class QueryPlan implements IRowDistance {
+  // slack for the rounding of the cutoff left for the numerical features
+  private static final double TOLERANCE = 1e-9;
+
+  private final IExampleStore store;
+  private final IDistanceFunction distanceFunction;
+  private final int[] numericalColumns;
+  private final double[] minimums;
+  private final double[] maximums;
+  private final double[] queryValues;
+  private final int[] categoricalColumns;
+  // codeDistances[i][code] is the distance from the query's value in categorical column i to the
+  // value with the given code
+  private final double[][] codeDistances;
+  // code of the query's value in each categorical column (-1 if no example has it), and the
+  // smallest distance from it to any other code
+  private final int[] queryCodes;
+  private final double[] mismatchDistances;
+  private final double[] rowValues;
+  // scaled values of a block of rows, row by row, grown as needed
+  private double[] blockValues;
+
+  /**
+   * Compiles the distance from the given query entry to the rows of the given store.
+   *
+   * @param queryEntry the query entry
+   * @param layout the layout of the store's rows
+   * @param store the example store
+   * @param distanceFunction the distance function to use
+   * @param minimums current minimum of each numerical column
+   * @param maximums current maximum of each numerical column
+   */
+  public QueryPlan(IEntry queryEntry, FeatureLayout layout, IExampleStore store,
+                   IDistanceFunction distanceFunction,
+                   double[] minimums, double[] maximums) {
+    if (queryEntry == null || layout == null || store == null || distanceFunction == null
+            || minimums == null || maximums == null) {
+      throw new IllegalArgumentException("Cannot compile a query plan with null arguments.");
+    }
+
+    List<IFeature> numericalFeatures = new ArrayList<>();
+    List<IFeature> categoricalFeatures = new ArrayList<>();
+    for (IFeature feature : queryEntry.getFeatures()) {
+      String featureName = feature.getFeatureName();
+      if (layout.getColumn(featureName) < 0) {
+        continue;
+      }
+
+      if (feature.isCategorical() != layout.isCategorical(featureName)) {
+        throw new IllegalArgumentException("Feature " + featureName + " of the query does not "
+                + "have the same type as in the training examples.");
+      }
+      (feature.isCategorical() ? categoricalFeatures : numericalFeatures).add(feature);
+    }
+
+    this.store = store;
+    this.distanceFunction = distanceFunction;
+    this.numericalColumns = new int[numericalFeatures.size()];
+    this.minimums = new double[numericalFeatures.size()];
+    this.maximums = new double[numericalFeatures.size()];
+    this.queryValues = new double[numericalFeatures.size()];
+    for (int i = 0; i < numericalFeatures.size(); i++) {
+      int column = layout.getColumn(numericalFeatures.get(i).getFeatureName());
+      this.numericalColumns[i] = column;
+      this.minimums[i] = minimums[column];
+      this.maximums[i] = maximums[column];
+      this.queryValues[i] = KNN.scale(numericalFeatures.get(i).getValue(), minimums[column],
+              maximums[column]);
+    }
+
+    this.categoricalColumns = new int[categoricalFeatures.size()];
+    this.codeDistances = new double[categoricalFeatures.size()][];
+    this.queryCodes = new int[categoricalFeatures.size()];
+    this.mismatchDistances = new double[categoricalFeatures.size()];
+    for (int i = 0; i < categoricalFeatures.size(); i++) {
+      int column = layout.getColumn(categoricalFeatures.get(i).getFeatureName());
+      int dimensions = layout.getEnumerationCount(column);
+      if (dimensions == 0) {
+        throw new IllegalArgumentException("Enumerations cannot be empty.");
+      }
+
+      int queryIndex = layout.getEnumerationIndex(column,
+              categoricalFeatures.get(i).getCategoricalValue());
+      this.categoricalColumns[i] = column;
+      this.codeDistances[i] = new double[layout.getCodeCount(column)];
+      for (int code = 0; code < this.codeDistances[i].length; code++) {
+        this.codeDistances[i][code] = distanceFunction.evaluateCategorical(dimensions,
+                queryIndex, layout.getEnumerationIndex(column, code));
+      }
+
+      this.queryCodes[i] = layout.getCode(column,
+              categoricalFeatures.get(i).getCategoricalValue());
+      double mismatch = Double.POSITIVE_INFINITY;
+      for (int code = 0; code < this.codeDistances[i].length; code++) {
+        if (code != this.queryCodes[i]) {
+          mismatch = Math.min(mismatch, this.codeDistances[i][code]);
+        }
+      }
+      // no example can disagree with the query if every example has its value
+      this.mismatchDistances[i] = mismatch == Double.POSITIVE_INFINITY ? 0.0 : mismatch;
+    }
+
+    this.rowValues = new double[numericalFeatures.size()];
+    this.blockValues = new double[0];
+  }
+
+  /**
+   * Constructs a plan that shares the compiled arrays of the given plan, with its own scratch
+   * array.
+   */
+  private QueryPlan(QueryPlan other) {
+    this.store = other.store;
+    this.distanceFunction = other.distanceFunction;
+    this.numericalColumns = other.numericalColumns;
+    this.minimums = other.minimums;
+    this.maximums = other.maximums;
+    this.queryValues = other.queryValues;
+    this.categoricalColumns = other.categoricalColumns;
+    this.codeDistances = other.codeDistances;
+    this.queryCodes = other.queryCodes;
+    this.mismatchDistances = other.mismatchDistances;
+    this.rowValues = new double[other.rowValues.length];
+    this.blockValues = new double[0];
+  }
+
+  /**
+   * Gets the number of numerical features in the query that the examples have.
+   *
+   * @return the number of numerical features
+   */
+  public int getNumericalCount() {
+    return this.numericalColumns.length;
+  }
+
+  /**
+   * Gets the store column of the given numerical feature of the query.
+   *
+   * @param feature index of the feature among the query's numerical features
+   * @return the numerical column
+   */
+  public int getNumericalColumn(int feature) {
+    return this.numericalColumns[feature];
+  }
+
+  /**
+   * Gets the scaled query value of the given numerical feature.
+   *
+   * @param feature index of the feature among the query's numerical features
+   * @return the scaled value
+   */
+  public double getQueryValue(int feature) {
+    return this.queryValues[feature];
+  }
+
+  /**
+   * Gets the number of categorical features in the query that the examples have.
+   *
+   * @return the number of categorical features
+   */
+  public int getCategoricalCount() {
+    return this.categoricalColumns.length;
+  }
+
+  /**
+   * Gets the store column of the given categorical feature of the query.
+   *
+   * @param feature index of the feature among the query's categorical features
+   * @return the categorical column
+   */
+  public int getCategoricalColumn(int feature) {
+    return this.categoricalColumns[feature];
+  }
+
+  /**
+   * Gets the code of the query's value of the given categorical feature.
+   *
+   * @param feature index of the feature among the query's categorical features
+   * @return the code, or -1 if no example has the value
+   */
+  public int getQueryCode(int feature) {
+    return this.queryCodes[feature];
+  }
+
+  /**
+   * Gets the least the given categorical feature adds to the distance of a row whose value of it
+   * is not the query's.
+   *
+   * @param feature index of the feature among the query's categorical features
+   * @return the smallest distance from the query's value to another value
+   */
+  public double getMismatchDistance(int feature) {
+    return this.mismatchDistances[feature];
+  }
+
+  /**
+   * Calculates the part of the distance to the given row that comes from the categorical
+   * features, which distanceTo adds the numerical part to.
+   *
+   * @param row the row of the example store
+   * @return the sum of the categorical distances
+   */
+  public double categoricalDistanceTo(int row) {
+    double res = 0.0;
+    for (int i = 0; i < this.categoricalColumns.length; i++) {
+      res += this.codeDistances[i][this.store.getCode(row, this.categoricalColumns[i])];
+    }
+    return res;
+  }
+
+  @Override
+  public QueryPlan copy() {
+    return new QueryPlan(this);
+  }
+
+  /**
+   * Categorical features are compared as one-hot vectors over their enumerations, and numerical
+   * features are compared after scaling the row's raw values with the bounds the plan was
+   * compiled with.
+   */
+  @Override
+  public double distanceTo(int row) {
+    double res = this.categoricalDistanceTo(row);
+
+    for (int i = 0; i < this.numericalColumns.length; i++) {
+      this.rowValues[i] = KNN.scale(this.store.getValue(row, this.numericalColumns[i]),
+              this.minimums[i], this.maximums[i]);
+    }
+    res += this.distanceFunction.evaluate(this.queryValues, this.rowValues);
+
+    return res;
+  }
+
+  /**
+   * The categorical features are summed first, and the numerical features are only compared if
+   * that sum is within the cutoff, with what is left of the cutoff (see
+   * IDistanceFunction.evaluateWithCutoff).
+   */
+  @Override
+  public double distanceTo(int row, double cutoff) {
+    if (!this.distanceFunction.supportsCutoff()) {
+      return this.distanceTo(row);
+    }
+
+    double res = this.categoricalDistanceTo(row);
+    if (res > cutoff) {
+      return res;
+    }
+
+    for (int i = 0; i < this.numericalColumns.length; i++) {
+      this.rowValues[i] = KNN.scale(this.store.getValue(row, this.numericalColumns[i]),
+              this.minimums[i], this.maximums[i]);
+    }
+    double numericalCutoff = cutoff - res + TOLERANCE * Math.max(1.0, cutoff);
+    double numerical = this.distanceFunction.evaluateWithCutoff(this.queryValues,
+            this.rowValues, numericalCutoff);
+    if (numerical > numericalCutoff) {
+      return Double.POSITIVE_INFINITY;
+    }
+    res += numerical;
+
+    return res;
+  }
+
+  /**
+   * Blocks are only scored if the distance function has a batch kernel (see
+   * IDistanceFunction.supportsBatch). The scaled values of the block's rows are gathered row by
+   * row, the batch kernel scores them all, and the categorical distance of each row is added, so
+   * each distance is exactly the one distanceTo calculates.
+   */
+  @Override
+  public boolean distancesTo(int from, int to, double[] out) {
+    if (!this.distanceFunction.supportsBatch()) {
+      return false;
+    }
+
+    int width = this.numericalColumns.length;
+    if (this.blockValues.length < (to - from) * width) {
+      this.blockValues = new double[(to - from) * width];
+    }
+    for (int row = from; row < to; row++) {
+      int offset = (row - from) * width;
+      for (int i = 0; i < width; i++) {
+        this.blockValues[offset + i] = KNN.scale(this.store.getValue(row,
+                this.numericalColumns[i]), this.minimums[i], this.maximums[i]);
+      }
+    }
+    this.distanceFunction.evaluateBatch(this.queryValues, this.blockValues, 0, to - from, out);
+
+    for (int row = from; row < to; row++) {
+      out[row - from] = this.categoricalDistanceTo(row) + out[row - from];
+    }
+    return true;
+  }
+}
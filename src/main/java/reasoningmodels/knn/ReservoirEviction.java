@@ -0,0 +1,44 @@
+package reasoningmodels.knn;
+
+import java.io.Serializable;
+import java.util.Random;
+
+/**
+ * Keeps a uniform random sample of every example ever trained on (reservoir sampling). The n-th
+ * example replaces a random row with probability capacity / n, and is discarded otherwise, so
+ * old and recent examples are equally likely to be kept.
+ */
+public class ReservoirEviction implements IEvictionPolicy, Serializable {
+  private final int capacity;
+  private final Random random;
+  // number of examples offered so far, stored or not
+  private long seen;
+
+  /**
+   * Constructs a ReservoirEviction for a store of the given capacity.
+   *
+   * @param capacity the number of rows the store holds once it is full
+   * @param seed seed of the random choices
+   */
+  public ReservoirEviction(int capacity, long seed) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Capacity must be positive.");
+    }
+
+    this.capacity = capacity;
+    this.random = new Random(seed);
+    this.seen = capacity;
+  }
+
+  @Override
+  public int chooseVictim() {
+    this.seen++;
+    long slot = (long) (this.random.nextDouble() * this.seen);
+    return slot < this.capacity ? (int) slot : -1;
+  }
+
+  @Override
+  public void added(int row) {
+    // which rows are replaced does not depend on the stored examples
+  }
+}
@@ -0,0 +1,52 @@
+package reasoningmodels.knn;
+
+/**
+ * Represents the squared euclidean distance, the sum of the squared differences. It ranks
+ * vectors as the euclidean distance does without taking a square root, but it does not obey the
+ * triangle inequality, so it is not a metric.
+ */
+public class SquaredL2Distance extends ADistanceFunction {
+
+  /**
+   * Throws a DimensionMismatchException if the inputs have differing sizes.
+   */
+  @Override
+  public double evaluate(double[] a, double[] b) {
+    ADistanceFunction.checkDimensions(a, b);
+    return DistanceKernels.squaredL2(a, 0, b, 0, a.length);
+  }
+
+  @Override
+  public double evaluateWithCutoff(double[] a, double[] b, double cutoff) {
+    ADistanceFunction.checkDimensions(a, b);
+    return DistanceKernels.squaredL2WithCutoff(a, 0, b, 0, a.length, cutoff);
+  }
+
+  /**
+   * Two one-hot vectors differ in two places if their values differ, and in one if only one of
+   * them has a value.
+   */
+  @Override
+  public double evaluateCategorical(int dimensions, int a, int b) {
+    if (a == b) {
+      return 0.0;
+    }
+    return a < 0 || b < 0 ? 1.0 : 2.0;
+  }
+
+  @Override
+  public void evaluateBatch(double[] query, double[] block, int offset, int count,
+                            double[] out) {
+    DistanceKernels.squaredL2Batch(query, block, offset, count, out);
+  }
+
+  @Override
+  public boolean supportsBatch() {
+    return true;
+  }
+
+  @Override
+  public boolean supportsCutoff() {
+    return true;
+  }
+}
@@ -0,0 +1,305 @@
+package reasoningmodels.knn;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.IntFunction;
+
+/**
+ * An implementation of INeighborIndex as a vantage-point tree. It does not assume the rows are
+ * points in a coordinate space; it only needs a distance between rows that obeys the triangle
+ * inequality, such as the KNN distance over a fixed set of features built from a metric
+ * IDistanceFunction (categorical and numerical features alike). Each inner node holds a
+ * vantage row and splits the rest of its rows by whether they are closer to the vantage row than
+ * the median distance, keeping the range of distances to the vantage row found in each child. A
+ * search prunes a child once the triangle inequality shows none of its rows can beat the heap's
+ * worst neighbor. Rows are inserted into leaf buckets as they are added, overflowing buckets are
+ * split, and the most unbalanced subtree is rebuilt when the tree gets too deep, as in a
+ * scapegoat tree. The tree is tied to the distances it was built with, so it must be replaced
+ * when the min-max bounds of the model change.
+ */
+public class VPTreeIndex implements INeighborIndex {
+  private static final int BUCKET_SIZE = 16;
+  // a subtree is out of balance if one child holds more than this fraction of its rows
+  private static final double BALANCE = 0.7;
+  // relative slack for rounding differences between query and row distances when pruning
+  private static final double TOLERANCE = 1e-9;
+
+  private final IDistanceFunction distanceFunction;
+  private final Set<String> features;
+  private final IntFunction<IRowDistance> metric;
+  private Node root;
+
+  /**
+   * Constructs an empty VPTreeIndex.
+   *
+   * @param distanceFunction the distance function the row distances are built from
+   * @param features names of the features the row distances are over
+   * @param metric gives the distance from a row to the other rows
+   */
+  public VPTreeIndex(IDistanceFunction distanceFunction, List<String> features,
+                     IntFunction<IRowDistance> metric) {
+    if (distanceFunction == null || features == null || metric == null) {
+      throw new IllegalArgumentException("Distance function, features and metric cannot be "
+              + "null.");
+    }
+
+    this.distanceFunction = distanceFunction;
+    this.features = new HashSet<>(features);
+    this.metric = metric;
+    this.root = new Node();
+  }
+
+  @Override
+  public void add(int row) {
+    IRowDistance fromRow = this.metric.apply(row);
+    List<Node> path = new ArrayList<>();
+    Node node = this.root;
+    while (!node.isLeaf()) {
+      path.add(node);
+      node.size++;
+      double distance = fromRow.distanceTo(node.vantage);
+      if (distance < node.median) {
+        node.inside.include(distance);
+        node = node.inside;
+      } else {
+        node.outside.include(distance);
+        node = node.outside;
+      }
+    }
+
+    node.add(row);
+    if (node.size >= node.splitAt && !this.split(node, node.rows, 0, node.size)) {
+      // every row in the bucket is the same distance from the others, so wait for it to double
+      node.splitAt = node.size * 2;
+    }
+
+    if (path.size() > this.maxBalancedDepth()) {
+      for (int i = path.size() - 1; i >= 0; i--) {
+        Node scapegoat = path.get(i);
+        if (Math.max(scapegoat.inside.size, scapegoat.outside.size) > BALANCE * scapegoat.size) {
+          this.rebuild(scapegoat);
+          return;
+        }
+      }
+    }
+  }
+
+  @Override
+  public boolean supports(IDistanceFunction distanceFunction, List<String> queryFeatures) {
+    return this.distanceFunction.equals(distanceFunction)
+            && queryFeatures.size() == this.features.size()
+            && this.features.containsAll(queryFeatures);
+  }
+
+  @Override
+  public boolean isTiedToBounds() {
+    return true;
+  }
+
+  @Override
+  public void search(double[] point, double[] minimums, double[] maximums, IRowDistance distance,
+                     NeighborHeap nearest) {
+    this.search(this.root, distance, nearest);
+  }
+
+  /**
+   * Searches the subtree at the given node, visiting the child the query falls in first.
+   */
+  private void search(Node node, IRowDistance distance, NeighborHeap nearest) {
+    if (node.isLeaf()) {
+      for (int i = 0; i < node.size; i++) {
+        nearest.offer(node.rows[i],
+                distance.distanceTo(node.rows[i], nearest.worstDistance()));
+      }
+      return;
+    }
+
+    double toVantage = distance.distanceTo(node.vantage);
+    nearest.offer(node.vantage, toVantage);
+    Node first = toVantage < node.median ? node.inside : node.outside;
+    Node second = toVantage < node.median ? node.outside : node.inside;
+    if (VPTreeIndex.mayContainNearer(first, toVantage, nearest)) {
+      this.search(first, distance, nearest);
+    }
+    if (VPTreeIndex.mayContainNearer(second, toVantage, nearest)) {
+      this.search(second, distance, nearest);
+    }
+  }
+
+  /**
+   * Could the given child hold a row nearer than the heap's worst neighbor? By the triangle
+   * inequality, a row whose distance to the vantage row is in the child's range is at least
+   * as far from the query as the query is from that range.
+   */
+  private static boolean mayContainNearer(Node child, double toVantage, NeighborHeap nearest) {
+    if (child.size == 0) {
+      return false;
+    }
+
+    double bound = Math.max(toVantage - child.maxDistance, child.minDistance - toVantage);
+    double worst = nearest.worstDistance();
+    return bound <= worst + TOLERANCE * Math.max(1.0, worst);
+  }
+
+  /**
+   * Turns the given leaf into an inner node: the first of the given rows becomes the vantage
+   * row and the others are split by the median of their distances to it. Does nothing if every
+   * other row is the same distance from the vantage row.
+   *
+   * @return true if the leaf was split, false otherwise
+   */
+  private boolean split(Node leaf, int[] rows, int from, int to) {
+    if (to - from < 2) {
+      return false;
+    }
+
+    int vantage = rows[from];
+    IRowDistance fromVantage = this.metric.apply(vantage);
+    int[] others = Arrays.copyOfRange(rows, from + 1, to);
+    double[] distances = new double[others.length];
+    for (int i = 0; i < others.length; i++) {
+      distances[i] = fromVantage.distanceTo(others[i]);
+    }
+
+    double[] sorted = Arrays.copyOf(distances, distances.length);
+    Arrays.sort(sorted);
+    double median = sorted[sorted.length / 2];
+    // the median is the smallest distance, so split above it instead so both sides are non-empty
+    if (median == sorted[0]) {
+      median = Double.NaN;
+      for (double value : sorted) {
+        if (value > sorted[0]) {
+          median = value;
+          break;
+        }
+      }
+      if (Double.isNaN(median)) {
+        return false;
+      }
+    }
+
+    int boundary = 0;
+    for (int i = 0; i < others.length; i++) {
+      if (distances[i] < median) {
+        VPTreeIndex.swap(others, distances, i, boundary++);
+      }
+    }
+
+    leaf.vantage = vantage;
+    leaf.median = median;
+    leaf.inside = this.build(others, distances, 0, boundary);
+    leaf.outside = this.build(others, distances, boundary, others.length);
+    leaf.rows = null;
+    leaf.size = to - from;
+    return true;
+  }
+
+  /**
+   * Builds a balanced subtree holding the given rows, whose distances to the parent's vantage
+   * row are also given.
+   */
+  private Node build(int[] rows, double[] distances, int from, int to) {
+    Node node = new Node();
+    for (int i = from; i < to; i++) {
+      node.include(distances[i]);
+    }
+
+    if (to - from < node.splitAt) {
+      System.arraycopy(rows, from, node.rows, 0, to - from);
+      node.size = to - from;
+    } else if (!this.split(node, rows, from, to)) {
+      node.rows = Arrays.copyOfRange(rows, from, to);
+      node.size = to - from;
+      node.splitAt = node.size * 2;
+    }
+    return node;
+  }
+
+  /**
+   * Rebuilds the subtree at the given node in place, keeping its distance range.
+   */
+  private void rebuild(Node node) {
+    int[] rows = new int[node.size];
+    this.collect(node, rows, 0);
+    Node rebuilt = new Node();
+    if (!this.split(rebuilt, rows, 0, rows.length)) {
+      return;
+    }
+    node.vantage = rebuilt.vantage;
+    node.median = rebuilt.median;
+    node.inside = rebuilt.inside;
+    node.outside = rebuilt.outside;
+    node.rows = null;
+    node.size = rebuilt.size;
+  }
+
+  /**
+   * Copies the rows of the subtree at the given node into the given array.
+   *
+   * @return the index after the last copied row
+   */
+  private int collect(Node node, int[] rows, int index) {
+    if (node.isLeaf()) {
+      System.arraycopy(node.rows, 0, rows, index, node.size);
+      return index + node.size;
+    }
+    rows[index] = node.vantage;
+    return this.collect(node.outside, rows, this.collect(node.inside, rows, index + 1));
+  }
+
+  /**
+   * Gets the deepest the tree may get before its most unbalanced subtree is rebuilt: the depth
+   * of a tree with full buckets whose children each hold at most BALANCE of their parent's rows.
+   */
+  private int maxBalancedDepth() {
+    double leaves = (double) this.root.size / BUCKET_SIZE + 1;
+    return (int) Math.ceil(Math.log(leaves) / Math.log(1 / BALANCE)) + 1;
+  }
+
+  private static void swap(int[] rows, double[] distances, int i, int j) {
+    int row = rows[i];
+    rows[i] = rows[j];
+    rows[j] = row;
+    double distance = distances[i];
+    distances[i] = distances[j];
+    distances[j] = distance;
+  }
+
+  /**
+   * A node of the tree. Leaves hold a bucket of rows; inner nodes hold a vantage row and send
+   * rows closer to it than the median to the inside child, and the rest to the outside child.
+   * Every node knows how many rows are in its subtree (including vantage rows) and the range of
+   * distances from those rows to its parent's vantage row.
+   */
+  private static class Node {
+    private int vantage = -1;
+    private double median;
+    private Node inside;
+    private Node outside;
+    private int[] rows = new int[BUCKET_SIZE + 1];
+    private int size = 0;
+    // number of rows at which a leaf tries to split
+    private int splitAt = BUCKET_SIZE + 1;
+    private double minDistance = Double.POSITIVE_INFINITY;
+    private double maxDistance = Double.NEGATIVE_INFINITY;
+
+    private boolean isLeaf() {
+      return this.rows != null;
+    }
+
+    private void include(double distance) {
+      this.minDistance = Math.min(this.minDistance, distance);
+      this.maxDistance = Math.max(this.maxDistance, distance);
+    }
+
+    private void add(int row) {
+      if (this.size == this.rows.length) {
+        this.rows = Arrays.copyOf(this.rows, this.rows.length * 2);
+      }
+      this.rows[this.size++] = row;
+    }
+  }
+}
@@ -43,7 +43,7 @@ public class ReasoningModelFactory {
         res = new BayesNet();
         break;
       case "knn":
-        res = new KNN(targetClass);
+        res = new KNN(targetClass, getModelParams(wme));
         break;
       case "naive-bayes":
         res = new NaiveBayes(targetClass);
@@ -153,6 +153,29 @@ public class ReasoningModelFactory {
     }
   }
 
+  /**
+   * Gets the model parameters found in the WME: every attribute of the parameters WME that
+   * holds a plain value, other than the target class. Structured parameters, like features, are
+   * read elsewhere.
+   *
+   * @param wme working memory element that contains the info
+   * @return a mapping of parameter name to value
+   */
+  private static Map<String, Object> getModelParams(WMElement wme) {
+    WMElement params = getParamWME(wme);
+    Map<String, Object> res = new HashMap<>();
+
+    for (int i = 0; i < params.ConvertToIdentifier().GetNumberChildren(); i++) {
+      WMElement curParam = params.ConvertToIdentifier().GetChild(i);
+      if (!curParam.GetValueType().equalsIgnoreCase("id")
+              && !curParam.GetAttribute().equals("target")) {
+        res.put(curParam.GetAttribute(), curParam.GetValueAsString());
+      }
+    }
+
+    return res;
+  }
+
   /**
    * Gets the WME labeled "parameters." Returns null if it cannot be found.
    *
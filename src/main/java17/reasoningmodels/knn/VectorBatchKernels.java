@@ -0,0 +1,112 @@
+package reasoningmodels.knn;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The batch kernels on the Vector API, which is only compiled into the Java 17 part of the
+ * multi-release jar and is loaded by DistanceKernels when the jdk.incubator.vector module is
+ * present. Each lane of a vector holds one row, gathered out of the row-major block, so a block
+ * of rows is scored as many rows at a time as there are lanes. Every lane adds up its row in the
+ * same order as the single-pair kernels (four accumulators over the values, the leftover values
+ * added to the first one, and the accumulators added in pairs), and multiplications are never
+ * fused into additions, so the distances are exactly those of the scalar kernels. Rows left over
+ * after the last full vector are scored by the scalar kernels.
+ */
+final class VectorBatchKernels extends BatchKernels {
+  private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+  @Override
+  public void squaredL2(double[] query, double[] block, int offset, int count, double[] out) {
+    int width = query.length;
+    int[] strides = VectorBatchKernels.strides(width);
+    int row = 0;
+    for (; row + SPECIES.length() <= count; row += SPECIES.length()) {
+      int rowOffset = offset + row * width;
+      DoubleVector sum0 = DoubleVector.zero(SPECIES);
+      DoubleVector sum1 = DoubleVector.zero(SPECIES);
+      DoubleVector sum2 = DoubleVector.zero(SPECIES);
+      DoubleVector sum3 = DoubleVector.zero(SPECIES);
+      int i = 0;
+      for (; i + 3 < width; i += 4) {
+        DoubleVector d0 = VectorBatchKernels.difference(query, block, rowOffset, strides, i);
+        DoubleVector d1 = VectorBatchKernels.difference(query, block, rowOffset, strides, i + 1);
+        DoubleVector d2 = VectorBatchKernels.difference(query, block, rowOffset, strides, i + 2);
+        DoubleVector d3 = VectorBatchKernels.difference(query, block, rowOffset, strides, i + 3);
+        sum0 = sum0.add(d0.mul(d0));
+        sum1 = sum1.add(d1.mul(d1));
+        sum2 = sum2.add(d2.mul(d2));
+        sum3 = sum3.add(d3.mul(d3));
+      }
+      for (; i < width; i++) {
+        DoubleVector d = VectorBatchKernels.difference(query, block, rowOffset, strides, i);
+        sum0 = sum0.add(d.mul(d));
+      }
+      sum0.add(sum1).add(sum2.add(sum3)).intoArray(out, row);
+    }
+    for (; row < count; row++) {
+      out[row] = DistanceKernels.squaredL2(query, 0, block, offset + row * width, width);
+    }
+  }
+
+  @Override
+  public void l1(double[] query, double[] block, int offset, int count, double[] out) {
+    int width = query.length;
+    int[] strides = VectorBatchKernels.strides(width);
+    int row = 0;
+    for (; row + SPECIES.length() <= count; row += SPECIES.length()) {
+      int rowOffset = offset + row * width;
+      DoubleVector sum0 = DoubleVector.zero(SPECIES);
+      DoubleVector sum1 = DoubleVector.zero(SPECIES);
+      DoubleVector sum2 = DoubleVector.zero(SPECIES);
+      DoubleVector sum3 = DoubleVector.zero(SPECIES);
+      int i = 0;
+      for (; i + 3 < width; i += 4) {
+        sum0 = sum0.add(VectorBatchKernels.difference(query, block, rowOffset, strides, i).abs());
+        sum1 = sum1.add(VectorBatchKernels.difference(query, block, rowOffset, strides, i + 1)
+                .abs());
+        sum2 = sum2.add(VectorBatchKernels.difference(query, block, rowOffset, strides, i + 2)
+                .abs());
+        sum3 = sum3.add(VectorBatchKernels.difference(query, block, rowOffset, strides, i + 3)
+                .abs());
+      }
+      for (; i < width; i++) {
+        sum0 = sum0.add(VectorBatchKernels.difference(query, block, rowOffset, strides, i).abs());
+      }
+      sum0.add(sum1).add(sum2.add(sum3)).intoArray(out, row);
+    }
+    for (; row < count; row++) {
+      out[row] = DistanceKernels.l1(query, 0, block, offset + row * width, width);
+    }
+  }
+
+  /**
+   * Gets the offset of each lane's row from the first row of a vector of rows.
+   *
+   * @param width number of values per row
+   * @return the offset of the row of each lane
+   */
+  private static int[] strides(int width) {
+    int[] strides = new int[SPECIES.length()];
+    for (int lane = 0; lane < strides.length; lane++) {
+      strides[lane] = lane * width;
+    }
+    return strides;
+  }
+
+  /**
+   * Gets the difference between one query value and the matching value of each lane's row.
+   *
+   * @param query the query values
+   * @param block the row-major block of rows
+   * @param rowOffset index of the first value of the first lane's row
+   * @param strides offset of each lane's row from the first lane's row
+   * @param i index of the value in the query and in each row
+   * @return the query value minus each row's value
+   */
+  private static DoubleVector difference(double[] query, double[] block, int rowOffset,
+                                         int[] strides, int i) {
+    return DoubleVector.broadcast(SPECIES, query[i])
+            .sub(DoubleVector.fromArray(SPECIES, block, rowOffset + i, strides, 0));
+  }
+}
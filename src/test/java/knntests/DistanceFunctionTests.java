@@ -3,12 +3,24 @@ package knntests;
 import org.apache.commons.math3.exception.DimensionMismatchException;
 import org.junit.jupiter.api.Test;
 
+import java.util.Random;
+
 import reasoningmodels.classifiers.NumericalFeature;
+import reasoningmodels.knn.BatchKernels;
+import reasoningmodels.knn.DistanceKernels;
+import reasoningmodels.knn.DistanceRegistry;
 import reasoningmodels.knn.IDistanceFunction;
 import reasoningmodels.knn.L2Distance;
+import reasoningmodels.knn.MinkowskiDistance;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 
 /**
  * Tests for methods of IDistanceFunction implementing classes.
@@ -37,4 +49,263 @@ public class DistanceFunctionTests {
   public void testL2Distance() {
     assertEquals(1, l2.evaluate(new double[] {1, 0}, new double[] {0, 0}));
   }
+
+  @Test
+  public void testKernelsMatchNaiveLoops() {
+    Random random = new Random(5);
+    for (int length = 0; length < 10; length++) {
+      double[] a = new double[length + 2];
+      double[] b = new double[length + 3];
+      for (int i = 0; i < a.length; i++) {
+        a[i] = random.nextGaussian();
+      }
+      for (int i = 0; i < b.length; i++) {
+        b[i] = random.nextGaussian();
+      }
+
+      double squared = 0.0;
+      double manhattan = 0.0;
+      double dot = 0.0;
+      for (int i = 0; i < length; i++) {
+        squared += (a[i + 2] - b[i + 3]) * (a[i + 2] - b[i + 3]);
+        manhattan += Math.abs(a[i + 2] - b[i + 3]);
+        dot += a[i + 2] * b[i + 3];
+      }
+      assertEquals(squared, DistanceKernels.squaredL2(a, 2, b, 3, length), 1e-12);
+      assertEquals(Math.sqrt(squared), DistanceKernels.l2(a, 2, b, 3, length), 1e-12);
+      assertEquals(manhattan, DistanceKernels.l1(a, 2, b, 3, length), 1e-12);
+      assertEquals(dot, DistanceKernels.dot(a, 2, b, 3, length), 1e-12);
+    }
+  }
+
+  @Test
+  public void testCosine() {
+    assertEquals(0.0, DistanceKernels.cosine(new double[] {1, 2}, 0, new double[] {2, 4}, 0, 2),
+            1e-12);
+    assertEquals(1.0, DistanceKernels.cosine(new double[] {1, 0}, 0, new double[] {0, 3}, 0, 2),
+            1e-12);
+    assertEquals(2.0, DistanceKernels.cosine(new double[] {1, 0}, 0, new double[] {-1, 0}, 0, 2),
+            1e-12);
+    assertEquals(1.0, DistanceKernels.cosine(new double[] {0, 0}, 0, new double[] {1, 0}, 0, 2));
+    assertEquals(0.0, DistanceKernels.cosine(new double[] {0, 0}, 0, new double[] {0, 0}, 0, 2));
+  }
+
+  @Test
+  public void testBatchMatchesEvaluate() {
+    double[] query = new double[] {0.5, 1.0, -2.0};
+    double[] block = new double[] {9, 9, 0, 0, 0, 1, 1, 1, 0.5, 1.0, -2.0};
+    double[] out = new double[3];
+    l2.evaluateBatch(query, block, 2, 3, out);
+    IDistanceFunction unbatched = (a, b) -> l2.evaluate(a, b);
+    double[] expected = new double[3];
+    unbatched.evaluateBatch(query, block, 2, 3, expected);
+    for (int row = 0; row < 3; row++) {
+      assertEquals(l2.evaluate(query, new double[] {block[2 + row * 3], block[3 + row * 3],
+              block[4 + row * 3]}), out[row], 1e-12);
+      assertEquals(expected[row], out[row], 1e-12);
+    }
+    assertEquals(0.0, out[2]);
+
+    DistanceKernels.cosineBatch(query, block, 2, 3, out);
+    assertEquals(0.0, out[2], 1e-12);
+    assertEquals(1.0, out[0]);
+  }
+
+  @Test
+  public void testVectorKernelsMatchScalar() {
+    BatchKernels active = DistanceKernels.getBatchKernels();
+    BatchKernels scalar = new BatchKernels();
+    Random random = new Random(7);
+    for (int width = 0; width < 12; width++) {
+      for (int count = 0; count < 40; count += 3) {
+        double[] query = new double[width];
+        double[] block = new double[3 + count * width];
+        for (int i = 0; i < query.length; i++) {
+          query[i] = random.nextDouble();
+        }
+        for (int i = 0; i < block.length; i++) {
+          block[i] = random.nextDouble() * 4.0 - 2.0;
+        }
+
+        double[] expected = new double[count];
+        double[] out = new double[count];
+        scalar.squaredL2(query, block, 3, count, expected);
+        active.squaredL2(query, block, 3, count, out);
+        for (int row = 0; row < count; row++) {
+          assertEquals(expected[row], out[row]);
+          assertEquals(DistanceKernels.squaredL2(query, 0, block, 3 + row * width, width),
+                  out[row]);
+        }
+
+        scalar.l1(query, block, 3, count, expected);
+        active.l1(query, block, 3, count, out);
+        for (int row = 0; row < count; row++) {
+          assertEquals(expected[row], out[row]);
+          assertEquals(DistanceKernels.l1(query, 0, block, 3 + row * width, width), out[row]);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testVectorKernelsLoaded() {
+    // only when the tests run with the Vector API module (see the java17 profile)
+    assumeTrue(ClassLoader.getSystemResource("jdk/incubator/vector/DoubleVector.class") != null);
+    assertNotEquals(BatchKernels.class, DistanceKernels.getBatchKernels().getClass());
+  }
+
+  @Test
+  public void testCategoricalClosedForm() {
+    IDistanceFunction vectors = (a, b) -> l2.evaluate(a, b);
+    for (int a = -1; a < 3; a++) {
+      for (int b = -1; b < 3; b++) {
+        assertEquals(vectors.evaluateCategorical(3, a, b), l2.evaluateCategorical(3, a, b),
+                1e-12);
+      }
+    }
+  }
+
+  @Test
+  public void testCutoffMatchesEvaluate() {
+    Random random = new Random(8);
+    for (int length = 0; length < 70; length++) {
+      double[] a = new double[length];
+      double[] b = new double[length];
+      for (int i = 0; i < length; i++) {
+        a[i] = random.nextGaussian();
+        b[i] = random.nextGaussian();
+      }
+
+      double distance = l2.evaluate(a, b);
+      for (double cutoff : new double[] {0.0, distance / 2, distance, distance * 2,
+              Double.POSITIVE_INFINITY}) {
+        double bounded = l2.evaluateWithCutoff(a, b, cutoff);
+        if (distance <= cutoff) {
+          assertEquals(distance, bounded);
+        }
+        else {
+          assertTrue(bounded > cutoff);
+          assertTrue(bounded <= distance);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testCutoffAbandonsEarly() {
+    double[] a = new double[64];
+    double[] b = new double[64];
+    b[0] = 2.0;
+    b[63] = 1.0;
+    // the first check, after 16 values, already exceeds the cutoff
+    assertEquals(4.0, DistanceKernels.squaredL2WithCutoff(a, 0, b, 0, 64, 1.0));
+    assertEquals(5.0, DistanceKernels.squaredL2WithCutoff(a, 0, b, 0, 64, 5.0));
+    assertThrows(DimensionMismatchException.class, () -> {
+      l2.evaluateWithCutoff(new double[] {1, 0}, new double[] {0}, 1.0);
+    });
+  }
+
+  private final String[] names = new String[] {"euclidean", "squared-euclidean", "manhattan",
+      "chebyshev", "cosine", "hamming", "minkowski-3", "minkowski-0.5"};
+
+  @Test
+  public void testRegistryCachesInstances() {
+    for (String name : names) {
+      if (name.startsWith("minkowski-")) {
+        assertNotSame(IDistanceFunction.createDistanceFunction(name),
+                IDistanceFunction.createDistanceFunction(name));
+      } else {
+        assertSame(IDistanceFunction.createDistanceFunction(name),
+                IDistanceFunction.createDistanceFunction(name));
+      }
+    }
+    assertEquals(new L2Distance(), IDistanceFunction.createDistanceFunction("euclidean"));
+    assertEquals(DistanceRegistry.get("minkowski-3"), DistanceRegistry.get("minkowski-3"));
+    assertEquals(3.0, ((MinkowskiDistance) DistanceRegistry.get("minkowski-3")).getP());
+    assertNotEquals(DistanceRegistry.get("minkowski-3"), DistanceRegistry.get("minkowski-4"));
+    assertNotEquals(DistanceRegistry.get("manhattan"), DistanceRegistry.get("hamming"));
+  }
+
+  @Test
+  public void testRegistryUnsupportedNames() {
+    for (String name : new String[] {"mahalanobis", "minkowski-", "minkowski-x", "minkowski-0",
+        "minkowski--2"}) {
+      assertThrows(IllegalArgumentException.class, () -> {
+        DistanceRegistry.get(name);
+      });
+    }
+    assertThrows(IllegalArgumentException.class, () -> {
+      DistanceRegistry.get(null);
+    });
+  }
+
+  @Test
+  public void testDistances() {
+    double[] a = new double[] {0, 1, 3};
+    double[] b = new double[] {4, 1, 0};
+    assertEquals(25.0, DistanceRegistry.get("squared-euclidean").evaluate(a, b));
+    assertEquals(7.0, DistanceRegistry.get("manhattan").evaluate(a, b));
+    assertEquals(4.0, DistanceRegistry.get("chebyshev").evaluate(a, b));
+    assertEquals(2.0, DistanceRegistry.get("hamming").evaluate(a, b));
+    assertEquals(Math.cbrt(91.0), DistanceRegistry.get("minkowski-3").evaluate(a, b), 1e-12);
+    assertEquals(5.0, DistanceRegistry.get("minkowski-2").evaluate(a, b), 1e-12);
+    assertEquals(1.0 - 1.0 / Math.sqrt(170.0), DistanceRegistry.get("cosine").evaluate(a, b),
+            1e-12);
+  }
+
+  @Test
+  public void testMetrics() {
+    assertTrue(DistanceRegistry.get("euclidean").isMetric());
+    assertTrue(DistanceRegistry.get("manhattan").isMetric());
+    assertTrue(DistanceRegistry.get("chebyshev").isMetric());
+    assertTrue(DistanceRegistry.get("hamming").isMetric());
+    assertTrue(DistanceRegistry.get("minkowski-3").isMetric());
+    assertFalse(DistanceRegistry.get("minkowski-0.5").isMetric());
+    assertFalse(DistanceRegistry.get("squared-euclidean").isMetric());
+    assertFalse(DistanceRegistry.get("cosine").isMetric());
+    assertFalse(DistanceRegistry.get("cosine").supportsCutoff());
+    assertFalse(((IDistanceFunction) (x, y) -> 0.0).isMetric());
+  }
+
+  @Test
+  public void testEveryCategoricalClosedForm() {
+    for (String name : names) {
+      IDistanceFunction distance = DistanceRegistry.get(name);
+      IDistanceFunction vectors = (x, y) -> distance.evaluate(x, y);
+      for (int a = -1; a < 3; a++) {
+        for (int b = -1; b < 3; b++) {
+          assertEquals(vectors.evaluateCategorical(3, a, b), distance.evaluateCategorical(3, a, b),
+                  1e-12, name);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testEveryCutoffMatchesEvaluate() {
+    Random random = new Random(12);
+    for (String name : names) {
+      IDistanceFunction distance = DistanceRegistry.get(name);
+      for (int length = 0; length < 40; length++) {
+        double[] a = new double[length];
+        double[] b = new double[length];
+        for (int i = 0; i < length; i++) {
+          a[i] = random.nextInt(3) / 2.0;
+          b[i] = random.nextInt(3) / 2.0;
+        }
+
+        double expected = distance.evaluate(a, b);
+        for (double cutoff : new double[] {0.0, expected / 3, expected,
+            Double.POSITIVE_INFINITY}) {
+          double bounded = distance.evaluateWithCutoff(a, b, cutoff);
+          if (expected <= cutoff) {
+            assertEquals(expected, bounded, name);
+          }
+          else {
+            assertTrue(bounded > cutoff, name);
+          }
+        }
+      }
+    }
+  }
 }
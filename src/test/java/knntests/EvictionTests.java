@@ -0,0 +1,118 @@
+package knntests;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import reasoningmodels.knn.FIFOEviction;
+import reasoningmodels.knn.IEvictionPolicy;
+import reasoningmodels.knn.LeastRecentlyMatchedEviction;
+import reasoningmodels.knn.ReservoirEviction;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for the policies that choose which example a full KNN model gives up.
+ */
+public class EvictionTests {
+
+  private static void fill(IEvictionPolicy policy, int capacity) {
+    for (int row = 0; row < capacity; row++) {
+      policy.added(row);
+    }
+  }
+
+  @Test
+  public void testNonPositiveCapacity() {
+    assertThrows(IllegalArgumentException.class, () -> {
+      new FIFOEviction(0);
+    });
+    assertThrows(IllegalArgumentException.class, () -> {
+      new ReservoirEviction(-1, 0);
+    });
+    assertThrows(IllegalArgumentException.class, () -> {
+      new LeastRecentlyMatchedEviction(0);
+    });
+    assertThrows(IllegalArgumentException.class, () -> {
+      IEvictionPolicy.createEvictionPolicy("random", 4, 0);
+    });
+  }
+
+  @Test
+  public void testFIFO() {
+    IEvictionPolicy policy = IEvictionPolicy.createEvictionPolicy("fifo", 3, 0);
+    EvictionTests.fill(policy, 3);
+    policy.matched(0);
+    for (int i = 0; i < 7; i++) {
+      int row = policy.chooseVictim();
+      assertEquals(i % 3, row);
+      policy.added(row);
+    }
+  }
+
+  @Test
+  public void testLeastRecentlyMatched() {
+    IEvictionPolicy policy = IEvictionPolicy.createEvictionPolicy("least-recently-matched", 4, 0);
+    EvictionTests.fill(policy, 4);
+    assertEquals(0, policy.chooseVictim());
+    policy.matched(0);
+    policy.matched(2);
+    assertEquals(1, policy.chooseVictim());
+    policy.added(1);
+    assertEquals(3, policy.chooseVictim());
+    policy.added(3);
+    // matching the most recent row again changes nothing
+    policy.matched(3);
+    assertEquals(0, policy.chooseVictim());
+    policy.matched(0);
+    assertEquals(2, policy.chooseVictim());
+  }
+
+  @Test
+  public void testLeastRecentlyMatchedSingleRow() {
+    IEvictionPolicy policy = new LeastRecentlyMatchedEviction(1);
+    policy.added(0);
+    policy.matched(0);
+    assertEquals(0, policy.chooseVictim());
+    policy.added(0);
+    assertEquals(0, policy.chooseVictim());
+  }
+
+  @Test
+  public void testReservoirIsUniform() {
+    int capacity = 10;
+    int[] kept = new int[100];
+    Random seeds = new Random(1);
+    for (int trial = 0; trial < 2000; trial++) {
+      IEvictionPolicy policy = new ReservoirEviction(capacity, seeds.nextLong());
+      int[] examples = new int[capacity];
+      for (int row = 0; row < capacity; row++) {
+        examples[row] = row;
+        policy.added(row);
+      }
+      for (int example = capacity; example < kept.length; example++) {
+        int row = policy.chooseVictim();
+        if (row >= 0) {
+          examples[row] = example;
+          policy.added(row);
+        }
+      }
+
+      Set<Integer> distinct = new HashSet<>();
+      for (int example : examples) {
+        distinct.add(example);
+        kept[example]++;
+      }
+      assertEquals(capacity, distinct.size());
+    }
+
+    // each example is kept in about a tenth of the trials
+    for (int count : kept) {
+      assertTrue(count > 120 && count < 290);
+    }
+  }
+}
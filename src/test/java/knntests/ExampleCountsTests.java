@@ -0,0 +1,66 @@
+package knntests;
+
+import org.junit.jupiter.api.Test;
+
+import reasoningmodels.knn.ColumnarExampleStore;
+import reasoningmodels.knn.ExampleCounts;
+import reasoningmodels.knn.IExampleStore;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Tests that ExampleCounts finds the stored row of a duplicate example and counts its
+ * observations of each target value.
+ */
+public class ExampleCountsTests {
+
+  @Test
+  public void testArguments() {
+    IExampleStore store = new ColumnarExampleStore(1, 2);
+    assertThrows(IllegalArgumentException.class, () -> {
+      new ExampleCounts(null, 0);
+    });
+    assertThrows(IllegalArgumentException.class, () -> {
+      new ExampleCounts(store, 2);
+    });
+    ExampleCounts counts = new ExampleCounts(store, 1);
+    assertThrows(IllegalArgumentException.class, () -> {
+      counts.add(1, 0);
+    });
+  }
+
+  @Test
+  public void testFindsDuplicates() {
+    IExampleStore store = new ColumnarExampleStore(1, 2);
+    ExampleCounts counts = new ExampleCounts(store, 1);
+    // enough rows for the hash table to grow a few times
+    for (int i = 0; i < 100; i++) {
+      double[] numerical = new double[] {i / 10};
+      int[] categorical = new int[] {i % 2, i % 3};
+      int row = counts.find(numerical, categorical);
+      if (row < 0) {
+        row = store.add(numerical, categorical);
+      }
+      counts.add(row, categorical[1]);
+    }
+
+    // 10 values of the number, each with 2 values of the first column
+    assertEquals(20, store.size());
+    assertEquals(20, counts.size());
+    assertEquals(100, counts.getObservations());
+    int row = counts.find(new double[] {3.0}, new int[] {1, 2});
+    assertEquals(3.0, store.getValue(row, 0));
+    assertEquals(1, store.getCode(row, 0));
+    assertEquals(5, counts.getTotal(row));
+    // i = 31, 33, 35, 37, 39
+    assertEquals(2, counts.getCount(row, 0));
+    assertEquals(2, counts.getCount(row, 1));
+    assertEquals(1, counts.getCount(row, 2));
+    assertEquals(0, counts.getCount(row, 7));
+
+    assertEquals(-1, counts.find(new double[] {3.5}, new int[] {1, 0}));
+    assertEquals(counts.find(new double[] {0.0}, new int[] {0, 0}),
+            counts.find(new double[] {-0.0}, new int[] {0, 0}));
+  }
+}
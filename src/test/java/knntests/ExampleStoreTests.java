@@ -0,0 +1,269 @@
+package knntests;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import reasoningmodels.classifiers.BooleanFeature;
+import reasoningmodels.classifiers.CategoricalFeature;
+import reasoningmodels.classifiers.EntryImpl;
+import reasoningmodels.classifiers.IEntry;
+import reasoningmodels.classifiers.NumericalFeature;
+import reasoningmodels.knn.ColumnarExampleStore;
+import reasoningmodels.knn.FeatureLayout;
+import reasoningmodels.knn.IExampleStore;
+import reasoningmodels.knn.MappedExampleStore;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Tests for the example store and feature layout used by KNN.
+ */
+public class ExampleStoreTests {
+  private final IEntry entry = new EntryImpl(Arrays.asList(new NumericalFeature("Number", 2.5),
+          new BooleanFeature("Boolean", 1.0), new CategoricalFeature("Category", "value1")));
+  private final IEntry entry2 = new EntryImpl(Arrays.asList(
+          new CategoricalFeature("Category", "value2"), new NumericalFeature("Number", 5.0),
+          new BooleanFeature("Boolean", 0.0)));
+  private final Map<String, String[]> features = new HashMap<>();
+
+  @BeforeEach
+  public void init() {
+    features.put("Category", new String[] {"VALUE2", "value1"});
+  }
+
+  /**
+   * Makes an empty store of each kind with the given widths.
+   */
+  private List<IExampleStore> emptyStores(int numericalWidth, int categoricalWidth)
+          throws IOException {
+    return Arrays.asList(new ColumnarExampleStore(numericalWidth, categoricalWidth),
+            new MappedExampleStore(this.tempFile(), numericalWidth, categoricalWidth));
+  }
+
+  private String tempFile() throws IOException {
+    Path file = Files.createTempFile("examples", ".knn");
+    file.toFile().deleteOnExit();
+    return file.toString();
+  }
+
+  private byte[] serialize(Object object) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(object);
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  private Object deserialize(byte[] bytes) throws IOException, ClassNotFoundException {
+    return new ObjectInputStream(new ByteArrayInputStream(bytes)).readObject();
+  }
+
+  @Test
+  public void testNegativeWidth() {
+    assertThrows(IllegalArgumentException.class, () -> {
+      new ColumnarExampleStore(-1, 0);
+    });
+  }
+
+  @Test
+  public void testAddWrongWidth() {
+    IExampleStore store = new ColumnarExampleStore(2, 1);
+    assertThrows(IllegalArgumentException.class, () -> {
+      store.add(new double[] {1.0}, new int[] {0});
+    });
+  }
+
+  @Test
+  public void testAddAndGet() throws IOException {
+    for (IExampleStore store : this.emptyStores(2, 1)) {
+      for (int i = 0; i < 100; i++) {
+        assertEquals(i, store.add(new double[] {i, -i}, new int[] {i % 3}));
+      }
+
+      assertEquals(100, store.size());
+      assertEquals(42.0, store.getValue(42, 0));
+      assertEquals(-42.0, store.getValue(42, 1));
+      assertEquals(0, store.getCode(42, 0));
+      assertThrows(IndexOutOfBoundsException.class, () -> {
+        store.getValue(100, 0);
+      });
+    }
+  }
+
+  @Test
+  public void testSet() throws IOException {
+    for (IExampleStore store : this.emptyStores(2, 1)) {
+      store.add(new double[] {1.0, 2.0}, new int[] {0});
+      store.add(new double[] {3.0, 4.0}, new int[] {1});
+      store.set(0, new double[] {5.0, 6.0}, new int[] {2});
+      assertEquals(2, store.size());
+      assertEquals(5.0, store.getValue(0, 0));
+      assertEquals(6.0, store.getValue(0, 1));
+      assertEquals(2, store.getCode(0, 0));
+      assertEquals(3.0, store.getValue(1, 0));
+      assertThrows(IndexOutOfBoundsException.class, () -> {
+        store.set(2, new double[] {5.0, 6.0}, new int[] {2});
+      });
+      assertThrows(IllegalArgumentException.class, () -> {
+        store.set(0, new double[] {5.0}, new int[] {2});
+      });
+    }
+  }
+
+  @Test
+  public void testTruncate() throws IOException {
+    for (IExampleStore store : this.emptyStores(1, 1)) {
+      for (int i = 0; i < 10; i++) {
+        store.add(new double[] {i}, new int[] {i});
+      }
+
+      store.truncate(4);
+      assertEquals(4, store.size());
+      assertThrows(IndexOutOfBoundsException.class, () -> {
+        store.getCode(4, 0);
+      });
+      assertEquals(4, store.add(new double[] {-1.0}, new int[] {7}));
+      assertEquals(-1.0, store.getValue(4, 0));
+      assertEquals(3, store.getCode(3, 0));
+      assertThrows(IndexOutOfBoundsException.class, () -> {
+        store.truncate(6);
+      });
+    }
+  }
+
+  @Test
+  public void testMappedReopen() throws IOException, ClassNotFoundException {
+    String file = this.tempFile();
+    MappedExampleStore store = new MappedExampleStore(file, 2, 2);
+    for (int i = 0; i < 1000; i++) {
+      store.add(new double[] {i * 0.5, -i}, new int[] {i % 7, i % 11});
+    }
+
+    // only the path and size are serialized, not the rows
+    byte[] serialized = this.serialize(store);
+    assertTrue(serialized.length < 1000);
+    MappedExampleStore reopened = (MappedExampleStore) this.deserialize(serialized);
+    assertEquals(file, reopened.getFilePath());
+    assertEquals(1000, reopened.size());
+    for (int i = 0; i < 1000; i++) {
+      assertEquals(i * 0.5, reopened.getValue(i, 0));
+      assertEquals(-i, reopened.getValue(i, 1));
+      assertEquals(i % 7, reopened.getCode(i, 0));
+      assertEquals(i % 11, reopened.getCode(i, 1));
+    }
+    assertEquals(1000, reopened.add(new double[] {1.0, 2.0}, new int[] {3, 4}));
+    assertEquals(4, reopened.getCode(1000, 1));
+  }
+
+  @Test
+  public void testMappedKeepsNoFileOpen() throws IOException, ClassNotFoundException {
+    // the open files of the process are listed on linux only
+    Path openFiles = Paths.get("/proc/self/fd");
+    assumeTrue(Files.isDirectory(openFiles));
+    String file = this.tempFile();
+    MappedExampleStore store = new MappedExampleStore(file, 2, 2);
+    for (int i = 0; i < 1000; i++) {
+      store.add(new double[] {i, -i}, new int[] {i % 7, i % 11});
+    }
+    this.deserialize(this.serialize(store));
+
+    Path target = Paths.get(file).toRealPath();
+    try (Stream<Path> links = Files.list(openFiles)) {
+      assertFalse(links.anyMatch(link -> {
+        try {
+          return Files.readSymbolicLink(link).equals(target);
+        } catch (IOException e) {
+          // the descriptor was closed while listing
+          return false;
+        }
+      }));
+    }
+  }
+
+  @Test
+  public void testMappedWrongFile() throws IOException {
+    String file = this.tempFile();
+    MappedExampleStore store = new MappedExampleStore(file, 2, 1);
+    store.add(new double[] {1.0, 2.0}, new int[] {0});
+    byte[] serialized = this.serialize(store);
+    new MappedExampleStore(file, 3, 1);
+    assertThrows(IOException.class, () -> {
+      this.deserialize(serialized);
+    });
+    assertThrows(IllegalArgumentException.class, () -> {
+      new MappedExampleStore(null, 1, 1);
+    });
+  }
+
+  @Test
+  public void testLayoutColumns() {
+    FeatureLayout layout = new FeatureLayout(entry, features);
+    assertEquals(Arrays.asList("Number", "Boolean", "Category"), layout.getFeatureNames());
+    assertEquals(2, layout.getNumericalWidth());
+    assertEquals(1, layout.getCategoricalWidth());
+    assertTrue(layout.isCategorical("Category"));
+    assertFalse(layout.isCategorical("Number"));
+    assertEquals(1, layout.getColumn("Boolean"));
+    assertEquals(-1, layout.getColumn("Random"));
+  }
+
+  @Test
+  public void testEncodeDecode() {
+    FeatureLayout layout = new FeatureLayout(entry, features);
+    IExampleStore store = new ColumnarExampleStore(2, 1);
+    double[] numerical = new double[2];
+    int[] categorical = new int[1];
+    layout.encode(entry, numerical, categorical);
+    store.add(numerical, categorical);
+    layout.encode(entry2, numerical, categorical);
+    store.add(numerical, categorical);
+
+    assertEquals(1, store.getCode(1, 0));
+    assertEquals("value2", layout.getCategoricalValue(0, 1));
+    assertEquals(0, layout.getCode(0, "value1"));
+    assertEquals(-1, layout.getCode(0, "value3"));
+    assertEquals(2, layout.getEnumerationCount(0));
+    assertEquals(1, layout.getEnumerationIndex(0, 0));
+    assertEquals(0, layout.getEnumerationIndex(0, 1));
+    assertEquals(-1, layout.getEnumerationIndex(0, "value3"));
+    assertEquals("[2.5, TRUE, value1]", layout.decode(store, 0).toString());
+    assertEquals("[5.0, FALSE, value2]", layout.decode(store, 1).toString());
+  }
+
+  @Test
+  public void testCopiedLayoutCodesIndependently() {
+    FeatureLayout layout = new FeatureLayout(entry, features);
+    double[] numerical = new double[2];
+    int[] categorical = new int[1];
+    layout.encode(entry, numerical, categorical);
+    FeatureLayout copy = new FeatureLayout(layout);
+    layout.encode(entry2, numerical, categorical);
+
+    assertEquals(layout.getFeatureNames(), copy.getFeatureNames());
+    assertEquals(0, copy.getCode(0, "value1"));
+    assertEquals(-1, copy.getCode(0, "value2"));
+    assertEquals(1, copy.getCodeCount(0));
+    assertEquals(2, layout.getCodeCount(0));
+    copy.encode(entry2, numerical, categorical);
+    assertEquals(1, categorical[0]);
+    assertEquals(0, copy.getEnumerationIndex(0, 1));
+  }
+}
@@ -0,0 +1,153 @@
+package knntests;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import reasoningmodels.classifiers.BooleanFeature;
+import reasoningmodels.classifiers.CategoricalFeature;
+import reasoningmodels.classifiers.EntryImpl;
+import reasoningmodels.classifiers.IEntry;
+import reasoningmodels.classifiers.NumericalFeature;
+import reasoningmodels.knn.ColumnarExampleStore;
+import reasoningmodels.knn.DistanceRegistry;
+import reasoningmodels.knn.FeatureLayout;
+import reasoningmodels.knn.HammingEngine;
+import reasoningmodels.knn.IDistanceFunction;
+import reasoningmodels.knn.IExampleStore;
+import reasoningmodels.knn.IRowDistance;
+import reasoningmodels.knn.L2Distance;
+import reasoningmodels.knn.QueryPlan;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Tests that the bit-packed engine scores rows exactly as a query plan does.
+ */
+public class HammingEngineTests {
+  private final String[] shapes = new String[] {"circle", "square", "triangle", "diamond"};
+  private final String[] colors = new String[] {"red", "blue"};
+  private final double[] minimums = new double[] {0.0, 1.0};
+  private final double[] maximums = new double[] {1.0, 1.0};
+  private final Map<String, String[]> features = new HashMap<>();
+  private FeatureLayout layout;
+  private IExampleStore store;
+  private HammingEngine engine;
+
+  private void add(String shape, String color, double bool, double always) {
+    IEntry entry = new EntryImpl(Arrays.asList(new CategoricalFeature("Shape", shape),
+            new CategoricalFeature("Color", color), new BooleanFeature("Boolean", bool),
+            new BooleanFeature("Always", always)));
+    double[] numerical = new double[2];
+    int[] categorical = new int[2];
+    this.layout.encode(entry, numerical, categorical);
+    this.engine.add(this.store.add(numerical, categorical));
+  }
+
+  @BeforeEach
+  public void init() {
+    features.put("Shape", shapes);
+    features.put("Color", colors);
+    layout = new FeatureLayout(new EntryImpl(Arrays.asList(
+            new CategoricalFeature("Shape", "circle"), new CategoricalFeature("Color", "red"),
+            new BooleanFeature("Boolean", 1.0), new BooleanFeature("Always", 1.0))), features);
+    store = new ColumnarExampleStore(2, 2);
+    engine = new HammingEngine(layout, store);
+    Random random = new Random(9);
+    for (int i = 0; i < 200; i++) {
+      this.add(shapes[random.nextInt(4)], colors[random.nextInt(2)], random.nextInt(2), 1.0);
+    }
+  }
+
+  @Test
+  public void testCannotPackNumerical() {
+    FeatureLayout numericalLayout = new FeatureLayout(new EntryImpl(Arrays.asList(
+            new NumericalFeature("Number", 1.0))), features);
+    assertFalse(HammingEngine.canPack(numericalLayout));
+    assertThrows(IllegalArgumentException.class, () -> {
+      new HammingEngine(numericalLayout, new ColumnarExampleStore(1, 0));
+    });
+  }
+
+  @Test
+  public void testMatchesQueryPlan() {
+    Random random = new Random(4);
+    for (int i = 0; i < 50; i++) {
+      IEntry query = new EntryImpl(Arrays.asList(
+              new CategoricalFeature("Shape", shapes[random.nextInt(4)].toUpperCase()),
+              new BooleanFeature("Boolean", random.nextInt(2)),
+              new BooleanFeature("Always", random.nextInt(2))));
+      if (i % 2 == 0) {
+        query = new EntryImpl(Arrays.asList(query.getFeatures().get(0),
+                query.getFeatures().get(1), query.getFeatures().get(2),
+                new CategoricalFeature("Color", colors[random.nextInt(2)])));
+      }
+
+      for (String name : new String[] {"euclidean", "squared-euclidean", "manhattan",
+          "chebyshev", "hamming", "minkowski-3"}) {
+        IDistanceFunction distance = DistanceRegistry.get(name);
+        IRowDistance packed = engine.compile(query, distance, minimums, maximums);
+        assertNotNull(packed);
+        QueryPlan plan = new QueryPlan(query, layout, store, distance, minimums, maximums);
+        for (int row = 0; row < store.size(); row++) {
+          assertEquals(plan.distanceTo(row), packed.distanceTo(row), name);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testReplacedRows() {
+    Random random = new Random(2);
+    for (int i = 0; i < 100; i++) {
+      IEntry entry = new EntryImpl(Arrays.asList(
+              new CategoricalFeature("Shape", shapes[random.nextInt(4)]),
+              new CategoricalFeature("Color", colors[random.nextInt(2)]),
+              new BooleanFeature("Boolean", random.nextInt(2)), new BooleanFeature("Always", 1.0)));
+      double[] numerical = new double[2];
+      int[] categorical = new int[2];
+      this.layout.encode(entry, numerical, categorical);
+      int row = random.nextInt(store.size());
+      this.store.set(row, numerical, categorical);
+      this.engine.add(row);
+    }
+
+    IEntry query = new EntryImpl(Arrays.asList(new CategoricalFeature("Shape", "square"),
+            new BooleanFeature("Boolean", 1.0)));
+    IRowDistance packed = engine.compile(query, new L2Distance(), minimums, maximums);
+    QueryPlan plan = new QueryPlan(query, layout, store, new L2Distance(), minimums, maximums);
+    for (int row = 0; row < store.size(); row++) {
+      assertEquals(plan.distanceTo(row), packed.distanceTo(row));
+    }
+    assertThrows(IllegalArgumentException.class, () -> {
+      engine.add(store.size() + 1);
+    });
+  }
+
+  @Test
+  public void testUnsupportedQueries() {
+    assertNull(engine.compile(new EntryImpl(Arrays.asList(
+            new CategoricalFeature("Shape", "circle"))), (a, b) -> 0.0, minimums, maximums));
+    assertNull(engine.compile(new EntryImpl(Arrays.asList(
+            new CategoricalFeature("Shape", "oval"))), new L2Distance(), minimums, maximums));
+    assertNull(engine.compile(new EntryImpl(Arrays.asList(
+            new CategoricalFeature("Shape", "circle"))), DistanceRegistry.get("cosine"), minimums,
+            maximums));
+    assertNull(engine.compile(new EntryImpl(Arrays.asList(
+            new NumericalFeature("Boolean", 0.5))), new L2Distance(), minimums, maximums));
+
+    this.add("oval", "red", 0.0, 1.0);
+    assertNull(engine.compile(new EntryImpl(Arrays.asList(
+            new CategoricalFeature("Shape", "circle"))), new L2Distance(), minimums, maximums));
+    assertNotNull(engine.compile(new EntryImpl(Arrays.asList(
+            new CategoricalFeature("Color", "red"))), new L2Distance(), minimums, maximums));
+  }
+}
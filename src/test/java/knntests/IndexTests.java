@@ -0,0 +1,281 @@
+package knntests;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import reasoningmodels.knn.ColumnarExampleStore;
+import reasoningmodels.knn.IExampleStore;
+import reasoningmodels.knn.INeighborIndex;
+import reasoningmodels.knn.IRowDistance;
+import reasoningmodels.knn.KDTreeIndex;
+import reasoningmodels.knn.L2Distance;
+import reasoningmodels.knn.LSHIndex;
+import reasoningmodels.knn.NeighborHeap;
+import reasoningmodels.knn.ParallelScan;
+import reasoningmodels.knn.VPTreeIndex;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests that the neighbor indexes find exactly the rows a full scan finds, and that the
+ * approximate LSH index finds most of them.
+ */
+public class IndexTests {
+  private final double[] minimums = new double[] {0.0, -5.0, 0.0};
+  private final double[] maximums = new double[] {10.0, 5.0, 1.0};
+  private IExampleStore store;
+
+  @BeforeEach
+  public void init() {
+    store = new ColumnarExampleStore(3, 0);
+    Random random = new Random(42);
+    for (int i = 0; i < 2000; i++) {
+      // rounding creates plenty of ties and duplicate coordinates
+      store.add(new double[] {Math.round(random.nextDouble() * 100) / 10.0,
+              random.nextGaussian(), random.nextInt(2)}, new int[0]);
+    }
+    // sorted rows to force rebalancing
+    for (int i = 0; i < 500; i++) {
+      store.add(new double[] {i / 50.0, 0.0, 1.0}, new int[0]);
+    }
+  }
+
+  /**
+   * Gets the euclidean distance between the point and a row over the columns in the point.
+   */
+  private IRowDistance distanceFrom(double[] point) {
+    return row -> {
+      double[] a = new double[point.length];
+      double[] b = new double[point.length];
+      for (int column = 0; column < point.length; column++) {
+        if (!Double.isNaN(point[column])) {
+          a[column] = point[column];
+          b[column] = (store.getValue(row, column) - minimums[column])
+                  / (maximums[column] - minimums[column]);
+        }
+      }
+      return new L2Distance().evaluate(a, b);
+    };
+  }
+
+  private void assertMatchesScan(INeighborIndex index, double[] point, int k) {
+    NeighborHeap expected = new NeighborHeap(k);
+    IRowDistance distance = this.distanceFrom(point);
+    for (int row = 0; row < store.size(); row++) {
+      expected.offer(row, distance.distanceTo(row));
+    }
+
+    NeighborHeap actual = new NeighborHeap(k);
+    index.search(point, minimums, maximums, distance, actual);
+    assertArrayEquals(expected.getSortedRows(), actual.getSortedRows());
+  }
+
+  private void assertMatchesScan(INeighborIndex index, boolean partialQueries) {
+    Random random = new Random(3);
+    for (int i = 0; i < 50; i++) {
+      double[] point = new double[] {random.nextDouble() * 1.2 - 0.1, random.nextDouble(),
+              random.nextInt(2)};
+      if (partialQueries && i % 5 == 0) {
+        point[1] = Double.NaN;
+      }
+      this.assertMatchesScan(index, point, 1);
+      this.assertMatchesScan(index, point, 7);
+      this.assertMatchesScan(index, point, 101);
+    }
+  }
+
+  @Test
+  public void testKDTreeSupports() {
+    INeighborIndex index = new KDTreeIndex(store);
+    assertTrue(index.supports(new L2Distance(), Arrays.asList("a")));
+    assertFalse(index.supports((a, b) -> 0.0, Arrays.asList("a")));
+  }
+
+  @Test
+  public void testKDTreeMatchesScan() {
+    INeighborIndex index = new KDTreeIndex(store);
+    for (int row = 0; row < store.size(); row++) {
+      index.add(row);
+    }
+    this.assertMatchesScan(index, true);
+  }
+
+  @Test
+  public void testKDTreeSurvivesRescaling() {
+    INeighborIndex index = new KDTreeIndex(store);
+    assertFalse(index.isTiedToBounds());
+    for (int row = 0; row < store.size(); row++) {
+      index.add(row);
+    }
+
+    // wider bounds weigh the columns differently, without rebuilding the tree
+    minimums[0] = -40.0;
+    maximums[1] = 45.0;
+    this.assertMatchesScan(index, true);
+    for (int i = 0; i < 300; i++) {
+      index.add(store.add(new double[] {-40.0 + i / 3.0, 40.0 - i / 4.0, i % 2}, new int[0]));
+    }
+    this.assertMatchesScan(index, true);
+  }
+
+  @Test
+  public void testKDTreeReplacedRows() {
+    INeighborIndex index = new KDTreeIndex(store);
+    for (int row = 0; row < store.size(); row++) {
+      index.add(row);
+    }
+
+    Random random = new Random(8);
+    for (int i = 0; i < 1000; i++) {
+      int row = random.nextInt(store.size());
+      assertTrue(index.remove(row));
+      store.set(row, new double[] {random.nextDouble() * 10, random.nextGaussian() * 2,
+              random.nextInt(2)}, new int[0]);
+      index.add(row);
+    }
+    this.assertMatchesScan(index, true);
+  }
+
+  /**
+   * Gets the scaled coordinates of the given row.
+   */
+  private double[] pointOf(int row) {
+    double[] point = new double[3];
+    for (int column = 0; column < point.length; column++) {
+      point[column] = (store.getValue(row, column) - minimums[column])
+              / (maximums[column] - minimums[column]);
+    }
+    return point;
+  }
+
+  @Test
+  public void testVPTreeSupports() {
+    INeighborIndex index = new VPTreeIndex(new L2Distance(), Arrays.asList("a", "b"),
+        row -> this.distanceFrom(this.pointOf(row)));
+    assertTrue(index.supports(new L2Distance(), Arrays.asList("b", "a")));
+    assertTrue(index.isTiedToBounds());
+    assertFalse(index.supports(new L2Distance(), Arrays.asList("a")));
+    assertFalse(index.supports((a, b) -> 0.0, Arrays.asList("a", "b")));
+    assertFalse(index.remove(0));
+  }
+
+  @Test
+  public void testVPTreeMatchesScan() {
+    INeighborIndex index = new VPTreeIndex(new L2Distance(), Arrays.asList("a", "b", "c"),
+        row -> this.distanceFrom(this.pointOf(row)));
+    for (int row = 0; row < store.size(); row++) {
+      index.add(row);
+    }
+    this.assertMatchesScan(index, false);
+  }
+
+  @Test
+  public void testParallelScanMatchesScan() {
+    Random random = new Random(3);
+    for (int i = 0; i < 20; i++) {
+      double[] point = new double[] {random.nextDouble(), random.nextDouble(), random.nextInt(2)};
+      IRowDistance distance = this.distanceFrom(point);
+      for (int k : new int[] {1, 7, 101}) {
+        NeighborHeap expected = new NeighborHeap(k);
+        for (int row = 0; row < store.size(); row++) {
+          expected.offer(row, distance.distanceTo(row));
+        }
+        assertArrayEquals(expected.getSortedRows(),
+                ParallelScan.scan(distance, new NeighborHeap(k), 0, store.size()).getSortedRows());
+      }
+    }
+  }
+
+  private LSHIndex lshOf(int tables, double width) {
+    LSHIndex index = new LSHIndex(store, minimums, maximums, new int[0], tables, 4, width, 5);
+    for (int row = 0; row < store.size(); row++) {
+      index.add(row);
+    }
+    return index;
+  }
+
+  /**
+   * Gets the fraction of the true k nearest rows the LSH index finds over random queries.
+   */
+  private double recallOf(LSHIndex index, int probes, int k) {
+    Random random = new Random(3);
+    int found = 0;
+    for (int i = 0; i < 50; i++) {
+      double[] point = this.pointOf(random.nextInt(store.size()));
+      IRowDistance distance = this.distanceFrom(point);
+      NeighborHeap expected = new NeighborHeap(k);
+      for (int row = 0; row < store.size(); row++) {
+        expected.offer(row, distance.distanceTo(row));
+      }
+
+      NeighborHeap actual = new NeighborHeap(k);
+      index.search(point, new int[0], probes, distance, actual);
+      for (int row : actual.getSortedRows()) {
+        found += Arrays.stream(expected.getSortedRows()).anyMatch(other -> other == row) ? 1 : 0;
+      }
+    }
+    return found / (50.0 * k);
+  }
+
+  @Test
+  public void testLSHWideBucketsMatchScan() {
+    // every row is in the same bucket, so every row is a candidate
+    LSHIndex index = this.lshOf(1, 1000.0);
+    NeighborHeap nearest = new NeighborHeap(7);
+    double[] point = this.pointOf(17);
+    assertEquals(store.size(), index.search(point, new int[0], 1, this.distanceFrom(point),
+            nearest));
+    assertEquals(1.0, this.recallOf(index, 1, 7));
+  }
+
+  @Test
+  public void testLSHRecallGrowsWithTablesAndProbes() {
+    double fewTables = this.recallOf(this.lshOf(2, 0.02), 1, 7);
+    double manyTables = this.recallOf(this.lshOf(16, 0.02), 1, 7);
+    double manyProbes = this.recallOf(this.lshOf(16, 0.02), 8, 7);
+    assertTrue(fewTables < manyTables);
+    assertTrue(manyTables <= manyProbes);
+    assertTrue(manyProbes > 0.85);
+  }
+
+  @Test
+  public void testLSHReplacedRows() {
+    LSHIndex index = this.lshOf(4, 0.02);
+    double[] oldPoint = this.pointOf(17);
+    index.remove(17);
+    store.set(17, new double[] {5.0, 4.5, 0.0}, new int[0]);
+    index.add(17);
+
+    // the row is only found at its new coordinates
+    double[] newPoint = this.pointOf(17);
+    NeighborHeap nearest = new NeighborHeap(1);
+    index.search(newPoint, new int[0], 1, this.distanceFrom(newPoint), nearest);
+    assertArrayEquals(new int[] {17}, nearest.getSortedRows());
+    Set<Integer> offered = new HashSet<>();
+    index.search(oldPoint, new int[0], 1, row -> {
+      offered.add(row);
+      return 0.0;
+    }, new NeighborHeap(1));
+    assertFalse(offered.isEmpty());
+    assertFalse(offered.contains(17));
+  }
+
+  @Test
+  public void testLSHNonPositiveParameters() {
+    assertThrows(IllegalArgumentException.class, () -> {
+      new LSHIndex(store, minimums, maximums, new int[0], 0, 4, 0.1, 5);
+    });
+    assertThrows(IllegalArgumentException.class, () -> {
+      this.lshOf(1, 0.1).search(this.pointOf(0), new int[0], 0, row -> 0.0, new NeighborHeap(1));
+    });
+  }
+}
@@ -0,0 +1,161 @@
+package knntests;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import reasoningmodels.classifiers.CategoricalFeature;
+import reasoningmodels.classifiers.EntryImpl;
+import reasoningmodels.classifiers.IEntry;
+import reasoningmodels.classifiers.IFeature;
+import reasoningmodels.classifiers.NumericalFeature;
+import reasoningmodels.knn.ColumnarExampleStore;
+import reasoningmodels.knn.FeatureLayout;
+import reasoningmodels.knn.IExampleStore;
+import reasoningmodels.knn.InvertedIndex;
+import reasoningmodels.knn.L2Distance;
+import reasoningmodels.knn.NeighborHeap;
+import reasoningmodels.knn.QueryPlan;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests that the inverted index of categorical values finds exactly the rows a scan finds,
+ * without scoring every row.
+ */
+public class InvertedIndexTests {
+  private final String[] shapes = new String[] {"circle", "square", "triangle", "diamond"};
+  private final String[] colors = new String[] {"red", "blue", "green"};
+  private final String[] sizes = new String[] {"small", "large"};
+  private final double[] minimums = new double[] {0.0};
+  private final double[] maximums = new double[] {10.0};
+  private final Map<String, String[]> features = new HashMap<>();
+  private FeatureLayout layout;
+  private IExampleStore store;
+  private InvertedIndex index;
+
+  private IEntry entryOf(Random random, boolean withNumber) {
+    List<IFeature> entryFeatures = new ArrayList<>(Arrays.asList(
+            new CategoricalFeature("Shape", shapes[random.nextInt(4)]),
+            new CategoricalFeature("Color", colors[random.nextInt(3)]),
+            new CategoricalFeature("Size", sizes[random.nextInt(2)])));
+    if (withNumber) {
+      entryFeatures.add(new NumericalFeature("Number", random.nextInt(11)));
+    }
+    return new EntryImpl(entryFeatures);
+  }
+
+  @BeforeEach
+  public void init() {
+    features.put("Shape", shapes);
+    features.put("Color", colors);
+    features.put("Size", sizes);
+    Random random = new Random(13);
+    store = new ColumnarExampleStore(1, 3);
+    for (int i = 0; i < 1000; i++) {
+      IEntry entry = this.entryOf(random, true);
+      if (layout == null) {
+        layout = new FeatureLayout(entry, features);
+        index = new InvertedIndex(layout, store);
+      }
+      double[] numerical = new double[1];
+      int[] categorical = new int[3];
+      layout.encode(entry, numerical, categorical);
+      index.add(store.add(numerical, categorical));
+    }
+  }
+
+  @Test
+  public void testMatchesScan() {
+    Random random = new Random(5);
+    int scored = 0;
+    for (int i = 0; i < 50; i++) {
+      QueryPlan plan = new QueryPlan(this.entryOf(random, i % 2 == 0), layout, store,
+              new L2Distance(), minimums, maximums);
+      NeighborHeap expected = new NeighborHeap(7);
+      for (int row = 0; row < store.size(); row++) {
+        expected.offer(row, plan.distanceTo(row));
+      }
+
+      NeighborHeap actual = new NeighborHeap(7);
+      scored += index.search(plan, plan, actual);
+      assertArrayEquals(expected.getSortedRows(), actual.getSortedRows());
+    }
+    // most queries stop after the rows sharing every value
+    assertTrue(scored < 50 * store.size() / 2);
+  }
+
+  @Test
+  public void testUnseenValue() {
+    QueryPlan plan = new QueryPlan(new EntryImpl(Arrays.asList(
+            new CategoricalFeature("Shape", "hexagon"), new CategoricalFeature("Size", "small"))),
+            layout, store, new L2Distance(), minimums, maximums);
+    assertEquals(-1, plan.getQueryCode(0));
+    NeighborHeap expected = new NeighborHeap(3);
+    for (int row = 0; row < store.size(); row++) {
+      expected.offer(row, plan.distanceTo(row));
+    }
+
+    NeighborHeap actual = new NeighborHeap(3);
+    index.search(plan, plan, actual);
+    assertArrayEquals(expected.getSortedRows(), actual.getSortedRows());
+  }
+
+  @Test
+  public void testSelective() {
+    QueryPlan plan = new QueryPlan(this.entryOf(new Random(2), false), layout, store,
+            new L2Distance(), minimums, maximums);
+    assertFalse(index.isSelective(plan));
+
+    // no row shares the value, so every row is scored after the empty postings
+    QueryPlan unseenPlan = new QueryPlan(new EntryImpl(Arrays.asList(
+            new CategoricalFeature("Shape", "hexagon"))), layout, store, new L2Distance(),
+            minimums, maximums);
+    assertTrue(index.isSelective(unseenPlan));
+    NeighborHeap actual = new NeighborHeap(3);
+    assertEquals(store.size(), index.search(unseenPlan, unseenPlan, actual));
+    assertArrayEquals(new int[] {0, 1, 2}, actual.getSortedRows());
+  }
+
+  @Test
+  public void testRowsOutOfOrder() {
+    assertThrows(IllegalArgumentException.class, () -> {
+      index.add(store.size() + 1);
+    });
+  }
+
+  @Test
+  public void testReplacedRows() {
+    Random random = new Random(6);
+    for (int i = 0; i < 200; i++) {
+      int row = random.nextInt(store.size());
+      double[] numerical = new double[1];
+      int[] categorical = new int[3];
+      layout.encode(this.entryOf(random, true), numerical, categorical);
+      index.remove(row);
+      store.set(row, numerical, categorical);
+      index.add(row);
+    }
+
+    QueryPlan plan = new QueryPlan(this.entryOf(random, true), layout, store, new L2Distance(),
+            minimums, maximums);
+    NeighborHeap expected = new NeighborHeap(5);
+    for (int row = 0; row < store.size(); row++) {
+      expected.offer(row, plan.distanceTo(row));
+    }
+
+    NeighborHeap actual = new NeighborHeap(5);
+    index.search(plan, plan, actual);
+    assertArrayEquals(expected.getSortedRows(), actual.getSortedRows());
+  }
+}
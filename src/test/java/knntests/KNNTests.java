@@ -3,11 +3,24 @@ package knntests;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
 
 import reasoningmodels.IReasoningModel;
 import reasoningmodels.classifiers.BooleanFeature;
@@ -16,6 +29,7 @@ import reasoningmodels.classifiers.EntryImpl;
 import reasoningmodels.classifiers.IEntry;
 import reasoningmodels.classifiers.IFeature;
 import reasoningmodels.classifiers.NumericalFeature;
+import reasoningmodels.knn.CompactionReport;
 import reasoningmodels.knn.KNN;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
@@ -237,4 +251,944 @@ public class KNNTests {
     testKNN.train(entry2);
     assertEquals("value1", testKNN.queryWithParams(queryEntry, params));
   }
+
+  @Test
+  public void testQueryScalesQueryValues() {
+    testKNN.train(entry);
+    testKNN.train(entry2);
+    testKNN.train(new EntryImpl(Arrays.asList(new NumericalFeature("Number", 0.0), boolean1,
+            categorical1)));
+    IEntry query = new EntryImpl(Arrays.asList(new NumericalFeature("Number", 4.5), boolean1));
+    assertEquals("value2", testKNN.queryWithParams(query, params));
+  }
+
+  @Test
+  public void testQueryOutsideOfBounds() {
+    testKNN.train(entry);
+    testKNN.train(entry2);
+    IEntry query = new EntryImpl(Arrays.asList(new NumericalFeature("Number", -10.0), boolean1));
+    assertEquals("value1", testKNN.queryWithParams(query, params));
+  }
+
+  @Test
+  public void testUnsupportedIndexDistance() {
+    Map<String, Object> modelParams = new HashMap<>();
+    modelParams.put("index", "vp-tree");
+    modelParams.put("index-distance", "cityblock");
+    assertThrows(IllegalArgumentException.class, () -> {
+      new KNN("Category", modelParams);
+    });
+  }
+
+  @Test
+  public void testUnsupportedIndex() {
+    Map<String, Object> modelParams = new HashMap<>();
+    modelParams.put("index", "r-tree");
+    assertThrows(IllegalArgumentException.class, () -> {
+      new KNN("Category", modelParams);
+    });
+  }
+
+  @Test
+  public void testNonPositiveLSHTables() {
+    Map<String, Object> modelParams = new HashMap<>();
+    modelParams.put("lsh-tables", "0");
+    assertThrows(IllegalArgumentException.class, () -> {
+      new KNN("Category", modelParams);
+    });
+  }
+
+  @Test
+  public void testNonPositiveProbes() {
+    this.testKNN.train(this.entry);
+    params.put("approximate", "true");
+    params.put("probes", "0");
+    assertThrows(IllegalArgumentException.class, () -> {
+      this.testKNN.queryWithParams(this.queryEntry, params);
+    });
+  }
+
+  @Test
+  public void testNonPositiveParallelThreshold() {
+    Map<String, Object> modelParams = new HashMap<>();
+    modelParams.put("parallel-threshold", "0");
+    assertThrows(IllegalArgumentException.class, () -> {
+      new KNN("Category", modelParams);
+    });
+  }
+
+  @Test
+  public void testParallelScanMatchesScan() {
+    Map<String, Object> modelParams = new HashMap<>();
+    modelParams.put("parallel-threshold", "1");
+    this.assertMatchesScan(modelParams, new HashMap<>(params));
+  }
+
+  @Test
+  public void testQueryBatchNull() {
+    assertThrows(IllegalArgumentException.class, () -> {
+      new KNN("Category").queryBatch(null, params);
+    });
+    this.testKNN.train(this.entry);
+    assertThrows(IllegalArgumentException.class, () -> {
+      ((KNN) this.testKNN).queryBatch(Arrays.asList(this.queryEntry, null), params);
+    });
+  }
+
+  @Test
+  public void testQueryBatchEmpty() {
+    assertEquals(new ArrayList<>(), new KNN("Category").queryBatch(new ArrayList<>(), params));
+  }
+
+  @Test
+  public void testQueryBatchMatchesQueries() {
+    KNN batchKNN = (KNN) this.testKNN;
+    Random random = new Random(13);
+    String[] categories = new String[] {"value1", "value2", "value3"};
+    for (int i = 0; i < 700; i++) {
+      batchKNN.train(new EntryImpl(Arrays.asList(
+              new NumericalFeature("Number", random.nextInt(50)),
+              new BooleanFeature("Boolean", random.nextInt(2)),
+              new CategoricalFeature("Category", categories[random.nextInt(3)]))));
+    }
+
+    List<IEntry> queries = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      queries.add(new EntryImpl(Arrays.asList(
+              new NumericalFeature("Number", random.nextInt(60) - 5),
+              new BooleanFeature("Boolean", random.nextInt(2)))));
+    }
+    params.put("k", "5");
+    List<String> results = batchKNN.queryBatch(queries, params);
+    assertEquals(queries.size(), results.size());
+    for (int i = 0; i < queries.size(); i++) {
+      assertEquals(batchKNN.queryWithParams(queries.get(i), params), results.get(i));
+    }
+  }
+
+  @Test
+  public void testPackedScanMatchesVPTree() {
+    // the vp-tree scores rows with query plans, and the unindexed model with the packed engine
+    Map<String, Object> modelParams = new HashMap<>();
+    modelParams.put("index", "vp-tree");
+    KNN indexedKNN = new KNN("Category", modelParams);
+    KNN packedKNN = new KNN("Category");
+    Map<String, String[]> features = new HashMap<>();
+    features.put("Shape", new String[] {"circle", "square", "triangle"});
+    features.put("Boolean", null);
+    features.put("Category", new String[] {"value1", "value2", "value3"});
+    indexedKNN.parameterizeWithFlatFeatures(features);
+    packedKNN.parameterizeWithFlatFeatures(features);
+
+    Random random = new Random(21);
+    for (int i = 0; i < 300; i++) {
+      IEntry example = new EntryImpl(Arrays.asList(
+              new CategoricalFeature("Shape", features.get("Shape")[random.nextInt(3)]),
+              new BooleanFeature("Boolean", random.nextInt(2)),
+              new CategoricalFeature("Category", features.get("Category")[random.nextInt(3)])));
+      indexedKNN.train(example);
+      packedKNN.train(example);
+
+      IEntry query = new EntryImpl(Arrays.asList(
+              new CategoricalFeature("Shape", features.get("Shape")[random.nextInt(3)]),
+              new BooleanFeature("Boolean", random.nextInt(2))));
+      params.put("k", i >= 5 ? "5" : "1");
+      assertEquals(indexedKNN.queryWithParams(query, params),
+              packedKNN.queryWithParams(query, params));
+    }
+  }
+
+  @Test
+  public void testInvertedIndexMatchesVPTree() {
+    // the unindexed model searches the inverted index, since the queries have categorical values
+    Map<String, Object> modelParams = new HashMap<>();
+    modelParams.put("index", "vp-tree");
+    KNN indexedKNN = new KNN("Category", modelParams);
+    KNN invertedKNN = new KNN("Category");
+    Map<String, String[]> features = new HashMap<>();
+    features.put("Shape", new String[] {"circle", "square", "triangle"});
+    features.put("Color", new String[] {"red", "blue"});
+    features.put("Number", null);
+    features.put("Category", new String[] {"value1", "value2", "value3"});
+    indexedKNN.parameterizeWithFlatFeatures(features);
+    invertedKNN.parameterizeWithFlatFeatures(features);
+
+    Random random = new Random(17);
+    for (int i = 0; i < 300; i++) {
+      IEntry example = new EntryImpl(Arrays.asList(
+              new CategoricalFeature("Shape", features.get("Shape")[random.nextInt(3)]),
+              new CategoricalFeature("Color", features.get("Color")[random.nextInt(2)]),
+              new NumericalFeature("Number", random.nextInt(20)),
+              new CategoricalFeature("Category", features.get("Category")[random.nextInt(3)])));
+      indexedKNN.train(example);
+      invertedKNN.train(example);
+
+      IEntry query = new EntryImpl(Arrays.asList(
+              new CategoricalFeature("Shape", features.get("Shape")[random.nextInt(3)]),
+              new CategoricalFeature("Color", features.get("Color")[random.nextInt(2)]),
+              new NumericalFeature("Number", random.nextInt(25))));
+      params.put("k", i >= 5 ? "5" : "1");
+      assertEquals(indexedKNN.queryWithParams(query, params),
+              invertedKNN.queryWithParams(query, params));
+    }
+  }
+
+  @Test
+  public void testVPTreeWithOtherMetricsMatchesScan() {
+    for (String name : new String[] {"manhattan", "chebyshev", "hamming", "minkowski-3"}) {
+      this.init();
+      Map<String, Object> modelParams = new HashMap<>();
+      modelParams.put("index", "vp-tree");
+      modelParams.put("index-distance", name);
+      params.put("distance", name);
+      this.assertMatchesScan(modelParams, new HashMap<>(params));
+    }
+  }
+
+  @Test
+  public void testIndexDistanceNotMetric() {
+    Map<String, Object> modelParams = new HashMap<>();
+    modelParams.put("index", "vp-tree");
+    modelParams.put("index-distance", "cosine");
+    assertThrows(IllegalArgumentException.class, () -> {
+      new KNN("Category", modelParams);
+    });
+  }
+
+  private KNN boundedKNN(String eviction, String index) {
+    Map<String, Object> modelParams = new HashMap<>();
+    modelParams.put("capacity", "20");
+    modelParams.put("eviction-seed", "0");
+    if (eviction != null) {
+      modelParams.put("eviction", eviction);
+    }
+    if (index != null) {
+      modelParams.put("index", index);
+    }
+    KNN knn = new KNN("Category", modelParams);
+    Map<String, String[]> features = new HashMap<>();
+    features.put("Shape", new String[] {"circle", "square", "triangle"});
+    features.put("Number", null);
+    features.put("Boolean", null);
+    features.put("Category", new String[] {"value1", "value2", "value3"});
+    knn.parameterizeWithFlatFeatures(features);
+    return knn;
+  }
+
+  @Test
+  public void testCapacityParameters() {
+    Map<String, Object> modelParams = new HashMap<>();
+    modelParams.put("capacity", "0");
+    assertThrows(IllegalArgumentException.class, () -> {
+      new KNN("Category", modelParams);
+    });
+    modelParams.put("capacity", "5");
+    modelParams.put("eviction", "random");
+    assertThrows(IllegalArgumentException.class, () -> {
+      new KNN("Category", modelParams);
+    });
+    modelParams.remove("capacity");
+    modelParams.put("eviction", "fifo");
+    assertThrows(IllegalArgumentException.class, () -> {
+      new KNN("Category", modelParams);
+    });
+  }
+
+  @Test
+  public void testBoundedModelsMatchIndexes() {
+    // evicted rows must leave the inverted index, the kd-tree and the vp-tree alike
+    String[] shapes = new String[] {"circle", "square", "triangle"};
+    String[] categories = new String[] {"value1", "value2", "value3"};
+    for (String eviction : new String[] {null, "reservoir", "least-recently-matched"}) {
+      for (String index : new String[] {"kd-tree", "vp-tree"}) {
+        KNN scannedKNN = this.boundedKNN(eviction, null);
+        KNN indexedKNN = this.boundedKNN(eviction, index);
+        Random random = new Random(3);
+        for (int i = 0; i < 300; i++) {
+          IEntry example = new EntryImpl(Arrays.asList(
+                  new CategoricalFeature("Shape", shapes[random.nextInt(3)]),
+                  new NumericalFeature("Number", random.nextInt(50)),
+                  new BooleanFeature("Boolean", random.nextInt(2)),
+                  new CategoricalFeature("Category", categories[random.nextInt(3)])));
+          scannedKNN.train(example);
+          indexedKNN.train(example);
+          assertEquals(Math.min(i + 1, 20) + 1, scannedKNN.toString().split("\n").length);
+  
+          IEntry query = new EntryImpl(Arrays.asList(
+                  new CategoricalFeature("Shape", shapes[random.nextInt(3)]),
+                  new NumericalFeature("Number", random.nextInt(50)),
+                  new BooleanFeature("Boolean", random.nextInt(2))));
+          params.put("k", i >= 5 ? "5" : "1");
+          assertEquals(indexedKNN.queryWithParams(query, params),
+                  scannedKNN.queryWithParams(query, params));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testFIFOKeepsLatestExamples() {
+    KNN fifoKNN = this.boundedKNN("fifo", null);
+    Set<String> latest = new HashSet<>();
+    for (int i = 0; i < 50; i++) {
+      IEntry example = new EntryImpl(Arrays.asList(
+              new CategoricalFeature("Shape", "circle"), new NumericalFeature("Number", i),
+              new BooleanFeature("Boolean", 0), new CategoricalFeature("Category", "value1")));
+      fifoKNN.train(example);
+      if (i >= 30) {
+        latest.add(fifoKNN.toString().split("\n")[(i % 20) + 1]);
+      }
+    }
+
+    List<String> lines = Arrays.asList(fifoKNN.toString().split("\n"));
+    assertEquals(latest, new HashSet<>(lines.subList(1, lines.size())));
+  }
+
+  private KNN trainedKNN(Map<String, Object> modelParams, int examples) {
+    KNN knn = new KNN("Category", modelParams);
+    Map<String, String[]> features = new HashMap<>();
+    features.put("Number", null);
+    features.put("Boolean", null);
+    features.put("Category", new String[] {"value1", "value2", "value3"});
+    knn.parameterizeWithFlatFeatures(features);
+    Random random = new Random(19);
+    for (int i = 0; i < examples; i++) {
+      int number = random.nextInt(90);
+      knn.train(new EntryImpl(Arrays.asList(new NumericalFeature("Number", number),
+              new BooleanFeature("Boolean", random.nextInt(2)),
+              new CategoricalFeature("Category", "value" + (number / 30 + 1)))));
+    }
+    return knn;
+  }
+
+  @Test
+  public void testMappedStorage() throws Exception {
+    Path file = Files.createTempFile("knn", ".examples");
+    file.toFile().deleteOnExit();
+    Map<String, Object> modelParams = new HashMap<>();
+    modelParams.put("storage", "mapped");
+    modelParams.put("storage-file", file.toString());
+    KNN mappedKNN = this.trainedKNN(modelParams, 300);
+    KNN heapKNN = this.trainedKNN(new HashMap<>(), 300);
+    assertEquals(heapKNN.toString(), mappedKNN.toString());
+
+    List<IEntry> queries = new ArrayList<>();
+    Random random = new Random(4);
+    for (int i = 0; i < 50; i++) {
+      queries.add(new EntryImpl(Arrays.asList(new NumericalFeature("Number", random.nextInt(90)),
+              new BooleanFeature("Boolean", random.nextInt(2)))));
+    }
+    params.put("k", "5");
+    List<String> expected = heapKNN.queryBatch(queries, params);
+    assertEquals(expected, mappedKNN.queryBatch(queries, params));
+
+    // a deserialized model maps the same file again, and can keep training
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(mappedKNN);
+    out.close();
+    KNN reopened = (KNN) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))
+            .readObject();
+    assertEquals(expected, reopened.queryBatch(queries, params));
+    reopened.compact(new HashMap<>());
+    heapKNN.compact(new HashMap<>());
+    assertEquals(heapKNN.toString(), reopened.toString());
+  }
+
+  @Test
+  public void testStorageArguments() {
+    Map<String, Object> modelParams = new HashMap<>();
+    modelParams.put("storage", "mapped");
+    assertThrows(IllegalArgumentException.class, () -> {
+      new KNN("Category", modelParams);
+    });
+    modelParams.put("storage", "heap");
+    modelParams.put("storage-file", "examples.knn");
+    assertThrows(IllegalArgumentException.class, () -> {
+      new KNN("Category", modelParams);
+    });
+    modelParams.put("storage", "disk");
+    assertThrows(IllegalArgumentException.class, () -> {
+      new KNN("Category", modelParams);
+    });
+  }
+
+  @Test
+  public void testQuantizedMatchesFullPrecision() {
+    List<IEntry> queries = new ArrayList<>();
+    Random random = new Random(12);
+    for (int i = 0; i < 50; i++) {
+      queries.add(new EntryImpl(Arrays.asList(new NumericalFeature("Number", random.nextInt(90)),
+              new BooleanFeature("Boolean", random.nextInt(2)))));
+    }
+    params.put("k", "7");
+    IEntry extra = new EntryImpl(Arrays.asList(new NumericalFeature("Number", 40),
+            new BooleanFeature("Boolean", 0), new CategoricalFeature("Category", "value3")));
+    KNN fullKNN = this.trainedKNN(new HashMap<>(), 500);
+    List<String> expected = fullKNN.queryBatch(queries, params);
+    fullKNN.train(extra);
+    List<String> expectedAfter = fullKNN.queryBatch(queries, params);
+    for (String precision : Arrays.asList("float32", "int8")) {
+      Map<String, Object> modelParams = new HashMap<>();
+      modelParams.put("quantize", precision);
+      KNN quantizedKNN = this.trainedKNN(modelParams, 500);
+      assertEquals(expected, quantizedKNN.queryBatch(queries, params));
+      // the copy is kept up to date with new examples, and split across threads
+      quantizedKNN.train(extra);
+      assertEquals(expectedAfter, quantizedKNN.queryBatch(queries, params));
+      modelParams.put("parallel-threshold", "100");
+      KNN parallelKNN = this.trainedKNN(modelParams, 500);
+      assertEquals(expected, parallelKNN.queryBatch(queries, params));
+    }
+
+    Map<String, Object> modelParams = new HashMap<>();
+    modelParams.put("quantize", "int4");
+    assertThrows(IllegalArgumentException.class, () -> {
+      new KNN("Category", modelParams);
+    });
+    params.put("rerank", "0");
+    assertThrows(IllegalArgumentException.class, () -> {
+      this.trainedKNN(new HashMap<>(), 10).queryBatch(queries, params);
+    });
+  }
+
+  @Test
+  public void testProductQuantizationIndex() {
+    List<IEntry> queries = new ArrayList<>();
+    Random random = new Random(13);
+    for (int i = 0; i < 50; i++) {
+      queries.add(new EntryImpl(Arrays.asList(new NumericalFeature("Number", random.nextInt(90)),
+              new BooleanFeature("Boolean", random.nextInt(2)))));
+    }
+    params.put("k", "7");
+    List<String> expected = this.trainedKNN(new HashMap<>(), 500).queryBatch(queries, params);
+    Map<String, Object> modelParams = new HashMap<>();
+    modelParams.put("index", "pq");
+    modelParams.put("pq-centroids", "64");
+    assertEquals(expected, this.trainedKNN(modelParams, 500).queryBatch(queries, params));
+
+    modelParams.put("pq-centroids", "0");
+    assertThrows(IllegalArgumentException.class, () -> {
+      new KNN("Category", modelParams);
+    });
+    modelParams.put("pq-centroids", "16");
+    modelParams.put("pq-subspaces", "0");
+    assertThrows(IllegalArgumentException.class, () -> {
+      new KNN("Category", modelParams);
+    });
+  }
+
+  @Test
+  public void testSweepKMatchesLeaveOneOutQueries() {
+    List<IEntry> entries = new ArrayList<>();
+    Random random = new Random(23);
+    for (int i = 0; i < 60; i++) {
+      // every value is repeated, so leaving one example out does not change the bounds, and a
+      // quarter of the labels are noise
+      int number = random.nextInt(10);
+      int bool = random.nextInt(2);
+      String category = "value" + (random.nextInt(4) == 0 ? 3 : (number + bool) / 4 + 1);
+      entries.add(new EntryImpl(Arrays.asList(new NumericalFeature("Number", number),
+              new BooleanFeature("Boolean", bool), new CategoricalFeature("Category",
+              category))));
+    }
+
+    Map<String, String[]> features = new HashMap<>();
+    features.put("Number", null);
+    features.put("Boolean", null);
+    features.put("Category", new String[] {"value1", "value2", "value3"});
+    Map<String, Object> sweepParams = new HashMap<>();
+    sweepParams.put("k-max", "12");
+    Map<Integer, Double> expected = new TreeMap<>();
+    for (int k : new int[] {1, 5, 7, 11}) {
+      int correct = 0;
+      for (int i = 0; i < entries.size(); i++) {
+        KNN knn = new KNN("Category");
+        knn.parameterizeWithFlatFeatures(features);
+        for (int j = 0; j < entries.size(); j++) {
+          if (j != i) {
+            knn.train(entries.get(j));
+          }
+        }
+        params.put("k", Integer.toString(k));
+        IEntry query = new EntryImpl(entries.get(i).getFeatures().subList(0, 2));
+        correct += knn.queryWithParams(query, params).equals(entries.get(i).getFeatures()
+                .get(2).getCategoricalValue()) ? 1 : 0;
+      }
+      expected.put(k, correct / 60.0);
+    }
+
+    for (String index : Arrays.asList(null, "vp-tree")) {
+      Map<String, Object> modelParams = new HashMap<>();
+      if (index != null) {
+        modelParams.put("index", index);
+      }
+      KNN knn = new KNN("Category", modelParams);
+      knn.parameterizeWithFlatFeatures(features);
+      for (IEntry entry : entries) {
+        knn.train(entry);
+      }
+      assertEquals(expected, knn.sweepK(sweepParams));
+    }
+  }
+
+  @Test
+  public void testSweepKArguments() {
+    assertThrows(IllegalArgumentException.class, () -> {
+      new KNN("Category").sweepK(new HashMap<>());
+    });
+    KNN knn = this.trainedKNN(new HashMap<>(), 10);
+    assertThrows(IllegalArgumentException.class, () -> {
+      knn.sweepK(null);
+    });
+    Map<String, Object> sweepParams = new HashMap<>();
+    sweepParams.put("k-max", "0");
+    assertThrows(IllegalArgumentException.class, () -> {
+      knn.sweepK(sweepParams);
+    });
+    // k cannot be more than the 9 other examples
+    sweepParams.put("k-max", "100");
+    assertEquals(Arrays.asList(1, 5, 7), new ArrayList<>(knn.sweepK(sweepParams).keySet()));
+  }
+
+  @Test
+  public void testRadiusQuery() {
+    // the same examples trainedKNN trains with, to find those within the radius by hand
+    Random random = new Random(19);
+    int[] numbers = new int[300];
+    int[] booleans = new int[300];
+    for (int i = 0; i < numbers.length; i++) {
+      numbers[i] = random.nextInt(90);
+      booleans[i] = random.nextInt(2);
+    }
+    int least = Arrays.stream(numbers).min().getAsInt();
+    int greatest = Arrays.stream(numbers).max().getAsInt();
+
+    Map<String, Object> radiusParams = new HashMap<>();
+    radiusParams.put("distance", "euclidean");
+    radiusParams.put("radius", "0.1");
+    List<Map<String, Object>> models = new ArrayList<>();
+    models.add(new HashMap<>());
+    models.add(new HashMap<>());
+    models.get(1).put("index", "kd-tree");
+    models.add(new HashMap<>());
+    models.get(2).put("index", "vp-tree");
+    models.add(new HashMap<>());
+    models.get(3).put("parallel-threshold", "1");
+    for (Map<String, Object> modelParams : models) {
+      KNN knn = this.trainedKNN(modelParams, 300);
+      for (int number = 0; number < 90; number += 7) {
+        IEntry query = new EntryImpl(Arrays.asList(new NumericalFeature("Number", number),
+                new BooleanFeature("Boolean", 1)));
+        Map<String, Integer> expected = new HashMap<>();
+        int within = 0;
+        for (int i = 0; i < numbers.length; i++) {
+          double difference = (numbers[i] - number) / (double) (greatest - least);
+          if (booleans[i] == 1 && Math.abs(difference) <= 0.1) {
+            expected.merge("value" + (numbers[i] / 30 + 1), 1, Integer::sum);
+            within++;
+          }
+        }
+
+        Map<String, Integer> histogram = knn.histogramWithin(query, radiusParams);
+        assertEquals(Arrays.asList("value1", "value2", "value3"),
+                new ArrayList<>(histogram.keySet()));
+        histogram.values().removeIf(count -> count == 0);
+        assertEquals(expected, histogram);
+        List<IEntry> examples = knn.queryRadius(query, radiusParams);
+        assertEquals(within, examples.size());
+        // nearest first
+        for (int i = 1; i < examples.size(); i++) {
+          assertTrue(Math.abs(this.numberOf(examples.get(i - 1)) - number)
+                  <= Math.abs(this.numberOf(examples.get(i)) - number));
+        }
+      }
+    }
+  }
+
+  private double numberOf(IEntry entry) {
+    return entry.getFeatures().stream().filter(feature -> feature.getFeatureName()
+            .equals("Number")).findFirst().get().getValue();
+  }
+
+  @Test
+  public void testRadiusQueryWithParams() {
+    KNN knn = this.trainedKNN(new HashMap<>(), 300);
+    IEntry query = new EntryImpl(Arrays.asList(new NumericalFeature("Number", 10),
+            new BooleanFeature("Boolean", 0)));
+    Map<String, Object> radiusParams = new HashMap<>();
+    radiusParams.put("distance", "euclidean");
+    radiusParams.put("radius", "0.05");
+    assertEquals(knn.histogramWithin(query, radiusParams).toString(),
+            knn.queryWithParams(query, radiusParams));
+    assertTrue(knn.queryWithParams(query, radiusParams).startsWith("{value1="));
+    radiusParams.put("range-result", "examples");
+    assertEquals(knn.queryRadius(query, radiusParams).toString(),
+            knn.queryWithParams(query, radiusParams));
+    radiusParams.put("radius", "0");
+    assertEquals("[]", knn.queryWithParams(new EntryImpl(Arrays.asList(
+            new NumericalFeature("Number", 10.5), new BooleanFeature("Boolean", 0))),
+            radiusParams));
+
+    radiusParams.put("range-result", "sorted");
+    assertThrows(IllegalArgumentException.class, () -> {
+      knn.queryWithParams(query, radiusParams);
+    });
+    radiusParams.remove("range-result");
+    radiusParams.put("radius", "-1");
+    assertThrows(IllegalArgumentException.class, () -> {
+      knn.queryWithParams(query, radiusParams);
+    });
+    radiusParams.put("radius", "1");
+    radiusParams.remove("distance");
+    assertThrows(IllegalArgumentException.class, () -> {
+      knn.queryRadius(query, radiusParams);
+    });
+    radiusParams.put("distance", "euclidean");
+    assertThrows(IllegalArgumentException.class, () -> {
+      knn.histogramWithin(new EntryImpl(Arrays.asList(new BooleanFeature("Boolean", 0),
+              new CategoricalFeature("Category", "value1"))), radiusParams);
+    });
+    assertThrows(IllegalArgumentException.class, () -> {
+      new KNN("Category").queryRadius(query, radiusParams);
+    });
+  }
+
+  @Test
+  public void testQueryTargets() {
+    KNN knn = new KNN("Category");
+    Map<String, String[]> features = new HashMap<>();
+    features.put("Number", null);
+    features.put("Category", new String[] {"value1", "value2", "value3"});
+    features.put("Size", new String[] {"small", "large"});
+    knn.parameterizeWithFlatFeatures(features);
+    Random random = new Random(23);
+    for (int i = 0; i < 200; i++) {
+      int number = random.nextInt(90);
+      knn.train(new EntryImpl(Arrays.asList(new NumericalFeature("Number", number),
+              new CategoricalFeature("Category", "value" + (number / 30 + 1)),
+              new CategoricalFeature("Size", number < 45 ? "small" : "large"))));
+    }
+
+    params.put("k", "5");
+    List<IEntry> queries = new ArrayList<>();
+    for (int number = 5; number < 90; number += 10) {
+      queries.add(new EntryImpl(Collections.singletonList(new NumericalFeature("Number",
+              number))));
+    }
+    List<Map<String, String>> targets = knn.queryTargets(queries, params);
+    List<String> sizes = knn.queryBatch(queries, params);
+    for (int i = 0; i < queries.size(); i++) {
+      int number = 5 + 10 * i;
+      Map<String, String> expected = new LinkedHashMap<>();
+      expected.put("Category", "value" + (number / 30 + 1));
+      expected.put("Size", number < 45 ? "small" : "large");
+      assertEquals(expected, targets.get(i));
+      // a single-target query infers the last missing feature from the same neighbors
+      assertEquals(sizes.get(i), targets.get(i).get("Size"));
+    }
+
+    params.put("targets", "all");
+    assertEquals(targets.get(0).toString(), knn.queryWithParams(queries.get(0), params));
+    params.remove("targets");
+    assertEquals(Collections.singletonMap("Category", "value3"), knn.queryTargets(
+            Collections.singletonList(new EntryImpl(Arrays.asList(new NumericalFeature("Number",
+                    80), new CategoricalFeature("Size", "large")))), params).get(0));
+    assertTrue(knn.queryTargets(new ArrayList<>(), params).isEmpty());
+
+    // k must suit every missing feature
+    params.put("k", "3");
+    assertThrows(IllegalArgumentException.class, () -> {
+      knn.queryTargets(queries, params);
+    });
+    params.put("k", "5");
+    assertThrows(IllegalArgumentException.class, () -> {
+      knn.queryTargets(Collections.singletonList(new EntryImpl(Arrays.asList(
+              new CategoricalFeature("Category", "value3"),
+              new CategoricalFeature("Size", "large")))), params);
+    });
+    assertThrows(IllegalArgumentException.class, () -> {
+      knn.queryTargets(null, params);
+    });
+  }
+
+  @Test
+  public void testCollapseDuplicates() {
+    Map<String, Object> modelParams = new HashMap<>();
+    modelParams.put("collapse", "true");
+    KNN collapsedKNN = new KNN("Category", modelParams);
+    KNN knn = new KNN("Category");
+    Map<String, String[]> features = new HashMap<>();
+    features.put("Number", null);
+    features.put("Boolean", null);
+    features.put("Category", new String[] {"value1", "value2", "value3"});
+    collapsedKNN.parameterizeWithFlatFeatures(features);
+    knn.parameterizeWithFlatFeatures(features);
+    Random random = new Random(29);
+    for (int i = 0; i < 500; i++) {
+      int number = random.nextInt(30);
+      IEntry entry = new EntryImpl(Arrays.asList(new NumericalFeature("Number", number),
+              new BooleanFeature("Boolean", random.nextInt(2)),
+              new CategoricalFeature("Category", "value" + (number / 10 + 1))));
+      collapsedKNN.train(entry);
+      knn.train(entry);
+    }
+    // one row per distinct situation, plus the header
+    assertEquals(61, collapsedKNN.toString().split("\\n").length);
+
+    // k may count every observation
+    params.put("k", "101");
+    List<IEntry> queries = new ArrayList<>();
+    for (double number = 0.3; number < 30; number += 1.7) {
+      queries.add(new EntryImpl(Arrays.asList(new NumericalFeature("Number", number),
+              new BooleanFeature("Boolean", 1))));
+    }
+    for (String k : new String[] {"1", "5", "13", "101"}) {
+      params.put("k", k);
+      assertEquals(knn.queryBatch(queries, params), collapsedKNN.queryBatch(queries, params));
+    }
+
+    Map<String, Object> radiusParams = new HashMap<>();
+    radiusParams.put("distance", "euclidean");
+    radiusParams.put("radius", "0.2");
+    assertEquals(knn.histogramWithin(queries.get(3), radiusParams),
+            collapsedKNN.histogramWithin(queries.get(3), radiusParams));
+    assertTrue(collapsedKNN.queryRadius(queries.get(3), radiusParams).size()
+            < knn.queryRadius(queries.get(3), radiusParams).size());
+  }
+
+  @Test
+  public void testCollapsedVotesHonorCounts() {
+    Map<String, Object> modelParams = new HashMap<>();
+    modelParams.put("collapse", "true");
+    KNN knn = new KNN("Category", modelParams);
+    Map<String, String[]> features = new HashMap<>();
+    features.put("Number", null);
+    features.put("Category", new String[] {"value1", "value2"});
+    knn.parameterizeWithFlatFeatures(features);
+    for (String category : new String[] {"value2", "value1", "value1", "value1", "value2"}) {
+      knn.train(new EntryImpl(Arrays.asList(new NumericalFeature("Number", 1),
+              new CategoricalFeature("Category", category))));
+    }
+    for (int i = 0; i < 3; i++) {
+      knn.train(new EntryImpl(Arrays.asList(new NumericalFeature("Number", 2),
+              new CategoricalFeature("Category", "value2"))));
+    }
+
+    IEntry query = new EntryImpl(Collections.singletonList(new NumericalFeature("Number", 1)));
+    params.put("k", "1");
+    assertEquals("value1", knn.queryWithParams(query, params));
+    params.put("k", "5");
+    assertEquals("value1", knn.queryWithParams(query, params));
+    // the 3 observations of 2 outvote the 3 to 2 lead of value1
+    params.put("k", "7");
+    assertEquals("value2", knn.queryWithParams(query, params));
+    params.put("k", "9");
+    assertThrows(IllegalArgumentException.class, () -> {
+      knn.queryWithParams(query, params);
+    });
+
+    Map<String, Object> radiusParams = new HashMap<>();
+    radiusParams.put("distance", "euclidean");
+    radiusParams.put("radius", "0.5");
+    Map<String, Integer> expected = new LinkedHashMap<>();
+    expected.put("value1", 3);
+    expected.put("value2", 2);
+    assertEquals(expected, knn.histogramWithin(query, radiusParams));
+  }
+
+  @Test
+  public void testCollapseArguments() {
+    Map<String, Object> modelParams = new HashMap<>();
+    modelParams.put("collapse", "true");
+    modelParams.put("capacity", "10");
+    assertThrows(IllegalArgumentException.class, () -> {
+      new KNN("Category", modelParams);
+    });
+    modelParams.remove("capacity");
+    modelParams.put("compact-every", "10");
+    assertThrows(IllegalArgumentException.class, () -> {
+      new KNN("Category", modelParams);
+    });
+    modelParams.remove("compact-every");
+    KNN knn = this.trainedKNN(modelParams, 100);
+    assertThrows(IllegalArgumentException.class, () -> {
+      knn.compact(new HashMap<>());
+    });
+    assertThrows(IllegalArgumentException.class, () -> {
+      knn.sweepK(new HashMap<>());
+    });
+    assertThrows(IllegalArgumentException.class, () -> {
+      this.trainedKNN(modelParams, 1).train(new EntryImpl(Arrays.asList(
+              new NumericalFeature("Number", 1), new BooleanFeature("Boolean", 1),
+              new CategoricalFeature("Category", "value4"), new CategoricalFeature("Extra",
+                      "x"))));
+    });
+  }
+
+  @Test
+  public void testCompact() {
+    KNN knn = this.trainedKNN(new HashMap<>(), 300);
+    CompactionReport report = knn.compact(new HashMap<>());
+    assertEquals(300, report.getBefore());
+    assertTrue(report.isConsistent());
+    assertTrue(report.getAfter() < 60);
+    assertEquals(report.getAfter() + 1, knn.toString().split("\\n").length);
+    for (int number = 5; number < 90; number += 10) {
+      assertEquals("value" + (number / 30 + 1), knn.queryWithParams(new EntryImpl(Arrays.asList(
+              new NumericalFeature("Number", number), new BooleanFeature("Boolean", 1))),
+              params));
+    }
+  }
+
+  @Test
+  public void testCompactArguments() {
+    assertThrows(IllegalArgumentException.class, () -> {
+      new KNN("Category").compact(new HashMap<>());
+    });
+    KNN knn = this.trainedKNN(new HashMap<>(), 10);
+    assertThrows(IllegalArgumentException.class, () -> {
+      knn.compact(null);
+    });
+    Map<String, Object> compactionParams = new HashMap<>();
+    compactionParams.put("k", "0");
+    assertThrows(IllegalArgumentException.class, () -> {
+      knn.compact(compactionParams);
+    });
+  }
+
+  @Test
+  public void testCompactInBackground() throws Exception {
+    KNN knn = this.trainedKNN(new HashMap<>(), 300);
+    CompactionReport report = knn.compactInBackground(new HashMap<>()).get();
+    // the prototypes are swapped in by the next train, which is kept as well
+    knn.train(new EntryImpl(Arrays.asList(new NumericalFeature("Number", 10),
+            new BooleanFeature("Boolean", 0), new CategoricalFeature("Category", "value1"))));
+    assertEquals(report.getAfter() + 2, knn.toString().split("\\n").length);
+    assertEquals(report.toString(), this.trainedKNN(new HashMap<>(), 300)
+            .compact(new HashMap<>()).toString());
+  }
+
+  @Test
+  public void testCompactWhileCompactingInBackground() {
+    KNN knn = this.trainedKNN(new HashMap<>(), 2000);
+    CompletableFuture<CompactionReport> background = knn.compactInBackground(new HashMap<>());
+    // the background compaction read rows that this one renumbers, so it must never be applied
+    CompactionReport report = knn.compact(new HashMap<>());
+    assertTrue(background.isDone());
+    background.handle((result, error) -> null).join();
+    knn.train(new EntryImpl(Arrays.asList(new NumericalFeature("Number", 10),
+            new BooleanFeature("Boolean", 0), new CategoricalFeature("Category", "value1"))));
+    assertEquals(report.getAfter() + 2, knn.toString().split("\\n").length);
+    params.put("k", "1");
+    assertEquals("value1", knn.queryWithParams(new EntryImpl(Arrays.asList(
+            new NumericalFeature("Number", 10), new BooleanFeature("Boolean", 0))), params));
+  }
+
+  @Test
+  public void testCompactEvery() throws InterruptedException {
+    Map<String, Object> modelParams = new HashMap<>();
+    modelParams.put("compact-every", "100");
+    // the 100th example starts a compaction, which a query swaps in once it is done
+    KNN knn = this.trainedKNN(modelParams, 100);
+    long deadline = System.currentTimeMillis() + 10000;
+    while (knn.toString().split("\\n").length > 100 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+      knn.queryWithParams(queryEntry, params);
+    }
+    assertTrue(knn.toString().split("\\n").length < 30);
+    modelParams.put("compact-every", "-1");
+    assertThrows(IllegalArgumentException.class, () -> {
+      new KNN("Category", modelParams);
+    });
+  }
+
+  @Test
+  public void testKDTreeMatchesScan() {
+    Map<String, Object> modelParams = new HashMap<>();
+    modelParams.put("index", "kd-tree");
+    this.assertMatchesScan(modelParams, new HashMap<>(params));
+  }
+
+  @Test
+  public void testKDTreeMatchesScanAsBoundsWiden() {
+    Map<String, Object> modelParams = new HashMap<>();
+    modelParams.put("index", "kd-tree");
+    KNN indexedKNN = new KNN("Category", modelParams);
+    Map<String, String[]> features = new HashMap<>();
+    features.put("Number", null);
+    features.put("Other", null);
+    features.put("Category", new String[] {"value1", "value2", "value3"});
+    indexedKNN.parameterizeWithFlatFeatures(features);
+    testKNN.parameterizeWithFlatFeatures(features);
+
+    // every example widens the bounds of Number, which the tree scales at query time
+    Random random = new Random(13);
+    params.put("k", "5");
+    for (int i = 0; i < 300; i++) {
+      int number = i % 2 == 0 ? i : -i;
+      IEntry example = new EntryImpl(Arrays.asList(new NumericalFeature("Number", number),
+              new NumericalFeature("Other", random.nextInt(20)),
+              new CategoricalFeature("Category", "value" + (random.nextInt(3) + 1))));
+      testKNN.train(example);
+      indexedKNN.train(example);
+
+      if (i >= 5) {
+        IEntry query = new EntryImpl(Arrays.asList(
+                new NumericalFeature("Number", random.nextInt(2 * i + 1) - i),
+                new NumericalFeature("Other", random.nextInt(20))));
+        assertEquals(testKNN.queryWithParams(query, params),
+                indexedKNN.queryWithParams(query, params));
+      }
+    }
+  }
+
+  @Test
+  public void testVPTreeMatchesScan() {
+    Map<String, Object> modelParams = new HashMap<>();
+    modelParams.put("index", "vp-tree");
+    this.assertMatchesScan(modelParams, new HashMap<>(params));
+  }
+
+  @Test
+  public void testApproximateWideBucketsMatchScan() {
+    // every example shares a bucket with every query, and queries with fewer candidates than k
+    // fall back to an exact search
+    Map<String, Object> modelParams = new HashMap<>();
+    modelParams.put("lsh-tables", "2");
+    modelParams.put("lsh-width", "1000");
+    Map<String, Object> approximateParams = new HashMap<>(params);
+    approximateParams.put("approximate", "true");
+    approximateParams.put("probes", "2");
+    this.assertMatchesScan(modelParams, approximateParams);
+  }
+
+  private void assertMatchesScan(Map<String, Object> modelParams,
+                                 Map<String, Object> indexedParams) {
+    IReasoningModel indexedKNN = new KNN("Category", modelParams);
+    Map<String, String[]> features = new HashMap<>();
+    features.put("Number", null);
+    features.put("Boolean", null);
+    features.put("Category", new String[] {"value1", "value2", "value3"});
+    indexedKNN.parameterizeWithFlatFeatures(features);
+
+    Random random = new Random(11);
+    String[] categories = features.get("Category");
+    for (int i = 0; i < 300; i++) {
+      IEntry example = new EntryImpl(Arrays.asList(
+              new NumericalFeature("Number", random.nextInt(50)),
+              new BooleanFeature("Boolean", random.nextInt(2)),
+              new CategoricalFeature("Category", categories[random.nextInt(3)])));
+      testKNN.train(example);
+      indexedKNN.train(example);
+
+      IEntry query = new EntryImpl(Arrays.asList(
+              new NumericalFeature("Number", random.nextInt(60) - 5),
+              new BooleanFeature("Boolean", random.nextInt(2))));
+      params.put("k", i >= 5 ? "5" : "1");
+      indexedParams.put("k", i >= 5 ? "5" : "1");
+      assertEquals(testKNN.queryWithParams(query, params),
+              indexedKNN.queryWithParams(query, indexedParams));
+    }
+  }
 }
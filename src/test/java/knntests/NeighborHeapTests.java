@@ -0,0 +1,103 @@
+package knntests;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import reasoningmodels.knn.NeighborHeap;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for the bounded top-k heap used by KNN.
+ */
+public class NeighborHeapTests {
+
+  @Test
+  public void testNonPositiveK() {
+    assertThrows(IllegalArgumentException.class, () -> {
+      new NeighborHeap(0);
+    });
+  }
+
+  @Test
+  public void testKeepsNearest() {
+    NeighborHeap heap = new NeighborHeap(3);
+    assertEquals(Double.POSITIVE_INFINITY, heap.worstDistance());
+    heap.offer(0, 5.0);
+    heap.offer(1, 1.0);
+    heap.offer(2, 4.0);
+    assertTrue(heap.isFull());
+    assertEquals(5.0, heap.worstDistance());
+    assertTrue(heap.offer(3, 2.0));
+    assertFalse(heap.offer(4, 6.0));
+    assertArrayEquals(new int[] {1, 3, 2}, heap.getSortedRows());
+    assertArrayEquals(new double[] {1.0, 2.0, 4.0}, heap.getSortedDistances());
+  }
+
+  @Test
+  public void testTiesGoToLowerRow() {
+    NeighborHeap heap = new NeighborHeap(2);
+    heap.offer(5, 1.0);
+    heap.offer(3, 1.0);
+    assertTrue(heap.offer(1, 1.0));
+    assertFalse(heap.offer(4, 1.0));
+    assertArrayEquals(new int[] {1, 3}, heap.getSortedRows());
+  }
+
+  @Test
+  public void testMatchesFullSort() {
+    Random random = new Random(7);
+    double[] distances = new double[500];
+    NeighborHeap heap = new NeighborHeap(25);
+    for (int i = 0; i < distances.length; i++) {
+      distances[i] = random.nextInt(100);
+      heap.offer(i, distances[i]);
+    }
+
+    int[] expected = IntStream.range(0, distances.length).boxed()
+            .sorted((a, b) -> distances[a] != distances[b]
+                    ? Double.compare(distances[a], distances[b]) : Integer.compare(a, b))
+            .limit(25).mapToInt(Integer::intValue).toArray();
+    assertArrayEquals(expected, heap.getSortedRows());
+  }
+
+  @Test
+  public void testMerge() {
+    NeighborHeap heap = new NeighborHeap(2);
+    NeighborHeap other = new NeighborHeap(2);
+    heap.offer(0, 3.0);
+    heap.offer(1, 4.0);
+    other.offer(2, 1.0);
+    other.offer(3, 5.0);
+    heap.merge(other);
+    assertArrayEquals(new int[] {2, 0}, heap.getSortedRows());
+  }
+
+  @Test
+  public void testWithinRadius() {
+    assertThrows(IllegalArgumentException.class, () -> {
+      NeighborHeap.withinRadius(-1.0);
+    });
+    NeighborHeap heap = NeighborHeap.withinRadius(2.0);
+    assertEquals(2.0, heap.worstDistance());
+    for (int i = 0; i < 100; i++) {
+      heap.offer(i, i % 4);
+    }
+    assertFalse(heap.isFull());
+    assertEquals(2.0, heap.worstDistance());
+    assertEquals(75, heap.size());
+    assertEquals(0, heap.getSortedRows()[0]);
+    assertEquals(2.0, heap.getSortedDistances()[74]);
+
+    NeighborHeap copy = heap.emptyCopy();
+    assertEquals(0, copy.size());
+    assertFalse(copy.offer(0, 2.5));
+    assertTrue(copy.offer(0, 2.0));
+  }
+}
@@ -0,0 +1,197 @@
+package knntests;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import reasoningmodels.classifiers.EntryImpl;
+import reasoningmodels.classifiers.IEntry;
+import reasoningmodels.classifiers.IFeature;
+import reasoningmodels.classifiers.NumericalFeature;
+import reasoningmodels.knn.ChebyshevDistance;
+import reasoningmodels.knn.ColumnarExampleStore;
+import reasoningmodels.knn.FeatureLayout;
+import reasoningmodels.knn.IDistanceFunction;
+import reasoningmodels.knn.IExampleStore;
+import reasoningmodels.knn.IRowDistance;
+import reasoningmodels.knn.L1Distance;
+import reasoningmodels.knn.L2Distance;
+import reasoningmodels.knn.NeighborHeap;
+import reasoningmodels.knn.ProductQuantizationIndex;
+import reasoningmodels.knn.QueryPlan;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests that the product-quantization index finds most of the rows a full scan finds, and all of
+ * them once its candidates are re-ranked.
+ */
+public class ProductQuantizationTests {
+  private static final int WIDTH = 8;
+  private final double[] minimums = new double[WIDTH];
+  private final double[] maximums = new double[WIDTH];
+  private FeatureLayout layout;
+  private IExampleStore store;
+
+  private IEntry entryOf(double[] values, int width) {
+    List<IFeature> entryFeatures = new ArrayList<>();
+    for (int column = 0; column < width; column++) {
+      entryFeatures.add(new NumericalFeature("F" + column, values[column]));
+    }
+    return new EntryImpl(entryFeatures);
+  }
+
+  /**
+   * A point near one of a few cluster centers, as real data tends to be.
+   */
+  private double[] pointOf(Random random) {
+    int cluster = random.nextInt(10);
+    double[] res = new double[WIDTH];
+    for (int column = 0; column < WIDTH; column++) {
+      res[column] = ((cluster * 7 + column * 3) % 10) / 10.0 + random.nextGaussian() * 0.05;
+    }
+    return res;
+  }
+
+  @BeforeEach
+  public void init() {
+    Arrays.fill(minimums, -0.5);
+    Arrays.fill(maximums, 1.5);
+    store = new ColumnarExampleStore(WIDTH, 0);
+    Random random = new Random(17);
+    for (int i = 0; i < 5000; i++) {
+      IEntry entry = this.entryOf(this.pointOf(random), WIDTH);
+      if (layout == null) {
+        layout = new FeatureLayout(entry, new HashMap<>());
+      }
+      double[] numerical = new double[WIDTH];
+      layout.encode(entry, numerical, new int[0]);
+      store.add(numerical, new int[0]);
+    }
+  }
+
+  private ProductQuantizationIndex indexOf(IExampleStore rows, int subspaces, int centroids) {
+    ProductQuantizationIndex index = new ProductQuantizationIndex(rows, minimums, maximums,
+            subspaces, centroids, 10, 5);
+    for (int row = 0; row < rows.size(); row++) {
+      index.add(row);
+    }
+    return index;
+  }
+
+  /**
+   * Gets the fraction of the true k nearest rows found over random queries, keeping rerank * k
+   * candidates by encoded distance and then the k nearest of those by exact distance.
+   */
+  private double recallOf(ProductQuantizationIndex index, IDistanceFunction distanceFunction,
+                          int k, int rerank) {
+    Random random = new Random(4);
+    int found = 0;
+    for (int i = 0; i < 50; i++) {
+      QueryPlan plan = new QueryPlan(this.entryOf(this.pointOf(random), WIDTH), layout, store,
+              distanceFunction, minimums, maximums);
+      NeighborHeap expected = new NeighborHeap(k);
+      for (int row = 0; row < store.size(); row++) {
+        expected.offer(row, plan.distanceTo(row));
+      }
+
+      IRowDistance encoded = index.compile(plan, distanceFunction, minimums, maximums);
+      NeighborHeap candidates = new NeighborHeap(rerank * k);
+      for (int row = 0; row < store.size(); row++) {
+        candidates.offer(row, encoded.distanceTo(row));
+      }
+      NeighborHeap actual = new NeighborHeap(k);
+      for (int row : candidates.getSortedRows()) {
+        actual.offer(row, plan.distanceTo(row));
+      }
+      for (int row : actual.getSortedRows()) {
+        found += Arrays.stream(expected.getSortedRows()).anyMatch(other -> other == row) ? 1 : 0;
+      }
+    }
+    return found / (50.0 * k);
+  }
+
+  @Test
+  public void testRecall() {
+    ProductQuantizationIndex index = this.indexOf(store, 4, 64);
+    for (IDistanceFunction distanceFunction : Arrays.asList(new L2Distance(),
+            new L1Distance())) {
+      double encoded = this.recallOf(index, distanceFunction, 10, 1);
+      double reranked = this.recallOf(index, distanceFunction, 10, 10);
+      assertTrue(encoded > 0.3);
+      assertTrue(reranked > 0.9);
+      assertTrue(encoded < reranked);
+    }
+  }
+
+  @Test
+  public void testOneCentroidPerRowIsExact() {
+    IExampleStore small = new ColumnarExampleStore(WIDTH, 0);
+    for (int row = 0; row < 100; row++) {
+      double[] numerical = new double[WIDTH];
+      for (int column = 0; column < WIDTH; column++) {
+        numerical[column] = store.getValue(row, column);
+      }
+      small.add(numerical, new int[0]);
+    }
+
+    ProductQuantizationIndex index = this.indexOf(small, 3, 256);
+    QueryPlan plan = new QueryPlan(this.entryOf(this.pointOf(new Random(1)), WIDTH), layout,
+            small, new L2Distance(), minimums, maximums);
+    IRowDistance encoded = index.compile(plan, new L2Distance(), minimums, maximums);
+    for (int row = 0; row < small.size(); row++) {
+      assertEquals(plan.distanceTo(row), encoded.distanceTo(row), 1e-9);
+    }
+    assertEquals(small.size(), index.getTrainingSize());
+
+    // the codebooks stand for raw values, so they stay exact when the bounds change
+    double[] wideMinimums = new double[WIDTH];
+    double[] wideMaximums = new double[WIDTH];
+    Arrays.fill(wideMinimums, -3.0);
+    Arrays.fill(wideMaximums, 2.0);
+    wideMaximums[0] = wideMinimums[0];
+    QueryPlan widePlan = new QueryPlan(this.entryOf(this.pointOf(new Random(1)), WIDTH), layout,
+            small, new L2Distance(), wideMinimums, wideMaximums);
+    encoded = index.compile(widePlan, new L2Distance(), wideMinimums, wideMaximums);
+    for (int row = 0; row < small.size(); row++) {
+      assertEquals(widePlan.distanceTo(row), encoded.distanceTo(row), 1e-9);
+    }
+  }
+
+  @Test
+  public void testCannotCompile() {
+    ProductQuantizationIndex index = this.indexOf(store, 2, 16);
+    QueryPlan plan = new QueryPlan(this.entryOf(this.pointOf(new Random(1)), WIDTH), layout,
+            store, new ChebyshevDistance(), minimums, maximums);
+    assertFalse(ProductQuantizationIndex.supports(new ChebyshevDistance()));
+    assertNull(index.compile(plan, new ChebyshevDistance(), minimums, maximums));
+    QueryPlan partialPlan = new QueryPlan(this.entryOf(this.pointOf(new Random(1)), 3), layout,
+            store, new L2Distance(), minimums, maximums);
+    assertNull(index.compile(partialPlan, new L2Distance(), minimums, maximums));
+  }
+
+  @Test
+  public void testArguments() {
+    assertThrows(IllegalArgumentException.class, () -> {
+      this.indexOf(store, WIDTH + 1, 16);
+    });
+    assertThrows(IllegalArgumentException.class, () -> {
+      this.indexOf(store, 2, 257);
+    });
+    assertThrows(IllegalArgumentException.class, () -> {
+      this.indexOf(new ColumnarExampleStore(WIDTH, 0), 2, 16);
+    });
+    assertThrows(IllegalArgumentException.class, () -> {
+      this.indexOf(store, 2, 16).add(store.size() + 1);
+    });
+  }
+}
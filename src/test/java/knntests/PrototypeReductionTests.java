@@ -0,0 +1,99 @@
+package knntests;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import reasoningmodels.classifiers.CategoricalFeature;
+import reasoningmodels.classifiers.EntryImpl;
+import reasoningmodels.classifiers.IEntry;
+import reasoningmodels.classifiers.NumericalFeature;
+import reasoningmodels.knn.ColumnarExampleStore;
+import reasoningmodels.knn.FeatureLayout;
+import reasoningmodels.knn.IExampleStore;
+import reasoningmodels.knn.L2Distance;
+import reasoningmodels.knn.PrototypeReduction;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for Wilson editing and Hart's condensed nearest neighbor over the rows of a store.
+ */
+public class PrototypeReductionTests {
+  private final Map<String, String[]> features = new HashMap<>();
+  private FeatureLayout layout;
+  private IExampleStore store;
+  private PrototypeReduction reduction;
+  private int[] rows;
+  // rows whose label was flipped
+  private final boolean[] noisy = new boolean[500];
+
+  @BeforeEach
+  public void init() {
+    features.put("Category", new String[] {"left", "right"});
+    Random random = new Random(7);
+    store = new ColumnarExampleStore(2, 1);
+    for (int i = 0; i < noisy.length; i++) {
+      double x = random.nextDouble() * 100;
+      noisy[i] = i % 25 == 0;
+      String category = (x < 50) != noisy[i] ? "left" : "right";
+      IEntry entry = new EntryImpl(Arrays.asList(new NumericalFeature("X", x),
+              new NumericalFeature("Y", random.nextDouble() * 100),
+              new CategoricalFeature("Category", category)));
+      if (layout == null) {
+        layout = new FeatureLayout(entry, features);
+      }
+      double[] numerical = new double[2];
+      int[] categorical = new int[1];
+      layout.encode(entry, numerical, categorical);
+      store.add(numerical, categorical);
+    }
+
+    reduction = new PrototypeReduction(layout, store, 0, new L2Distance(),
+            new double[] {0.0, 0.0}, new double[] {100.0, 100.0});
+    rows = new int[store.size()];
+    for (int row = 0; row < rows.length; row++) {
+      rows[row] = row;
+    }
+  }
+
+  @Test
+  public void testEditingDropsNoise() {
+    int[] edited = reduction.edit(rows, 3);
+    for (int row : edited) {
+      assertFalse(noisy[row]);
+    }
+    assertTrue(edited.length > 0.9 * rows.length);
+    assertThrows(IllegalArgumentException.class, () -> {
+      reduction.edit(rows, 0);
+    });
+  }
+
+  @Test
+  public void testCondensingIsConsistent() {
+    int[] edited = reduction.edit(rows, 3);
+    int[] prototypes = reduction.condense(edited);
+    assertTrue(prototypes.length < edited.length / 4);
+    assertTrue(reduction.isConsistent(prototypes, edited));
+    // the noise cannot be labeled correctly by the prototypes of the edited rows
+    assertFalse(reduction.isConsistent(prototypes, rows));
+    // condensing keeps rows in order
+    for (int i = 1; i < prototypes.length; i++) {
+      assertTrue(prototypes[i - 1] < prototypes[i]);
+    }
+  }
+
+  @Test
+  public void testEmptyRows() {
+    assertEquals(0, reduction.condense(new int[0]).length);
+    assertTrue(reduction.isConsistent(new int[0], new int[0]));
+    assertFalse(reduction.isConsistent(new int[0], rows));
+  }
+}
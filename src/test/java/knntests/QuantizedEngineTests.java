@@ -0,0 +1,148 @@
+package knntests;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import reasoningmodels.classifiers.CategoricalFeature;
+import reasoningmodels.classifiers.EntryImpl;
+import reasoningmodels.classifiers.IEntry;
+import reasoningmodels.classifiers.NumericalFeature;
+import reasoningmodels.knn.ColumnarExampleStore;
+import reasoningmodels.knn.FeatureLayout;
+import reasoningmodels.knn.IExampleStore;
+import reasoningmodels.knn.IRowDistance;
+import reasoningmodels.knn.L1Distance;
+import reasoningmodels.knn.L2Distance;
+import reasoningmodels.knn.NeighborHeap;
+import reasoningmodels.knn.QuantizedEngine;
+import reasoningmodels.knn.QueryPlan;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests that the quantized copy of the numerical columns scores rows close to a query plan, and
+ * that re-ranking its candidates finds the rows a full-precision scan finds.
+ */
+public class QuantizedEngineTests {
+  private final String[] colors = new String[] {"red", "blue", "green"};
+  private final double[] minimums = new double[] {0.0, -50.0, 0.0};
+  private final double[] maximums = new double[] {1.0, 50.0, 1000.0};
+  private final Map<String, String[]> features = new HashMap<>();
+  private FeatureLayout layout;
+  private IExampleStore store;
+
+  private IEntry entryOf(Random random, boolean withColor) {
+    EntryImpl entry = new EntryImpl(Arrays.asList(
+            new NumericalFeature("A", random.nextDouble()),
+            new NumericalFeature("B", random.nextDouble() * 100 - 50),
+            new NumericalFeature("C", random.nextDouble() * 1000)));
+    return withColor ? new EntryImpl(Arrays.asList(entry.getFeatures().get(0),
+            entry.getFeatures().get(1), entry.getFeatures().get(2),
+            new CategoricalFeature("Color", colors[random.nextInt(3)]))) : entry;
+  }
+
+  @BeforeEach
+  public void init() {
+    features.put("Color", colors);
+    Random random = new Random(21);
+    store = new ColumnarExampleStore(3, 1);
+    for (int i = 0; i < 2000; i++) {
+      IEntry entry = this.entryOf(random, true);
+      if (layout == null) {
+        layout = new FeatureLayout(entry, features);
+      }
+      double[] numerical = new double[3];
+      int[] categorical = new int[1];
+      layout.encode(entry, numerical, categorical);
+      store.add(numerical, categorical);
+    }
+  }
+
+  private QuantizedEngine engineOf(String precision) {
+    QuantizedEngine engine = new QuantizedEngine(store, precision, minimums, maximums);
+    for (int row = 0; row < store.size(); row++) {
+      engine.add(row);
+    }
+    return engine;
+  }
+
+  @Test
+  public void testCloseToPlan() {
+    Random random = new Random(3);
+    for (String precision : Arrays.asList("float32", "int8")) {
+      QuantizedEngine engine = this.engineOf(precision);
+      // half a level of error in each of the three columns
+      double tolerance = precision.equals("int8") ? Math.sqrt(3) * 0.5 / 255 : 1e-6;
+      for (int i = 0; i < 20; i++) {
+        QueryPlan plan = new QueryPlan(this.entryOf(random, i % 2 == 0), layout, store,
+                new L2Distance(), minimums, maximums);
+        IRowDistance quantized = engine.compile(plan, new L2Distance(), minimums, maximums);
+        for (int row = 0; row < store.size(); row += 7) {
+          assertEquals(plan.distanceTo(row), quantized.distanceTo(row), tolerance);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testRerankMatchesScan() {
+    Random random = new Random(8);
+    for (String precision : Arrays.asList("float32", "int8")) {
+      QuantizedEngine engine = this.engineOf(precision);
+      for (int i = 0; i < 50; i++) {
+        QueryPlan plan = new QueryPlan(this.entryOf(random, true), layout, store,
+                new L1Distance(), minimums, maximums);
+        NeighborHeap expected = new NeighborHeap(5);
+        for (int row = 0; row < store.size(); row++) {
+          expected.offer(row, plan.distanceTo(row));
+        }
+
+        IRowDistance quantized = engine.compile(plan, new L1Distance(), minimums, maximums);
+        NeighborHeap candidates = new NeighborHeap(20);
+        for (int row = 0; row < store.size(); row++) {
+          candidates.offer(row, quantized.distanceTo(row, candidates.worstDistance()));
+        }
+        NeighborHeap actual = new NeighborHeap(5);
+        for (int row : candidates.getSortedRows()) {
+          actual.offer(row, plan.distanceTo(row));
+        }
+        assertArrayEquals(expected.getSortedRows(), actual.getSortedRows());
+      }
+    }
+  }
+
+  @Test
+  public void testBounds() {
+    QuantizedEngine bytes = this.engineOf("int8");
+    QuantizedEngine floats = this.engineOf("float32");
+    double[] wider = new double[] {1.0, 60.0, 1000.0};
+    assertTrue(bytes.isBuiltWith(minimums, maximums));
+    assertFalse(bytes.isBuiltWith(minimums, wider));
+    assertTrue(floats.isBuiltWith(minimums, wider));
+  }
+
+  @Test
+  public void testArguments() {
+    assertThrows(IllegalArgumentException.class, () -> {
+      new QuantizedEngine(store, "int4", minimums, maximums);
+    });
+    assertThrows(IllegalArgumentException.class, () -> {
+      this.engineOf("int8").add(store.size() + 1);
+    });
+    QueryPlan categoricalPlan = new QueryPlan(new EntryImpl(Arrays.asList(
+            new CategoricalFeature("Color", "red"))), layout, store, new L2Distance(), minimums,
+            maximums);
+    assertNull(this.engineOf("float32").compile(categoricalPlan, new L2Distance(), minimums,
+            maximums));
+  }
+}
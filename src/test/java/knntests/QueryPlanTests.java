@@ -0,0 +1,146 @@
+package knntests;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import reasoningmodels.classifiers.BooleanFeature;
+import reasoningmodels.classifiers.CategoricalFeature;
+import reasoningmodels.classifiers.EntryImpl;
+import reasoningmodels.classifiers.IEntry;
+import reasoningmodels.classifiers.NumericalFeature;
+import reasoningmodels.knn.ChebyshevDistance;
+import reasoningmodels.knn.ColumnarExampleStore;
+import reasoningmodels.knn.CosineDistance;
+import reasoningmodels.knn.FeatureLayout;
+import reasoningmodels.knn.IDistanceFunction;
+import reasoningmodels.knn.IExampleStore;
+import reasoningmodels.knn.L1Distance;
+import reasoningmodels.knn.L2Distance;
+import reasoningmodels.knn.QueryPlan;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for the compiled distance from a query to the rows of an example store.
+ */
+public class QueryPlanTests {
+  private final double[] minimums = new double[] {0.0, 0.0};
+  private final double[] maximums = new double[] {10.0, 1.0};
+  private final Map<String, String[]> features = new HashMap<>();
+  private FeatureLayout layout;
+  private IExampleStore store;
+
+  private void add(double number, double bool, String category, String shape) {
+    IEntry entry = new EntryImpl(Arrays.asList(new NumericalFeature("Number", number),
+            new BooleanFeature("Boolean", bool), new CategoricalFeature("Category", category),
+            new CategoricalFeature("Shape", shape)));
+    if (this.layout == null) {
+      this.layout = new FeatureLayout(entry, this.features);
+      this.store = new ColumnarExampleStore(2, 2);
+    }
+    double[] numerical = new double[2];
+    int[] categorical = new int[2];
+    this.layout.encode(entry, numerical, categorical);
+    this.store.add(numerical, categorical);
+  }
+
+  @BeforeEach
+  public void init() {
+    features.put("Category", new String[] {"value1", "value2"});
+    features.put("Shape", new String[] {"circle", "square", "triangle"});
+    this.add(0.0, 1.0, "value1", "circle");
+    this.add(10.0, 0.0, "value2", "square");
+    this.add(5.0, 1.0, "value1", "triangle");
+  }
+
+  private QueryPlan planOf(IEntry query) {
+    return new QueryPlan(query, layout, store, new L2Distance(), minimums, maximums);
+  }
+
+  @Test
+  public void testNullArguments() {
+    assertThrows(IllegalArgumentException.class, () -> {
+      this.planOf(null);
+    });
+  }
+
+  @Test
+  public void testDistance() {
+    QueryPlan plan = this.planOf(new EntryImpl(Arrays.asList(
+            new NumericalFeature("Number", 5.0), new CategoricalFeature("Shape", "Square"),
+            new BooleanFeature("Boolean", 1.0))));
+    // shape differs (sqrt 2), number differs by 0.5 after scaling
+    assertEquals(Math.sqrt(2) + 0.5, plan.distanceTo(0), 1e-12);
+    // shape matches ignoring case, number differs by 0.5 and boolean by 1
+    assertEquals(Math.sqrt(1.25), plan.distanceTo(1), 1e-12);
+    assertEquals(Math.sqrt(2), plan.copy().distanceTo(2), 1e-12);
+  }
+
+  @Test
+  public void testBlockMatchesDistance() {
+    IEntry query = new EntryImpl(Arrays.asList(new NumericalFeature("Number", 4.0),
+            new CategoricalFeature("Shape", "square"), new BooleanFeature("Boolean", 1.0)));
+    for (IDistanceFunction distanceFunction : new IDistanceFunction[] {new L2Distance(),
+            new L1Distance(), new CosineDistance()}) {
+      QueryPlan plan = new QueryPlan(query, layout, store, distanceFunction, minimums,
+              maximums);
+      double[] out = new double[2];
+      assertTrue(plan.distancesTo(1, 3, out));
+      assertEquals(plan.distanceTo(1), out[0]);
+      assertEquals(plan.distanceTo(2), out[1]);
+    }
+
+    QueryPlan plan = new QueryPlan(query, layout, store, new ChebyshevDistance(), minimums,
+            maximums);
+    assertFalse(plan.distancesTo(0, 3, new double[3]));
+  }
+
+  @Test
+  public void testDistanceWithCutoff() {
+    QueryPlan plan = this.planOf(new EntryImpl(Arrays.asList(
+            new NumericalFeature("Number", 5.0), new CategoricalFeature("Shape", "Square"),
+            new BooleanFeature("Boolean", 1.0))));
+    for (int row = 0; row < 3; row++) {
+      double distance = plan.distanceTo(row);
+      assertEquals(distance, plan.distanceTo(row, Double.POSITIVE_INFINITY));
+      assertEquals(distance, plan.distanceTo(row, distance));
+      assertTrue(plan.distanceTo(row, distance / 2) > distance / 2);
+    }
+    // the shape alone exceeds the cutoff
+    assertEquals(Math.sqrt(2), plan.distanceTo(0, 1.0));
+  }
+
+  @Test
+  public void testIgnoresUnknownFeatures() {
+    QueryPlan plan = this.planOf(new EntryImpl(Arrays.asList(
+            new NumericalFeature("Number", 0.0), new NumericalFeature("Height", 3.0))));
+    assertEquals(0.0, plan.distanceTo(0));
+    assertEquals(1.0, plan.distanceTo(1));
+  }
+
+  @Test
+  public void testValueOutsideEnumerations() {
+    this.add(5.0, 1.0, "value3", "hexagon");
+    QueryPlan plan = this.planOf(new EntryImpl(Arrays.asList(
+            new CategoricalFeature("Shape", "circle"))));
+    assertEquals(0.0, plan.distanceTo(0));
+    assertEquals(Math.sqrt(2), plan.distanceTo(1), 1e-12);
+    assertEquals(1.0, plan.distanceTo(3));
+    assertEquals(0.0, this.planOf(new EntryImpl(Arrays.asList(
+            new CategoricalFeature("Shape", "oval")))).distanceTo(3));
+  }
+
+  @Test
+  public void testMismatchedType() {
+    assertThrows(IllegalArgumentException.class, () -> {
+      this.planOf(new EntryImpl(Arrays.asList(new CategoricalFeature("Number", "value1"))));
+    });
+  }
+}